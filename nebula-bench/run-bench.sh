@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+# Builds the server and the benchmark jar, then runs the benchmarks.
+# Extra arguments go to JMH, e.g. ./run-bench.sh ChatServiceBenchmark -f 2
+# Results: results/bench-<git revision>.json
+set -euo pipefail
+
+HERE=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(cd "$HERE/.." && pwd)
+
+(cd "$ROOT" && mvn -B -q install -DskipTests)
+(cd "$HERE" && mvn -B -q package)
+
+LABEL=${BENCH_LABEL:-$(cd "$ROOT" && git describe --tags --always --dirty 2>/dev/null || date +%Y%m%d-%H%M%S)}
+
+cd "$HERE"
+java -Dbench.label="$LABEL" -jar target/benchmarks.jar "$@"
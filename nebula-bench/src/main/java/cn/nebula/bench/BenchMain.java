@@ -0,0 +1,42 @@
+package cn.nebula.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs the benchmarks with JMH's usual command line (benchmark regex, -f, -wi, -i, -p ...)
+ * and always writes a JSON result file, results/bench-&lt;label&gt;.json by default, so
+ * runs from different releases can be diffed. The label comes from -Dbench.label (the
+ * run script passes the git revision) or falls back to the start time. An explicit
+ * -rf/-rff on the command line wins.
+ */
+public class BenchMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+
+        if (commandLine.getResult().hasValue() || commandLine.getResultFormat().hasValue()) {
+            new Runner(options.build()).run();
+            return;
+        }
+
+        String label = System.getProperty("bench.label",
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")));
+        Path results = Path.of(System.getProperty("bench.results-dir", "results"));
+        Files.createDirectories(results);
+        Path file = results.resolve("bench-" + label + ".json");
+
+        options.resultFormat(ResultFormatType.JSON).result(file.toString());
+        new Runner(options.build()).run();
+        System.out.println("Results written to " + file.toAbsolutePath());
+    }
+}
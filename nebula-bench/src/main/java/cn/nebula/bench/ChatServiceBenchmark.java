@@ -0,0 +1,94 @@
+package cn.nebula.bench;
+
+import cn.nebula.service.ChatService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message persistence and history paging against the seeded database.
+ *
+ * saveMessage blocks until its write-behind batch commits, so the single-threaded score is
+ * dominated by chat.writer.flush-interval-ms; the 16-thread variant shows what group
+ * commit buys under concurrency. History is measured for the first page and for a page
+ * deep in the hot conversation, both through the read pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChatServiceBenchmark {
+
+    private NebulaFixture fixture;
+    private ChatService chatService;
+    private String deepCursor;
+
+    @State(Scope.Thread)
+    public static class Sender {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = NebulaFixture.get();
+        chatService = fixture.bean(ChatService.class);
+
+        // Walk 20 pages back so the deep-page benchmark starts mid-history
+        String cursor = null;
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> page = chatService.getChatHistory(NebulaFixture.HOT_USER, NebulaFixture.HOT_PEER, 50, cursor);
+            cursor = (String) page.get("nextCursor");
+        }
+        deepCursor = cursor;
+    }
+
+    @Benchmark
+    public boolean saveMessage(Sender sender) {
+        return save(sender);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean saveMessageContended(Sender sender) {
+        return save(sender);
+    }
+
+    private boolean save(Sender sender) {
+        long from = sender.random.nextLong(fixture.users()) + 1;
+        long to = fixture.friendOf(from, sender.random.nextInt(2 * fixture.friendsPerUser()));
+        return chatService.saveMessage(from, to, 0, "benchmark message with a typical short chat length");
+    }
+
+    @Benchmark
+    public Map<String, Object> historyFirstPage() {
+        return chatService.getChatHistory(NebulaFixture.HOT_USER, NebulaFixture.HOT_PEER, 50, null);
+    }
+
+    @Benchmark
+    public Map<String, Object> historyDeepPage() {
+        return chatService.getChatHistory(NebulaFixture.HOT_USER, NebulaFixture.HOT_PEER, 50, deepCursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Map<String, Object> historyFirstPageConcurrent(Sender sender) {
+        long user = sender.random.nextLong(fixture.users()) + 1;
+        long peer = fixture.friendOf(user, sender.random.nextInt(2 * fixture.friendsPerUser()));
+        return chatService.getChatHistory(user, peer, 50, null);
+    }
+}
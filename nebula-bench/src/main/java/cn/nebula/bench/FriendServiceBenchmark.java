@@ -0,0 +1,64 @@
+package cn.nebula.bench;
+
+import cn.nebula.service.FriendService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Friendship checks (served by the in-memory FriendGraph) and the friend list query
+ * (SQL join against users) for random users of the seeded graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FriendServiceBenchmark {
+
+    private NebulaFixture fixture;
+    private FriendService friendService;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = NebulaFixture.get();
+        friendService = fixture.bean(FriendService.class);
+    }
+
+    @Benchmark
+    public boolean areFriendsHit(Caller caller) {
+        long user = caller.random.nextLong(fixture.users()) + 1;
+        return friendService.areFriends(user, fixture.friendOf(user, caller.random.nextInt(2 * fixture.friendsPerUser())));
+    }
+
+    @Benchmark
+    public boolean areFriendsMiss(Caller caller) {
+        long user = caller.random.nextLong(fixture.users()) + 1;
+        return friendService.areFriends(user, fixture.strangerOf(user));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Map<String, Object>> getFriendsList(Caller caller) {
+        return friendService.getFriendsList(caller.random.nextLong(fixture.users()) + 1);
+    }
+}
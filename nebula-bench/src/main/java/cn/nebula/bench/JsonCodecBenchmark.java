@@ -0,0 +1,88 @@
+package cn.nebula.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame JSON work done by ChatWebSocketHandler: decoding an inbound chat frame
+ * into a Map, and encoding the forward and delivery_confirmation frames for it. Uses the
+ * same untyped Map binding as the handler, without Spring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final String inbound = "{\"type\":\"message\",\"to\":10482,\"content\":\"晚上一起吃饭吗？七点楼下见\","
+            + "\"messageType\":0,\"clientMsgId\":\"c-8f3a2b1e-0042\"}";
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> decodeInbound() throws Exception {
+        return objectMapper.readValue(inbound, Map.class);
+    }
+
+    @Benchmark
+    public String encodeForward() throws Exception {
+        Map<String, Object> forwardMessage = Map.of(
+            "type", "message",
+            "id", 202610000123456L,
+            "from", 20991L,
+            "to", 10482L,
+            "content", "晚上一起吃饭吗？七点楼下见",
+            "timestamp", System.currentTimeMillis()
+        );
+        return objectMapper.writeValueAsString(forwardMessage);
+    }
+
+    @Benchmark
+    public String encodeConfirmation() throws Exception {
+        Map<String, Object> confirmation = new HashMap<>();
+        confirmation.put("type", "delivery_confirmation");
+        confirmation.put("success", true);
+        confirmation.put("messageId", 202610000123456L);
+        confirmation.put("timestamp", System.currentTimeMillis());
+        confirmation.put("clientMsgId", "c-8f3a2b1e-0042");
+        return objectMapper.writeValueAsString(confirmation);
+    }
+
+    // Decode one frame and encode both replies, as one send costs the server
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String roundTrip() throws Exception {
+        Map<String, Object> messageData = objectMapper.readValue(inbound, Map.class);
+        Map<String, Object> forwardMessage = Map.of(
+            "type", messageData.get("type"),
+            "id", 202610000123456L,
+            "from", 20991L,
+            "to", Long.parseLong(messageData.get("to").toString()),
+            "content", messageData.get("content"),
+            "timestamp", System.currentTimeMillis()
+        );
+        objectMapper.writeValueAsString(forwardMessage);
+        Map<String, Object> confirmation = new HashMap<>();
+        confirmation.put("type", "delivery_confirmation");
+        confirmation.put("success", true);
+        confirmation.put("messageId", 202610000123456L);
+        confirmation.put("timestamp", System.currentTimeMillis());
+        confirmation.put("clientMsgId", messageData.get("clientMsgId"));
+        return objectMapper.writeValueAsString(confirmation);
+    }
+}
@@ -0,0 +1,80 @@
+package cn.nebula.bench;
+
+import cn.nebula.utils.JwtUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token checks as done on every authenticated request and WebSocket handshake.
+ *
+ * The cached variants reuse a token that JwtUtil has already verified. The uncached
+ * variants cycle through far more distinct tokens than jwt.cache-size, so nearly every
+ * call pays for parsing and the HMAC signature check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djwt.cache-size=1000")
+public class JwtBenchmark {
+
+    private static final int DISTINCT_TOKENS = 50_000;
+
+    private JwtUtil jwtUtil;
+    private String cachedToken;
+    private String[] tokens;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        NebulaFixture fixture = NebulaFixture.get();
+        jwtUtil = fixture.bean(JwtUtil.class);
+
+        cachedToken = jwtUtil.generateToken(NebulaFixture.HOT_USER, NebulaFixture.phoneOf(NebulaFixture.HOT_USER));
+        jwtUtil.validateToken(cachedToken);
+
+        tokens = new String[DISTINCT_TOKENS];
+        for (int i = 0; i < tokens.length; i++) {
+            long userId = i % fixture.users() + 1;
+            tokens[i] = jwtUtil.generateToken(userId, NebulaFixture.phoneOf(userId));
+        }
+    }
+
+    private String nextToken() {
+        String token = tokens[next];
+        next = (next + 1) % tokens.length;
+        return token;
+    }
+
+    @Benchmark
+    public boolean validateTokenCached() {
+        return jwtUtil.validateToken(cachedToken);
+    }
+
+    @Benchmark
+    public Long getUserIdFromTokenCached() {
+        return jwtUtil.getUserIdFromToken(cachedToken);
+    }
+
+    @Benchmark
+    public boolean validateTokenUncached() {
+        return jwtUtil.validateToken(nextToken());
+    }
+
+    @Benchmark
+    public Long getUserIdFromTokenUncached() {
+        return jwtUtil.getUserIdFromToken(nextToken());
+    }
+}
@@ -0,0 +1,73 @@
+package cn.nebula.bench;
+
+import cn.nebula.service.UserService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password login against session renewal. bcryptMatches isolates the hash check (cost 10,
+ * the encoder default); login is the full UserService path including the user lookup,
+ * the hash on the auth executor and issuing the tokens; refresh renews a session by
+ * rotating a refresh token, which is what replaces most logins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoginBenchmark {
+
+    private NebulaFixture fixture;
+    private UserService userService;
+    private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
+    private String passwordHash;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final SplittableRandom random = new SplittableRandom();
+        String refreshToken;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = NebulaFixture.get();
+        userService = fixture.bean(UserService.class);
+        passwordHash = passwordEncoder.encode(NebulaFixture.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean bcryptMatches() {
+        return passwordEncoder.matches(NebulaFixture.PASSWORD, passwordHash);
+    }
+
+    @Benchmark
+    public Map<String, Object> login(Caller caller) {
+        long userId = caller.random.nextLong(fixture.users()) + 1;
+        return userService.login(NebulaFixture.phoneOf(userId), NebulaFixture.PASSWORD).join();
+    }
+
+    @Benchmark
+    public Map<String, Object> refresh(Caller caller) {
+        if (caller.refreshToken == null) {
+            caller.refreshToken = (String) login(caller).get("refreshToken");
+        }
+        Map<String, Object> result = userService.refresh(caller.refreshToken);
+        caller.refreshToken = (String) result.get("refreshToken");
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+package cn.nebula.bench;
+
+import cn.nebula.NebulaApplication;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.service.FriendGraph;
+import cn.nebula.service.PartitionManager;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * One application context per benchmark JVM, backed by a temporary SQLite file seeded
+ * with a realistic amount of data. Volumes can be changed with system properties
+ * (bench.users, bench.friends-per-user, bench.messages, bench.hot-messages) so a run on a
+ * small laptop and a run on the CI box can use the same jar.
+ *
+ * Users are 1..users. User u is friends with u+1 .. u+friendsPerUser (wrapping), which
+ * gives every user 2 * friendsPerUser friends. Users 1 and 2 additionally share a long
+ * "hot" conversation that the history benchmarks page through.
+ */
+public final class NebulaFixture {
+
+    public static final String PASSWORD = "bench-password";
+    public static final long HOT_USER = 1;
+    public static final long HOT_PEER = 2;
+
+    private static NebulaFixture instance;
+
+    private final Path directory;
+    private final ConfigurableApplicationContext context;
+    private final int users;
+    private final int friendsPerUser;
+
+    private NebulaFixture() throws IOException, SQLException {
+        users = Integer.getInteger("bench.users", 5_000);
+        friendsPerUser = Integer.getInteger("bench.friends-per-user", 25);
+        int messages = Integer.getInteger("bench.messages", 500_000);
+        int hotMessages = Integer.getInteger("bench.hot-messages", 5_000);
+
+        directory = Files.createTempDirectory("nebula-bench");
+        context = new SpringApplicationBuilder(NebulaApplication.class)
+                .properties(
+                        "server.port=0",
+                        "spring.datasource.url=jdbc:sqlite:" + directory.resolve("nebula.db"),
+                        "logging.level.root=WARN")
+                .run();
+
+        long started = System.currentTimeMillis();
+        seed(messages, hotMessages);
+        // The graph was loaded from the empty database at startup
+        bean(FriendGraph.class).load();
+        System.out.printf("nebula-bench: seeded %d users, %d friendships, %d messages in %d ms%n",
+                users, users * friendsPerUser, messages + hotMessages, System.currentTimeMillis() - started);
+    }
+
+    public static synchronized NebulaFixture get() {
+        if (instance == null) {
+            try {
+                instance = new NebulaFixture();
+                Runtime.getRuntime().addShutdownHook(new Thread(instance::close));
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException("Could not set up the benchmark database", e);
+            }
+        }
+        return instance;
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    public int users() {
+        return users;
+    }
+
+    public int friendsPerUser() {
+        return friendsPerUser;
+    }
+
+    public static String phoneOf(long userId) {
+        return String.format("199%08d", userId);
+    }
+
+    // A friend of the user chosen by index in [0, 2 * friendsPerUser)
+    public long friendOf(long userId, int index) {
+        int offset = index < friendsPerUser ? index + 1 : -(index - friendsPerUser + 1);
+        return Math.floorMod(userId - 1 + offset, users) + 1;
+    }
+
+    // A user who is certainly not a friend: halfway round the ring
+    public long strangerOf(long userId) {
+        return Math.floorMod(userId - 1 + users / 2, users) + 1;
+    }
+
+    private void seed(int messages, int hotMessages) throws SQLException {
+        SqliteDatabase database = bean(SqliteDatabase.class);
+        String table = bean(PartitionManager.class).getActiveTable();
+        // Hashing once keeps seeding fast; every user logs in with the same password
+        String passwordHash = new BCryptPasswordEncoder().encode(PASSWORD);
+        SplittableRandom random = new SplittableRandom(42);
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO users (id, phone, password, nickname) VALUES (?, ?, ?, ?)")) {
+                for (long id = 1; id <= users; id++) {
+                    stmt.setLong(1, id);
+                    stmt.setString(2, phoneOf(id));
+                    stmt.setString(3, passwordHash);
+                    stmt.setString(4, "用户" + id);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT OR IGNORE INTO friendships (user_a, user_b, status) VALUES (?, ?, 1)")) {
+                for (long id = 1; id <= users; id++) {
+                    for (int i = 0; i < friendsPerUser; i++) {
+                        stmt.setLong(1, id);
+                        stmt.setLong(2, friendOf(id, i));
+                        stmt.addBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+
+            // Messages spread over the last week, inserted in time order like live traffic
+            long now = System.currentTimeMillis();
+            long week = 7L * 24 * 60 * 60 * 1000;
+            long[] timestamps = new long[messages + hotMessages];
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = now - random.nextLong(week);
+            }
+            Arrays.sort(timestamps);
+
+            String sql = String.format(
+                    "INSERT INTO %s (sender, receiver, type, content, status, timestamp) VALUES (?, ?, 0, ?, 2, ?)", table);
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < timestamps.length; i++) {
+                    long sender;
+                    long receiver;
+                    // Interleave the hot conversation evenly with the background traffic
+                    if (hotMessages > 0 && i % (timestamps.length / hotMessages) == 0) {
+                        sender = i % 2 == 0 ? HOT_USER : HOT_PEER;
+                        receiver = sender == HOT_USER ? HOT_PEER : HOT_USER;
+                    } else {
+                        sender = random.nextLong(users) + 1;
+                        receiver = friendOf(sender, random.nextInt(2 * friendsPerUser));
+                    }
+                    stmt.setLong(1, sender);
+                    stmt.setLong(2, receiver);
+                    stmt.setString(3, "benchmark message " + i + " with a typical short chat length");
+                    stmt.setLong(4, timestamps[i]);
+                    stmt.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+
+            conn.commit();
+        }
+    }
+
+    private void close() {
+        context.close();
+        try (var files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
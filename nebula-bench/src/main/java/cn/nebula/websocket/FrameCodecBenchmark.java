@@ -0,0 +1,105 @@
+package cn.nebula.websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The typed frame codecs used by ChatWebSocketHandler, on the same frames as
+ * cn.nebula.bench.JsonCodecBenchmark (the Map-based baseline). Lives in the handler's
+ * package because the codecs are package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private final TextMessage jsonInbound = new TextMessage("{\"type\":\"message\",\"to\":10482,"
+            + "\"content\":\"晚上一起吃饭吗？七点楼下见\",\"messageType\":0,\"clientMsgId\":\"c-8f3a2b1e-0042\"}");
+
+    private final BinaryMessage binaryInbound = (BinaryMessage) BinaryFrameCodec.INSTANCE.encode(Map.of(
+            "type", "message", "to", 10482L, "content", "晚上一起吃饭吗？七点楼下见",
+            "messageType", 0, "clientMsgId", "c-8f3a2b1e-0042"));
+
+    private final BinaryMessage binaryChat = chatFrame();
+
+    // A native CHAT frame built by hand, as a binary client would send it
+    private static BinaryMessage chatFrame() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryFrameCodec.CHAT);
+        writeString(out, "message");
+        writeVarLong(out, 10482);
+        out.write(0);
+        writeString(out, "c-8f3a2b1e-0042");
+        writeString(out, "晚上一起吃饭吗？七点楼下见");
+        return new BinaryMessage(out.toByteArray());
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    @Benchmark
+    public ChatFrame jsonDecode() throws Exception {
+        return JsonFrameCodec.INSTANCE.decode(jsonInbound);
+    }
+
+    @Benchmark
+    public ChatFrame binaryDecode() throws Exception {
+        return BinaryFrameCodec.INSTANCE.decode(binaryChat);
+    }
+
+    @Benchmark
+    public ChatFrame binaryDecodeJsonEnvelope() throws Exception {
+        return BinaryFrameCodec.INSTANCE.decode(binaryInbound);
+    }
+
+    @Benchmark
+    public WebSocketMessage<?> jsonEncodeForward() {
+        return JsonFrameCodec.INSTANCE.encodeMessage("message", 202610000123456L, 20991L, 10482L, false,
+                "晚上一起吃饭吗？七点楼下见", System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public WebSocketMessage<?> binaryEncodeForward() {
+        return BinaryFrameCodec.INSTANCE.encodeMessage("message", 202610000123456L, 20991L, 10482L, false,
+                "晚上一起吃饭吗？七点楼下见", System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public WebSocketMessage<?> jsonEncodeConfirmation() {
+        return JsonFrameCodec.INSTANCE.encodeConfirmation(202610000123456L, System.currentTimeMillis(), "c-8f3a2b1e-0042");
+    }
+
+    @Benchmark
+    public WebSocketMessage<?> binaryEncodeConfirmation() {
+        return BinaryFrameCodec.INSTANCE.encodeConfirmation(202610000123456L, System.currentTimeMillis(), "c-8f3a2b1e-0042");
+    }
+}
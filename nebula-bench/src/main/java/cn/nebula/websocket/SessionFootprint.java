@@ -0,0 +1,113 @@
+package cn.nebula.websocket;
+
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Metrics;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.standard.StandardWebSocketSession;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures the server-side heap cost of connections without opening sockets: builds
+ * footprint.sessions sessions (default 100000) spread over users with
+ * footprint.devices sessions each (default 1), then reports the retained bytes per
+ * connection for each layer the handler creates. Run with
+ *
+ *   java -cp target/benchmarks.jar cn.nebula.websocket.SessionFootprint
+ *
+ * Numbers are from heap usage after full GCs, so run it with a fixed heap (-Xms = -Xmx)
+ * and compare runs on the same JVM version.
+ */
+public class SessionFootprint {
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    // Kept reachable until the end so nothing measured is collected early
+    private static Object[] retained;
+
+    public static void main(String[] args) {
+        int sessions = Integer.getInteger("footprint.sessions", 100_000);
+        int devices = Math.max(1, Integer.getInteger("footprint.devices", 1));
+        System.out.printf("SessionFootprint: %d sessions, %d per user%n", sessions, devices);
+
+        long base = usedHeap();
+
+        // Spring's session wrapper with the attributes the handler stores on connect
+        HttpHeaders headers = new HttpHeaders();
+        InetSocketAddress local = new InetSocketAddress("127.0.0.1", 8080);
+        WebSocketSession[] all = new WebSocketSession[sessions];
+        long[] userIds = new long[sessions];
+        for (int i = 0; i < sessions; i++) {
+            long userId = i / devices + 1;
+            Map<String, Object> attributes = new ConcurrentHashMap<>();
+            attributes.put("userId", userId);
+            attributes.put(FrameCodec.SESSION_ATTRIBUTE, JsonFrameCodec.INSTANCE);
+            attributes.put("lastSeenAt", System.currentTimeMillis());
+            all[i] = new StandardWebSocketSession(headers, attributes, local, new InetSocketAddress("10.0.0.1", 40000 + i % 20000));
+            userIds[i] = userId;
+        }
+        long afterSessions = usedHeap();
+
+        // One outbound queue per session, keyed by session id as in OutboundQueueManager
+        Executor executor = Runnable::run;
+        Counter framesOut = new Metrics().counter("nebula_websocket_frames_out_total", "Shared by all queues");
+        Map<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+        for (WebSocketSession session : all) {
+            queues.put(session.getId(), new OutboundQueue(session, executor, 524288, 10000, OverflowPolicy.DISCONNECT, framesOut));
+        }
+        long afterQueues = usedHeap();
+
+        SessionRegistry registry = new SessionRegistry();
+        for (int i = 0; i < sessions; i++) {
+            registry.register(userIds[i], all[i], () -> {});
+        }
+        long afterRegistry = usedHeap();
+
+        // The single-session map the registry replaced, for comparison
+        Map<Long, WebSocketSession> legacy = new ConcurrentHashMap<>();
+        for (int i = 0; i < sessions; i++) {
+            legacy.put(userIds[i], all[i]);
+        }
+        long afterLegacy = usedHeap();
+
+        retained = new Object[] {all, userIds, queues, registry, legacy};
+
+        report("session + attributes", afterSessions - base, sessions);
+        report("outbound queue", afterQueues - afterSessions, sessions);
+        report("session registry", afterRegistry - afterQueues, sessions);
+        report("legacy ConcurrentHashMap<Long, WebSocketSession>", afterLegacy - afterRegistry, legacy.size());
+        System.out.printf("%-50s %8d bytes/connection%n", "total (session + queue + registry)",
+                (afterRegistry - base) / sessions);
+        System.out.printf("registry: %d users, %d sessions%n", registry.userCount(), registry.size());
+    }
+
+    private static void report(String layer, long bytes, int entries) {
+        System.out.printf("%-50s %8d bytes/entry  (%.1f MiB total)%n", layer, bytes / Math.max(1, entries),
+                bytes / (1024.0 * 1024.0));
+    }
+
+    private static long usedHeap() {
+        long previous = Long.MAX_VALUE;
+        // Repeat until a GC no longer frees anything
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long used = MEMORY.getHeapMemoryUsage().getUsed();
+            if (used >= previous) {
+                return used;
+            }
+            previous = used;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,61 @@
+#!/bin/bash
+
+# A/B run: the same workload against the server in platform-thread and virtual-thread mode.
+# Usage: ./run-ab.sh [sockets] [duration-seconds]
+# 10k sockets need a high open-file limit on both sides, e.g. `ulimit -n 65536`.
+
+set -e
+
+SOCKETS=${1:-10000}
+DURATION=${2:-60}
+WORKLOAD="--friends=4 --group-size=5 --group-ratio=0.2"
+HERE=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(cd "$HERE/.." && pwd)
+RESULTS="$HERE/results"
+ADMIN_TOKEN=loadtest-$$
+
+mkdir -p "$RESULTS"
+
+echo "📦 构建服务端与压测客户端..."
+(cd "$ROOT" && mvn -q -DskipTests package)
+(cd "$HERE" && mvn -q -DskipTests package)
+
+SERVER_JAR=$(ls "$ROOT"/target/nebula-core-*-exec.jar | head -1)
+CLIENT_JAR=$(ls "$HERE"/target/nebula-loadtest-*.jar | grep -v original | head -1)
+
+for MODE in platform virtual; do
+    if [ "$MODE" = "virtual" ]; then VIRTUAL=true; else VIRTUAL=false; fi
+    DB="$RESULTS/loadtest-$MODE.db"
+    rm -f "$DB" "$DB-wal" "$DB-shm"
+
+    echo "🚀 启动服务端 ($MODE)..."
+    java -jar "$SERVER_JAR" \
+        --spring.threads.virtual.enabled=$VIRTUAL \
+        --spring.datasource.url=jdbc:sqlite:$DB \
+        --server.tomcat.max-connections=20000 \
+        --admin.token=$ADMIN_TOKEN \
+        > "$RESULTS/server-$MODE.log" 2>&1 &
+    SERVER_PID=$!
+
+    until curl -s -o /dev/null http://localhost:8080/api/admin/stats; do sleep 1; done
+
+    java -jar "$CLIENT_JAR" --base=http://localhost:8080 --sockets=$SOCKETS --duration=$DURATION \
+        $WORKLOAD \
+        --admin-token=$ADMIN_TOKEN --label=$MODE --out="$RESULTS/$MODE.json"
+
+    kill $SERVER_PID
+    wait $SERVER_PID 2>/dev/null || true
+done
+
+# comparison.txt is the file to commit, so it records where and how it was produced
+{
+    echo "date:     $(date -u +%Y-%m-%dT%H:%M:%SZ)"
+    echo "commit:   $(cd "$ROOT" && git rev-parse --short HEAD 2>/dev/null || echo unknown)"
+    echo "machine:  $(uname -srm), $(nproc) cpus, $(free -g 2>/dev/null | awk '/^Mem:/ {print $2 " GiB"}')"
+    echo "cpu:      $(grep -m1 'model name' /proc/cpuinfo 2>/dev/null | cut -d: -f2 | sed 's/^ //')"
+    echo "java:     $(java -version 2>&1 | head -1)"
+    echo "workload: --sockets=$SOCKETS --duration=$DURATION $WORKLOAD"
+    echo "server:   sqlite.max-concurrent-callers and the other settings as in application.properties"
+    echo
+    java -jar "$CLIENT_JAR" compare "$RESULTS/platform.json" "$RESULTS/virtual.json"
+} | tee "$RESULTS/comparison.txt"
@@ -0,0 +1,605 @@
+package cn.nebula.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load driver for one local server.
+ *
+ * Setup goes through the real API: every simulated user registers (once) and logs in,
+ * befriends the next --friends users on a ring (request and accept), and blocks of
+ * --group-size consecutive users share a group. Each user then keeps a WebSocket open on
+ * /chat?token=... and sends at a fixed rate, a --group-ratio share to its group and the
+ * rest to a random friend.
+ *
+ * Every message carries its send time, so the tool measures both the confirmation latency
+ * (send to delivery_confirmation, matched by clientMsgId) and the delivery latency (send
+ * to arrival at each recipient socket, private and group separately). Alongside, optional
+ * GET /api/user/profile requests exercise the blocking JDBC read path over HTTP.
+ *
+ * --rate takes a comma-separated list; each rate runs as its own warmed-up step on the
+ * same sockets, which shows where p99 starts to climb. Results are written as JSON; the
+ * compare command prints two result files side by side. Only loopback targets are
+ * accepted.
+ *
+ * Usage:
+ *   java -jar nebula-loadtest.jar --base=http://localhost:8080 --sockets=10000 --rate=0.5,1,2 --out=run.json
+ *   java -jar nebula-loadtest.jar compare platform.json virtual.json
+ */
+public class LoadTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String CONTENT_PREFIX = "lt ";
+
+    private final URI base;
+    private final int users;
+    private final int friendsPerUser;
+    private final int groupSize;
+    private final double groupRatio;
+    private final double[] rates;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int httpRequestsPerSecond;
+    private final int setupConcurrency;
+    private final String phonePrefix;
+    private final String label;
+    private final String adminToken;
+    private final Path out;
+
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient http;
+    private final AtomicLong clientMsgIds = new AtomicLong();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicInteger closedDuringRun = new AtomicInteger();
+    private final AtomicLong groupMemberships = new AtomicLong();
+    private final AtomicInteger groupCount = new AtomicInteger();
+
+    // The rate step being run; its window decides which messages are counted
+    private volatile Step step = new Step();
+    private volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "compare".equals(args[0])) {
+            compare(Path.of(args[1]), Path.of(args[2]));
+            return;
+        }
+        new LoadTest(parseOptions(args)).run();
+    }
+
+    LoadTest(Map<String, String> options) throws Exception {
+        this.base = URI.create(options.getOrDefault("base", "http://localhost:8080"));
+        this.users = Integer.parseInt(options.getOrDefault("sockets", "10000"));
+        this.friendsPerUser = Math.max(1, Math.min(Integer.parseInt(options.getOrDefault("friends", "4")), (users - 1) / 2));
+        // A group is an owner plus friends of the owner, so it cannot outgrow the friend ring
+        this.groupSize = Math.max(1, Math.min(Integer.parseInt(options.getOrDefault("group-size", "5")), friendsPerUser + 1));
+        this.groupRatio = groupSize > 1 ? Double.parseDouble(options.getOrDefault("group-ratio", "0.2")) : 0.0;
+        String[] rateList = options.getOrDefault("rate", "0.5").split(",");
+        this.rates = new double[rateList.length];
+        for (int i = 0; i < rateList.length; i++) {
+            rates[i] = Double.parseDouble(rateList[i].trim());
+        }
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "15"));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        this.httpRequestsPerSecond = Integer.parseInt(options.getOrDefault("http-rate", "2000"));
+        this.setupConcurrency = Integer.parseInt(options.getOrDefault("setup-concurrency", "64"));
+        this.phonePrefix = options.getOrDefault("phone-prefix", "177");
+        this.label = options.getOrDefault("label", "run");
+        // The server's admin.token; without it the server stats are left out of the results
+        this.adminToken = options.getOrDefault("admin-token", "");
+        this.out = Path.of(options.getOrDefault("out", label + ".json"));
+
+        if (users < 3) {
+            throw new IllegalArgumentException("--sockets must be at least 3");
+        }
+        if (!InetAddress.getByName(base.getHost()).isLoopbackAddress()) {
+            throw new IllegalArgumentException("Only local servers can be load tested: " + base);
+        }
+
+        this.http = HttpClient.newBuilder()
+                .executor(virtualThreads)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int separator = arg.indexOf('=');
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+        return options;
+    }
+
+    void run() throws Exception {
+        System.out.printf("[%s] setting up %d users against %s%n", label, users, base);
+        Client[] clients = logIn();
+        System.out.printf("[%s] %d users logged in, seeding %d friends each%n", label, clients.length, friendsPerUser);
+        befriend(clients);
+        if (groupSize > 1) {
+            createGroups(clients);
+        }
+        System.out.printf("[%s] connecting sockets%n", label);
+        connect(clients);
+        System.out.printf("[%s] %d sockets open (%d failed)%n", label, clients.length - connectFailures.get(), connectFailures.get());
+        running = true;
+
+        List<Map<String, Object>> steps = new ArrayList<>();
+        for (double rate : rates) {
+            steps.add(runStep(clients, rate));
+        }
+        running = false;
+
+        for (Client client : clients) {
+            if (client.socket != null) {
+                client.socket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("label", label);
+        result.put("base", base.toString());
+        result.put("sockets", users);
+        result.put("friendsPerUser", friendsPerUser);
+        result.put("groupSize", groupSize);
+        result.put("groupRatio", groupRatio);
+        result.put("avgGroupMembers", groupCount.get() == 0 ? 0.0 : (double) groupMemberships.get() / groupCount.get());
+        result.put("httpRequestsPerSecond", httpRequestsPerSecond);
+        result.put("connectFailures", connectFailures.get());
+        result.put("closedDuringRun", closedDuringRun.get());
+        result.put("steps", steps);
+        result.put("serverStats", fetchServerStats());
+
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(out.toFile(), result);
+        System.out.printf("[%s] results written to %s%n", label, out);
+        virtualThreads.shutdownNow();
+    }
+
+    private Map<String, Object> runStep(Client[] clients, double rate) throws InterruptedException {
+        Step current = new Step();
+        step = current;
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        long periodMicros = (long) (1_000_000 / rate);
+        for (Client client : clients) {
+            if (client.socket != null) {
+                // Random phase so sockets do not fire in lockstep
+                long phase = ThreadLocalRandom.current().nextLong(periodMicros);
+                scheduler.scheduleAtFixedRate(client::sendMessage, phase, periodMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (httpRequestsPerSecond > 0) {
+            long httpPeriodMicros = 1_000_000L / httpRequestsPerSecond;
+            scheduler.scheduleAtFixedRate(() -> virtualThreads.execute(() -> fetchProfile(clients, current)),
+                    0, Math.max(1, httpPeriodMicros), TimeUnit.MICROSECONDS);
+        }
+
+        System.out.printf("[%s] rate %.2f/s per socket: warming up for %ds%n", label, rate, warmupSeconds);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        current.windowStart = System.nanoTime();
+        System.out.printf("[%s] rate %.2f/s per socket: measuring for %ds%n", label, rate, durationSeconds);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        current.windowEnd = System.nanoTime();
+        scheduler.shutdownNow();
+        double seconds = (current.windowEnd - current.windowStart) / 1e9;
+
+        // Let in-flight confirmations and deliveries land before counting what is missing
+        Thread.sleep(5_000);
+        long unconfirmed = 0;
+        for (Client client : clients) {
+            for (long sentAt : client.pending.values()) {
+                if (current.inWindow(sentAt)) {
+                    unconfirmed++;
+                }
+            }
+            client.pending.clear();
+        }
+
+        long sent = current.sent.sum();
+        long expected = current.expectedDeliveries.sum();
+        long delivered = current.privateDelivery.count() + current.groupDelivery.count();
+        long errors = current.confirmation.errors() + current.sendErrors.sum() + unconfirmed;
+
+        Map<String, Object> confirmation = current.confirmation.summarize(seconds);
+        confirmation.put("unconfirmed", unconfirmed);
+        Map<String, Object> privateDelivery = current.privateDelivery.summarize(seconds);
+        Map<String, Object> groupDelivery = current.groupDelivery.summarize(seconds);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ratePerSocket", rate);
+        result.put("offeredPerSecond", (clients.length - connectFailures.get()) * rate);
+        result.put("durationSeconds", seconds);
+        result.put("sent", sent);
+        result.put("sendErrors", current.sendErrors.sum());
+        result.put("errorRate", sent == 0 ? 0.0 : (double) errors / sent);
+        result.put("confirmation", confirmation);
+        result.put("privateDelivery", privateDelivery);
+        result.put("groupDelivery", groupDelivery);
+        result.put("expectedDeliveries", expected);
+        result.put("delivered", delivered);
+        result.put("deliveryRatio", expected == 0 ? 1.0 : (double) delivered / expected);
+        result.put("http", current.http.summarize(seconds));
+
+        System.out.printf("[%s] rate %.2f/s: sent %d, confirm p99 %.1f ms, delivery p99 %.1f ms private / %.1f ms group, delivered %.2f%%, errors %d%n",
+                label, rate, sent, confirmation.get("p99Millis"), privateDelivery.get("p99Millis"), groupDelivery.get("p99Millis"),
+                expected == 0 ? 100.0 : 100.0 * delivered / expected, errors);
+        return result;
+    }
+
+    private Client[] logIn() throws InterruptedException {
+        Client[] clients = new Client[users];
+        for (int i = 0; i < users; i++) {
+            clients[i] = new Client(i, String.format("%s%08d", phonePrefix, i));
+        }
+        forEach(clients.length, i -> clients[i].logIn());
+        for (Client client : clients) {
+            if (client.token == null) {
+                throw new IllegalStateException("Login failed for " + client.phone);
+            }
+        }
+        return clients;
+    }
+
+    // Ring topology: user i asks i+1 .. i+friends, and each of them accepts
+    private void befriend(Client[] clients) throws InterruptedException {
+        forEach(clients.length, i -> {
+            Client from = clients[i];
+            for (int offset = 1; offset <= friendsPerUser; offset++) {
+                Client to = clients[(i + offset) % clients.length];
+                // Already friends from an earlier run is fine; both calls then just fail
+                post("/api/friends/request", Map.of("toUserId", to.userId), from.token);
+                post("/api/friends/approve", Map.of("fromUserId", from.userId, "accept", true), to.token);
+            }
+        });
+        for (Client client : clients) {
+            client.friends = new long[2 * friendsPerUser];
+            for (int offset = 1; offset <= friendsPerUser; offset++) {
+                client.friends[2 * offset - 2] = clients[(client.index + offset) % clients.length].userId;
+                client.friends[2 * offset - 1] = clients[Math.floorMod(client.index - offset, clients.length)].userId;
+            }
+        }
+    }
+
+    /**
+     * Blocks of consecutive users; the first of each block owns the group and the rest are its
+     * friends. The server silently skips members that are not the owner's friends, so the
+     * member count is read back. A group that would not fan out to anyone is reported and
+     * left out, so its users only send private messages; setup fails if no group is usable.
+     */
+    private void createGroups(Client[] clients) throws InterruptedException {
+        // Whole blocks only; the users left over send private messages
+        int groups = clients.length / groupSize;
+        forEach(groups, g -> {
+            int first = g * groupSize;
+            int last = first + groupSize;
+            List<Long> members = new ArrayList<>();
+            for (int i = first + 1; i < last; i++) {
+                members.add(clients[i].userId);
+            }
+            JsonNode group = post("/api/groups/create",
+                    Map.of("name", "lt-" + clients[first].phone, "members", members), clients[first].token);
+            if (!group.path("success").asBoolean()) {
+                throw new IllegalStateException("Group setup failed for " + clients[first].phone + ": " + group.path("message").asText());
+            }
+            long groupId = group.path("groupId").asLong();
+            int joined = get("/api/groups/" + groupId + "/members", clients[first].token).path("members").size();
+            if (joined < 2) {
+                throw new IllegalStateException("Group of " + clients[first].phone + " has no members besides its owner; are the friendships seeded?");
+            }
+            groupCount.incrementAndGet();
+            groupMemberships.addAndGet(joined);
+            for (int i = first; i < last; i++) {
+                clients[i].groupId = groupId;
+                clients[i].groupMembers = joined;
+            }
+        });
+        if (groupCount.get() == 0) {
+            throw new IllegalStateException("No group has members besides its owner");
+        }
+        System.out.printf("[%s] %d groups, %.1f members on average%n", label, groupCount.get(),
+                groupCount.get() == 0 ? 0.0 : (double) groupMemberships.get() / groupCount.get());
+    }
+
+    private interface IndexedTask {
+        void run(int index) throws Exception;
+    }
+
+    // Runs the task for 0..count-1 on virtual threads, at most setupConcurrency at a time
+    private void forEach(int count, IndexedTask task) throws InterruptedException {
+        Semaphore permits = new Semaphore(setupConcurrency);
+        List<CompletableFuture<Void>> pending = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            permits.acquire();
+            pending.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.run(index);
+                } catch (Exception e) {
+                    System.err.println("setup step " + index + " failed: " + e.getMessage());
+                } finally {
+                    permits.release();
+                }
+            }, virtualThreads));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void connect(Client[] clients) throws InterruptedException {
+        Semaphore permits = new Semaphore(setupConcurrency * 4);
+        List<CompletableFuture<?>> pending = new ArrayList<>(clients.length);
+        for (Client client : clients) {
+            permits.acquire();
+            URI uri = URI.create(base.toString().replaceFirst("^http", "ws") + "/chat?token=" + client.token);
+            pending.add(http.newWebSocketBuilder()
+                    .connectTimeout(Duration.ofSeconds(30))
+                    .buildAsync(uri, client)
+                    .whenComplete((socket, error) -> {
+                        permits.release();
+                        if (error != null) {
+                            connectFailures.incrementAndGet();
+                        } else {
+                            client.socket = socket;
+                            client.lastSend = CompletableFuture.completedFuture(socket);
+                        }
+                    }));
+        }
+        for (CompletableFuture<?> future : pending) {
+            try {
+                future.join();
+            } catch (RuntimeException ignored) {
+                // counted in connectFailures
+            }
+        }
+    }
+
+    private void fetchProfile(Client[] clients, Step current) {
+        Client client = clients[ThreadLocalRandom.current().nextInt(clients.length)];
+        HttpRequest request = HttpRequest.newBuilder(base.resolve("/api/user/profile"))
+                .header("Authorization", "Bearer " + client.token)
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (!current.inWindow(start)) {
+                return;
+            }
+            if (response.statusCode() == 200) {
+                current.http.record(System.nanoTime() - start);
+            } else {
+                current.http.recordError();
+            }
+        } catch (Exception e) {
+            if (current.inWindow(start)) {
+                current.http.recordError();
+            }
+        }
+    }
+
+    private JsonNode fetchServerStats() {
+        try {
+            if (adminToken.isEmpty()) {
+                return null;
+            }
+            HttpRequest request = HttpRequest.newBuilder(base.resolve("/api/admin/stats"))
+                    .header("Authorization", "Bearer " + adminToken)
+                    .GET()
+                    .build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 ? MAPPER.readTree(response.body()) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private JsonNode get(String path, String token) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+                .header("Authorization", "Bearer " + token)
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+        return MAPPER.readTree(http.send(request, HttpResponse.BodyHandlers.ofString()).body());
+    }
+
+    private JsonNode post(String path, Map<String, Object> body, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(base.resolve(path))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(body)));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return MAPPER.readTree(http.send(request.build(), HttpResponse.BodyHandlers.ofString()).body());
+    }
+
+    static void compare(Path first, Path second) throws Exception {
+        JsonNode a = MAPPER.readTree(Files.readString(first));
+        JsonNode b = MAPPER.readTree(Files.readString(second));
+        System.out.printf("%-36s %14s %14s %10s%n", "", a.path("label").asText(), b.path("label").asText(), "change");
+        int steps = Math.min(a.path("steps").size(), b.path("steps").size());
+        for (int i = 0; i < steps; i++) {
+            JsonNode x = a.path("steps").get(i);
+            JsonNode y = b.path("steps").get(i);
+            System.out.printf("-- rate %s/s per socket%n", x.path("ratePerSocket").asText());
+            for (String section : new String[] {"confirmation", "privateDelivery", "groupDelivery", "http"}) {
+                for (String metric : new String[] {"throughputPerSecond", "p50Millis", "p99Millis", "p999Millis", "maxMillis", "errorRate"}) {
+                    printRow(section + "." + metric, x.path(section).path(metric).asDouble(), y.path(section).path(metric).asDouble());
+                }
+            }
+            printRow("deliveryRatio", x.path("deliveryRatio").asDouble(), y.path("deliveryRatio").asDouble());
+            printRow("errorRate", x.path("errorRate").asDouble(), y.path("errorRate").asDouble());
+        }
+    }
+
+    private static void printRow(String name, double x, double y) {
+        String change = x == 0 ? "-" : String.format("%+.1f%%", (y - x) / x * 100);
+        System.out.printf("%-36s %14.3f %14.3f %10s%n", name, x, y, change);
+    }
+
+    // One rate step; only messages sent between windowStart and windowEnd are counted
+    private static class Step {
+        volatile long windowStart = Long.MAX_VALUE;
+        volatile long windowEnd = Long.MAX_VALUE;
+        final LongAdder sent = new LongAdder();
+        final LongAdder sendErrors = new LongAdder();
+        final LongAdder expectedDeliveries = new LongAdder();
+        final LatencyHistogram confirmation = new LatencyHistogram();
+        final LatencyHistogram privateDelivery = new LatencyHistogram();
+        final LatencyHistogram groupDelivery = new LatencyHistogram();
+        final LatencyHistogram http = new LatencyHistogram();
+
+        boolean inWindow(long sentAt) {
+            return sentAt >= windowStart && sentAt <= windowEnd;
+        }
+    }
+
+    private class Client implements WebSocket.Listener {
+        final int index;
+        final String phone;
+        String token;
+        long userId;
+        long[] friends;
+        long groupId;
+        int groupMembers;
+        volatile WebSocket socket;
+        CompletableFuture<WebSocket> lastSend;
+        // clientMsgId -> send time, until the confirmation arrives
+        final Map<Long, Long> pending = new ConcurrentHashMap<>();
+        private final StringBuilder partial = new StringBuilder();
+
+        Client(int index, String phone) {
+            this.index = index;
+            this.phone = phone;
+        }
+
+        void logIn() throws Exception {
+            Map<String, Object> credentials = Map.of("phone", phone, "password", "loadtest", "nickname", "lt" + phone);
+            // Already registered from an earlier run is fine
+            post("/api/user/register", credentials, null);
+            JsonNode login = post("/api/user/login", Map.of("phone", phone, "password", "loadtest"), null);
+            if (!login.path("success").asBoolean()) {
+                throw new IllegalStateException(login.path("message").asText());
+            }
+            token = login.path("token").asText();
+            userId = login.path("userId").asLong();
+        }
+
+        // Sends are chained so the next one starts only after the previous completed
+        synchronized void sendMessage() {
+            Step current = step;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean toGroup = groupId != 0 && random.nextDouble() < groupRatio;
+            long to = toGroup ? groupId : friends[random.nextInt(friends.length)];
+            long id = clientMsgIds.incrementAndGet();
+            long sentAt = System.nanoTime();
+            String frame;
+            try {
+                frame = MAPPER.writeValueAsString(Map.of(
+                        "type", "chat",
+                        "to", to,
+                        "messageType", toGroup ? 1 : 0,
+                        "content", CONTENT_PREFIX + sentAt + " " + id,
+                        "clientMsgId", id));
+            } catch (Exception e) {
+                return;
+            }
+            if (current.inWindow(sentAt)) {
+                current.sent.increment();
+                current.expectedDeliveries.add(toGroup ? groupMembers - 1 : 1);
+            }
+            pending.put(id, sentAt);
+            lastSend = lastSend.thenCompose(ws -> ws.sendText(frame, true))
+                    .exceptionally(error -> {
+                        pending.remove(id);
+                        if (current.inWindow(sentAt)) {
+                            current.sendErrors.increment();
+                        }
+                        return socket;
+                    });
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                String text = partial.toString();
+                partial.setLength(0);
+                handleFrame(text);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void handleFrame(String text) {
+            long receivedAt = System.nanoTime();
+            Step current = step;
+            try {
+                JsonNode frame = MAPPER.readTree(text);
+                String type = frame.path("type").asText();
+                JsonNode clientMsgId = frame.get("clientMsgId");
+                if (clientMsgId != null && ("delivery_confirmation".equals(type) || "error".equals(type))) {
+                    Long sentAt = pending.remove(clientMsgId.asLong());
+                    if (sentAt == null || !current.inWindow(sentAt)) {
+                        return;
+                    }
+                    if ("delivery_confirmation".equals(type)) {
+                        current.confirmation.record(receivedAt - sentAt);
+                    } else {
+                        current.confirmation.recordError();
+                    }
+                    return;
+                }
+
+                // A message from another simulated user; the content carries its send time
+                JsonNode contentNode = frame.path("content");
+                String content = contentNode.isMissingNode() ? "" : contentNode.asText();
+                if (content.startsWith(CONTENT_PREFIX)) {
+                    int end = content.indexOf(' ', CONTENT_PREFIX.length());
+                    long sentAt = Long.parseLong(content.substring(CONTENT_PREFIX.length(), end < 0 ? content.length() : end));
+                    if (current.inWindow(sentAt)) {
+                        (frame.has("groupId") ? current.groupDelivery : current.privateDelivery).record(receivedAt - sentAt);
+                    }
+                }
+            } catch (Exception e) {
+                current.confirmation.recordError();
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            if (running) {
+                closedDuringRun.incrementAndGet();
+            }
+            return null;
+        }
+    }
+}
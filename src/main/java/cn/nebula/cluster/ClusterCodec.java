@@ -0,0 +1,204 @@
+package cn.nebula.cluster;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wire format of the TCP transport: a batch is an int message count followed by each
+ * message as a one-byte tag and its fields in declaration order, written with
+ * DataOutputStream. Strings are an int byte length (-1 for null) plus UTF-8; user frames
+ * are carried as JSON.
+ */
+final class ClusterCodec {
+
+    private static final byte USER_ONLINE = 1;
+    private static final byte USER_OFFLINE = 2;
+    private static final byte SNAPSHOT = 3;
+    private static final byte PRIVATE_MESSAGE = 4;
+    private static final byte GROUP_MESSAGE = 5;
+    private static final byte RECEIPT = 6;
+    private static final byte USER_FRAME = 7;
+    private static final byte FRIENDSHIP_CHANGED = 8;
+    private static final byte ROSTER_CHANGED = 9;
+    private static final byte PROFILE_CHANGED = 10;
+    private static final byte CONVERSATIONS_CHANGED = 11;
+    private static final byte RECEIPT_CHANGED = 12;
+    private static final byte UNREAD_INCREMENTED = 13;
+    private static final byte UNREAD_SET = 14;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ClusterCodec() {}
+
+    static byte[] encode(List<ClusterMessage> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * batch.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(batch.size());
+        for (ClusterMessage message : batch) {
+            write(out, message);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<ClusterMessage> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        if (count < 0 || count > payload.length) {
+            throw new IOException("Bad batch size " + count);
+        }
+        List<ClusterMessage> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(read(in));
+        }
+        return batch;
+    }
+
+    private static void write(DataOutputStream out, ClusterMessage message) throws IOException {
+        if (message instanceof ClusterMessage.UserOnline m) {
+            out.writeByte(USER_ONLINE);
+            out.writeLong(m.userId());
+        } else if (message instanceof ClusterMessage.UserOffline m) {
+            out.writeByte(USER_OFFLINE);
+            out.writeLong(m.userId());
+        } else if (message instanceof ClusterMessage.Snapshot m) {
+            out.writeByte(SNAPSHOT);
+            out.writeInt(m.userIds().length);
+            for (long userId : m.userIds()) {
+                out.writeLong(userId);
+            }
+        } else if (message instanceof ClusterMessage.PrivateMessage m) {
+            out.writeByte(PRIVATE_MESSAGE);
+            out.writeLong(m.receiverId());
+            writeString(out, m.type());
+            out.writeLong(m.id());
+            out.writeLong(m.from());
+            writeString(out, m.content());
+            out.writeLong(m.timestamp());
+        } else if (message instanceof ClusterMessage.GroupMessage m) {
+            out.writeByte(GROUP_MESSAGE);
+            out.writeLong(m.groupId());
+            writeString(out, m.type());
+            out.writeLong(m.id());
+            out.writeLong(m.from());
+            writeString(out, m.content());
+            out.writeLong(m.timestamp());
+        } else if (message instanceof ClusterMessage.Receipt m) {
+            out.writeByte(RECEIPT);
+            out.writeLong(m.userId());
+            out.writeLong(m.receiverId());
+            out.writeLong(m.deliveredUpTo());
+            out.writeLong(m.readUpTo());
+            out.writeLong(m.timestamp());
+        } else if (message instanceof ClusterMessage.UserFrame m) {
+            out.writeByte(USER_FRAME);
+            out.writeLong(m.userId());
+            writeString(out, MAPPER.writeValueAsString(m.frame()));
+        } else if (message instanceof ClusterMessage.FriendshipChanged m) {
+            out.writeByte(FRIENDSHIP_CHANGED);
+            out.writeLong(m.fromUserId());
+            out.writeLong(m.toUserId());
+            out.writeByte(m.change());
+        } else if (message instanceof ClusterMessage.RosterChanged m) {
+            out.writeByte(ROSTER_CHANGED);
+            out.writeLong(m.groupId());
+        } else if (message instanceof ClusterMessage.ProfileChanged m) {
+            out.writeByte(PROFILE_CHANGED);
+            out.writeLong(m.userId());
+        } else if (message instanceof ClusterMessage.ConversationsChanged m) {
+            out.writeByte(CONVERSATIONS_CHANGED);
+            out.writeInt(m.ownerIds().length);
+            for (long ownerId : m.ownerIds()) {
+                out.writeLong(ownerId);
+            }
+        } else if (message instanceof ClusterMessage.ReceiptChanged m) {
+            out.writeByte(RECEIPT_CHANGED);
+            out.writeLong(m.ownerId());
+            out.writeLong(m.peerId());
+            out.writeLong(m.deliveredUpTo());
+            out.writeLong(m.readUpTo());
+        } else if (message instanceof ClusterMessage.UnreadIncremented m) {
+            out.writeByte(UNREAD_INCREMENTED);
+            out.writeLong(m.senderId());
+            out.writeLong(m.receiverId());
+            out.writeByte(m.messageType());
+        } else if (message instanceof ClusterMessage.UnreadSet m) {
+            out.writeByte(UNREAD_SET);
+            out.writeLong(m.receiverId());
+            out.writeLong(m.peerId());
+            out.writeByte(m.peerType());
+            out.writeInt(m.count());
+        } else {
+            throw new IOException("Unsupported cluster message " + message);
+        }
+    }
+
+    private static ClusterMessage read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        return switch (tag) {
+            case USER_ONLINE -> new ClusterMessage.UserOnline(in.readLong());
+            case USER_OFFLINE -> new ClusterMessage.UserOffline(in.readLong());
+            case SNAPSHOT -> new ClusterMessage.Snapshot(readLongs(in));
+            case PRIVATE_MESSAGE -> new ClusterMessage.PrivateMessage(in.readLong(), readString(in), in.readLong(),
+                    in.readLong(), readString(in), in.readLong());
+            case GROUP_MESSAGE -> new ClusterMessage.GroupMessage(in.readLong(), readString(in), in.readLong(),
+                    in.readLong(), readString(in), in.readLong());
+            case RECEIPT -> new ClusterMessage.Receipt(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            case USER_FRAME -> new ClusterMessage.UserFrame(in.readLong(),
+                    MAPPER.readValue(readString(in), new TypeReference<Map<String, Object>>() {}));
+            case FRIENDSHIP_CHANGED -> new ClusterMessage.FriendshipChanged(in.readLong(), in.readLong(), in.readByte());
+            case ROSTER_CHANGED -> new ClusterMessage.RosterChanged(in.readLong());
+            case PROFILE_CHANGED -> new ClusterMessage.ProfileChanged(in.readLong());
+            case CONVERSATIONS_CHANGED -> new ClusterMessage.ConversationsChanged(readLongs(in));
+            case RECEIPT_CHANGED -> new ClusterMessage.ReceiptChanged(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            case UNREAD_INCREMENTED -> new ClusterMessage.UnreadIncremented(in.readLong(), in.readLong(), in.readByte());
+            case UNREAD_SET -> new ClusterMessage.UnreadSet(in.readLong(), in.readLong(), in.readByte(), in.readInt());
+            default -> throw new IOException("Unknown cluster message tag " + tag);
+        };
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / Long.BYTES) {
+            throw new IOException("Bad id list size " + count);
+        }
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("String length " + length + " exceeds the batch");
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,11 @@
+package cn.nebula.cluster;
+
+// Receives the messages other nodes send to this one
+public interface ClusterListener {
+
+    void onMessage(String fromNode, ClusterMessage message);
+
+    // The user became connected to some other node, or is no longer connected to any
+    default void onRemotePresence(long userId, boolean connectedElsewhere) {
+    }
+}
@@ -0,0 +1,60 @@
+package cn.nebula.cluster;
+
+import java.util.Map;
+
+/**
+ * Everything nodes send each other. The directory messages (UserOnline, UserOffline,
+ * Snapshot) are handled by the router itself; the rest are handed to the registered
+ * listeners on the receiving node.
+ */
+public sealed interface ClusterMessage {
+
+    // Directory: the sending node has the user connected / no longer connected
+    record UserOnline(long userId) implements ClusterMessage {}
+
+    record UserOffline(long userId) implements ClusterMessage {}
+
+    // Directory: every user connected to the sending node, sent whenever a link comes up
+    record Snapshot(long[] userIds) implements ClusterMessage {}
+
+    // A private message for the receiver's sessions on the receiving node
+    record PrivateMessage(long receiverId, String type, long id, long from, String content, long timestamp)
+            implements ClusterMessage {}
+
+    // A group message; the receiving node fans it out to the members connected there
+    record GroupMessage(long groupId, String type, long id, long from, String content, long timestamp)
+            implements ClusterMessage {}
+
+    // A receipt for userId (the original sender) about their messages to receiverId
+    record Receipt(long userId, long receiverId, long deliveredUpTo, long readUpTo, long timestamp)
+            implements ClusterMessage {}
+
+    // Any other JSON-style frame for the user's sessions
+    record UserFrame(long userId, Map<String, Object> frame) implements ClusterMessage {}
+
+    // Keeps the in-memory friend graph of every node in step
+    record FriendshipChanged(long fromUserId, long toUserId, int change) implements ClusterMessage {
+        public static final int REQUESTED = 0;
+        public static final int ACCEPTED = 1;
+        public static final int REJECTED = 2;
+        public static final int REMOVED = 3;
+    }
+
+    // A group's membership changed; cached rosters must be reloaded
+    record RosterChanged(long groupId) implements ClusterMessage {}
+
+    // A user's profile changed; cached copies must be reloaded
+    record ProfileChanged(long userId) implements ClusterMessage {}
+
+    // These owners' conversation summaries changed; cached copies must be reloaded
+    record ConversationsChanged(long[] ownerIds) implements ClusterMessage {}
+
+    // The owner's receipt watermarks for one peer moved to these values
+    record ReceiptChanged(long ownerId, long peerId, long deliveredUpTo, long readUpTo) implements ClusterMessage {}
+
+    // A saved message the sending node counted as unread for its receiver, or for each group member
+    record UnreadIncremented(long senderId, long receiverId, int messageType) implements ClusterMessage {}
+
+    // An unread counter replaced with a recount
+    record UnreadSet(long receiverId, long peerId, int peerType, int count) implements ClusterMessage {}
+}
@@ -0,0 +1,342 @@
+package cn.nebula.cluster;
+
+import cn.nebula.utils.LongHashSet;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes deliveries to users connected to other nodes. Each node announces the users it
+ * has connected (UserOnline / UserOffline, plus a full Snapshot whenever a link to a peer
+ * comes up), and every node keeps the resulting user-to-node directory in memory.
+ * Outgoing messages are queued per destination node and drained by one task at a time,
+ * so whatever piles up while a batch is on the wire goes out as the next batch.
+ *
+ * Disabled unless cluster.enabled=true; then every method is a cheap no-op and the
+ * directory stays empty.
+ */
+@Component
+public class ClusterRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRouter.class);
+
+    @Value("${cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value("${cluster.node-id:}")
+    private String nodeId;
+
+    @Value("${cluster.transport:tcp}")
+    private String transportName;
+
+    @Value("${cluster.tcp.bind-address:127.0.0.1}")
+    private String bindAddress;
+
+    @Value("${cluster.tcp.port:9100}")
+    private int port;
+
+    // id@host:port, comma separated
+    @Value("${cluster.peers:}")
+    private String peers;
+
+    @Value("${cluster.batch-size:256}")
+    private int batchSize;
+
+    @Value("${cluster.threads:2}")
+    private int threads;
+
+    @Value("${cluster.reconnect-interval-ms:1000}")
+    private long reconnectIntervalMs;
+
+    private ClusterTransport transport;
+    private ExecutorService executor;
+
+    private final UserDirectory directory = new UserDirectory();
+    private final List<ClusterListener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> peersUp = ConcurrentHashMap.newKeySet();
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    // Users with at least one session on this node
+    private final LongHashSet localUsers = new LongHashSet(1024);
+
+    private final LongAdder received = new LongAdder();
+
+    @PostConstruct
+    public void start() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId == null || nodeId.isEmpty()) {
+            nodeId = "node-" + ProcessHandle.current().pid();
+        }
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "cluster-send-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        transport = switch (transportName) {
+            case "in-process" -> new InProcessTransport();
+            case "tcp" -> new TcpTransport(bindAddress, port, parsePeers(peers), reconnectIntervalMs);
+            default -> throw new IllegalArgumentException("Unknown cluster.transport " + transportName);
+        };
+        transport.start(nodeId, new TransportHandler());
+        log.info("Cluster node {} started ({})", nodeId, transportName);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (transport != null) {
+            transport.stop();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void addListener(ClusterListener listener) {
+        listeners.add(listener);
+    }
+
+    // The user now has a session on this node; repeated calls are harmless
+    public void userConnected(long userId) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (localUsers) {
+            localUsers.add(userId);
+        }
+        broadcast(new ClusterMessage.UserOnline(userId));
+    }
+
+    // The user's last session on this node closed
+    public void userDisconnected(long userId) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (localUsers) {
+            localUsers.remove(userId);
+        }
+        broadcast(new ClusterMessage.UserOffline(userId));
+    }
+
+    public boolean isConnectedElsewhere(long userId) {
+        return enabled && directory.isConnectedElsewhere(userId);
+    }
+
+    // Queues the message for every other node the user is connected to; returns how many
+    public int sendToUser(long userId, ClusterMessage message) {
+        if (!enabled) {
+            return 0;
+        }
+        String[] nodes = directory.nodesOf(userId);
+        for (String node : nodes) {
+            outbox(node).add(message);
+        }
+        return nodes.length;
+    }
+
+    // Queues the message for every node that is currently reachable
+    public void broadcast(ClusterMessage message) {
+        if (!enabled) {
+            return;
+        }
+        for (String node : peersUp) {
+            outbox(node).add(message);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        if (!enabled) {
+            return stats;
+        }
+        stats.put("nodeId", nodeId);
+        stats.put("transport", transportName);
+        stats.put("peersUp", new ArrayList<>(peersUp));
+        stats.put("remoteUsers", directory.size());
+        synchronized (localUsers) {
+            stats.put("localUsers", localUsers.size());
+        }
+        stats.put("received", received.sum());
+        Map<String, Object> perNode = new LinkedHashMap<>();
+        outboxes.forEach((node, outbox) -> perNode.put(node, outbox.toMap()));
+        stats.put("outboxes", perNode);
+        return stats;
+    }
+
+    private Outbox outbox(String node) {
+        return outboxes.computeIfAbsent(node, Outbox::new);
+    }
+
+    private static Map<String, InetSocketAddress> parsePeers(String peers) {
+        Map<String, InetSocketAddress> result = new LinkedHashMap<>();
+        if (peers == null || peers.isBlank()) {
+            return result;
+        }
+        for (String peer : peers.split(",")) {
+            String entry = peer.trim();
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("cluster.peers entries must look like id@host:port, got " + entry);
+            }
+            result.put(entry.substring(0, at),
+                    new InetSocketAddress(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return result;
+    }
+
+    private void remotePresence(long userId, boolean connectedElsewhere) {
+        for (ClusterListener listener : listeners) {
+            listener.onRemotePresence(userId, connectedElsewhere);
+        }
+    }
+
+    private class TransportHandler implements ClusterTransport.Handler {
+
+        @Override
+        public void onPeerUp(String node) {
+            // Marked up first, so a connect racing with the snapshot is announced by one or the other
+            peersUp.add(node);
+            long[] users;
+            synchronized (localUsers) {
+                users = localUsers.toArray();
+            }
+            outbox(node).add(new ClusterMessage.Snapshot(users));
+            log.info("Cluster peer {} is up", node);
+        }
+
+        @Override
+        public void onPeerDown(String node) {
+            peersUp.remove(node);
+            directory.removeNode(node, userId -> remotePresence(userId, false));
+            log.warn("Cluster peer {} is down", node);
+        }
+
+        @Override
+        public void onBatch(String fromNode, List<ClusterMessage> batch) {
+            received.add(batch.size());
+            for (ClusterMessage message : batch) {
+                try {
+                    if (message instanceof ClusterMessage.UserOnline m) {
+                        if (directory.add(m.userId(), fromNode)) {
+                            remotePresence(m.userId(), true);
+                        }
+                    } else if (message instanceof ClusterMessage.UserOffline m) {
+                        if (directory.remove(m.userId(), fromNode)) {
+                            remotePresence(m.userId(), false);
+                        }
+                    } else if (message instanceof ClusterMessage.Snapshot m) {
+                        directory.replaceNode(fromNode, m.userIds(),
+                                userId -> remotePresence(userId, true), userId -> remotePresence(userId, false));
+                    } else {
+                        for (ClusterListener listener : listeners) {
+                            listener.onMessage(fromNode, message);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Messages waiting for one node, drained in batches by at most one task at a time
+    private class Outbox {
+        final String node;
+        final Queue<ClusterMessage> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicBoolean draining = new AtomicBoolean();
+        final LongAdder batches = new LongAdder();
+        final LongAdder sent = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+
+        Outbox(String node) {
+            this.node = node;
+        }
+
+        void add(ClusterMessage message) {
+            queue.add(message);
+            depth.incrementAndGet();
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                List<ClusterMessage> batch = new ArrayList<>(Math.min(batchSize, depth.get()));
+                ClusterMessage message;
+                while ((message = queue.poll()) != null) {
+                    depth.decrementAndGet();
+                    batch.add(message);
+                    if (batch.size() >= batchSize) {
+                        flush(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            } finally {
+                draining.set(false);
+            }
+            // A message added after the last poll but before the flag was cleared
+            if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void flush(List<ClusterMessage> batch) {
+            if (transport.send(node, batch)) {
+                batches.increment();
+                sent.add(batch.size());
+            } else {
+                // The peer is unreachable; the messages are already stored, and the snapshot
+                // exchanged when the link returns rebuilds the directory
+                dropped.add(batch.size());
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("depth", depth.get());
+            map.put("batches", batches.sum());
+            map.put("sent", sent.sum());
+            map.put("dropped", dropped.sum());
+            long count = batches.sum();
+            map.put("avgBatchSize", count == 0 ? 0.0 : (double) sent.sum() / count);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cn.nebula.cluster;
+
+import java.util.List;
+
+/**
+ * Moves batches of cluster messages between nodes. A peer is "up" from the moment this
+ * node can send to it; batches from a peer arrive in the order that peer sent them.
+ */
+public interface ClusterTransport {
+
+    void start(String nodeId, Handler handler) throws Exception;
+
+    // Returns false if the batch could not be handed to the peer
+    boolean send(String nodeId, List<ClusterMessage> batch);
+
+    void stop();
+
+    interface Handler {
+        // This node can now send to the peer
+        void onPeerUp(String nodeId);
+
+        // The peer went away; whatever it announced is no longer valid
+        void onPeerDown(String nodeId);
+
+        void onBatch(String fromNode, List<ClusterMessage> batch);
+    }
+}
@@ -0,0 +1,70 @@
+package cn.nebula.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Connects the nodes running in one JVM, e.g. several application contexts started by a
+ * test. Batches are handed over as objects, without serialization, but still on the
+ * receiving node's own thread so the delivery is asynchronous as it would be over TCP.
+ */
+class InProcessTransport implements ClusterTransport {
+
+    private static final Map<String, InProcessTransport> NODES = new ConcurrentHashMap<>();
+
+    private String nodeId;
+    private Handler handler;
+    private ExecutorService inbox;
+
+    @Override
+    public void start(String nodeId, Handler handler) {
+        this.nodeId = nodeId;
+        this.handler = handler;
+        // One thread keeps batches from each peer in order
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cluster-inbox-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+        if (NODES.putIfAbsent(nodeId, this) != null) {
+            throw new IllegalStateException("Cluster node " + nodeId + " is already running in this JVM");
+        }
+        for (InProcessTransport other : NODES.values()) {
+            if (other != this) {
+                other.inbox.execute(() -> other.handler.onPeerUp(nodeId));
+                inbox.execute(() -> handler.onPeerUp(other.nodeId));
+            }
+        }
+    }
+
+    @Override
+    public boolean send(String nodeId, List<ClusterMessage> batch) {
+        InProcessTransport peer = NODES.get(nodeId);
+        if (peer == null) {
+            return false;
+        }
+        String from = this.nodeId;
+        try {
+            peer.inbox.execute(() -> peer.handler.onBatch(from, batch));
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The peer is shutting down
+            return false;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!NODES.remove(nodeId, this)) {
+            return;
+        }
+        for (InProcessTransport other : NODES.values()) {
+            other.inbox.execute(() -> other.handler.onPeerDown(nodeId));
+        }
+        inbox.shutdown();
+    }
+}
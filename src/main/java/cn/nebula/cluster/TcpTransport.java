@@ -0,0 +1,220 @@
+package cn.nebula.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain TCP between nodes, meant for several nodes on one host. Every node listens on its
+ * own port and opens one outgoing connection to each configured peer, used only for
+ * sending; a connection starts with the sender's node id and then carries
+ * length-prefixed batches (see ClusterCodec). A peer is up while the outgoing connection
+ * to it is open, and down once its incoming connection closes, since that is the link
+ * its announcements arrived on. Lost outgoing connections are retried every
+ * reconnectIntervalMs.
+ */
+class TcpTransport implements ClusterTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(TcpTransport.class);
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final String bindAddress;
+    private final int port;
+    private final Map<String, InetSocketAddress> peerAddresses;
+    private final long reconnectIntervalMs;
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private String nodeId;
+    private Handler handler;
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService reconnector;
+    private volatile boolean running;
+
+    TcpTransport(String bindAddress, int port, Map<String, InetSocketAddress> peerAddresses, long reconnectIntervalMs) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peerAddresses = peerAddresses;
+        this.reconnectIntervalMs = reconnectIntervalMs;
+    }
+
+    @Override
+    public void start(String nodeId, Handler handler) throws IOException {
+        this.nodeId = nodeId;
+        this.handler = handler;
+        running = true;
+
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), port));
+        Thread acceptor = new Thread(this::accept, "cluster-accept-" + nodeId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (Map.Entry<String, InetSocketAddress> entry : peerAddresses.entrySet()) {
+            peers.put(entry.getKey(), new Peer(entry.getKey(), entry.getValue()));
+        }
+        reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cluster-connect-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+        reconnector.scheduleWithFixedDelay(this::connectPeers, 0, reconnectIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean send(String nodeId, List<ClusterMessage> batch) {
+        Peer peer = peers.get(nodeId);
+        if (peer == null) {
+            return false;
+        }
+        byte[] payload;
+        try {
+            payload = ClusterCodec.encode(batch);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (peer) {
+            if (peer.out == null) {
+                return false;
+            }
+            try {
+                peer.out.writeInt(payload.length);
+                peer.out.write(payload);
+                peer.out.flush();
+                return true;
+            } catch (IOException e) {
+                log.warn("Cluster link to {} lost: {}", nodeId, e.getMessage());
+                peer.disconnect();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (reconnector != null) {
+            reconnector.shutdownNow();
+        }
+        for (Peer peer : peers.values()) {
+            synchronized (peer) {
+                peer.disconnect();
+            }
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void connectPeers() {
+        for (Peer peer : peers.values()) {
+            synchronized (peer) {
+                if (peer.out != null || !running) {
+                    continue;
+                }
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(peer.address, CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeUTF(nodeId);
+                    out.flush();
+                    peer.socket = socket;
+                    peer.out = out;
+                } catch (IOException e) {
+                    // Not started yet or gone; try again on the next round
+                    continue;
+                }
+            }
+            handler.onPeerUp(peer.nodeId);
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> read(socket), "cluster-read-" + nodeId);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        String peerId = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            peerId = in.readUTF();
+            while (running) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BATCH_BYTES) {
+                    throw new IOException("Bad batch length " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                handler.onBatch(peerId, ClusterCodec.decode(payload));
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            if (running) {
+                log.warn("Cluster link from {} failed: {}", peerId, e.getMessage());
+            }
+        }
+        if (peerId != null && running) {
+            handler.onPeerDown(peerId);
+        }
+    }
+
+    private static class Peer {
+        final String nodeId;
+        final InetSocketAddress address;
+        Socket socket;
+        DataOutputStream out;
+
+        Peer(String nodeId, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+
+        // Called with the peer's lock held
+        void disconnect() {
+            out = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cn.nebula.cluster;
+
+import cn.nebula.utils.LongHashSet;
+import cn.nebula.utils.LongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Which other nodes each user is connected to, built from the peers' announcements. Kept
+ * both ways: user -> nodes for routing, and node -> users so a node's entries can be
+ * dropped when it goes away. The change callbacks report users that became reachable on
+ * some other node or stopped being reachable on any; they run after the lock is released.
+ */
+class UserDirectory {
+
+    private static final String[] NO_NODES = new String[0];
+
+    private final StampedLock lock = new StampedLock();
+    private final LongObjectHashMap<String[]> nodesByUser = new LongObjectHashMap<>(1024);
+    private final Map<String, LongHashSet> usersByNode = new HashMap<>();
+
+    String[] nodesOf(long userId) {
+        long stamp = lock.readLock();
+        try {
+            String[] nodes = nodesByUser.get(userId);
+            return nodes == null ? NO_NODES : nodes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    boolean isConnectedElsewhere(long userId) {
+        return nodesOf(userId).length > 0;
+    }
+
+    // Returns true if the user was not connected to any other node before
+    boolean add(long userId, String nodeId) {
+        long stamp = lock.writeLock();
+        try {
+            return link(userId, nodeId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Returns true if the user is no longer connected to any other node
+    boolean remove(long userId, String nodeId) {
+        long stamp = lock.writeLock();
+        try {
+            return unlink(userId, nodeId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Replaces everything known about the node with its snapshot
+    void replaceNode(String nodeId, long[] userIds, LongConsumer reachable, LongConsumer unreachable) {
+        LongHashSet gained = new LongHashSet();
+        LongHashSet lost = new LongHashSet();
+        long stamp = lock.writeLock();
+        try {
+            LongHashSet previous = usersByNode.get(nodeId);
+            LongHashSet current = new LongHashSet(userIds.length);
+            for (long userId : userIds) {
+                current.add(userId);
+            }
+            if (previous != null) {
+                for (long userId : previous.toArray()) {
+                    if (!current.contains(userId) && unlink(userId, nodeId)) {
+                        lost.add(userId);
+                    }
+                }
+            }
+            for (long userId : userIds) {
+                if (link(userId, nodeId)) {
+                    gained.add(userId);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        gained.forEach(reachable);
+        lost.forEach(unreachable);
+    }
+
+    void removeNode(String nodeId, LongConsumer unreachable) {
+        LongHashSet lost = new LongHashSet();
+        long stamp = lock.writeLock();
+        try {
+            LongHashSet users = usersByNode.get(nodeId);
+            if (users != null) {
+                for (long userId : users.toArray()) {
+                    if (unlink(userId, nodeId)) {
+                        lost.add(userId);
+                    }
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        lost.forEach(unreachable);
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return nodesByUser.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Called with the write lock held
+    private boolean link(long userId, String nodeId) {
+        usersByNode.computeIfAbsent(nodeId, id -> new LongHashSet()).add(userId);
+        String[] nodes = nodesByUser.get(userId);
+        if (nodes == null) {
+            nodesByUser.put(userId, new String[] {nodeId});
+            return true;
+        }
+        for (String node : nodes) {
+            if (node.equals(nodeId)) {
+                return false;
+            }
+        }
+        String[] updated = Arrays.copyOf(nodes, nodes.length + 1);
+        updated[nodes.length] = nodeId;
+        nodesByUser.put(userId, updated);
+        return false;
+    }
+
+    // Called with the write lock held
+    private boolean unlink(long userId, String nodeId) {
+        LongHashSet users = usersByNode.get(nodeId);
+        if (users != null) {
+            users.remove(userId);
+            if (users.isEmpty()) {
+                usersByNode.remove(nodeId);
+            }
+        }
+        String[] nodes = nodesByUser.get(userId);
+        if (nodes == null) {
+            return false;
+        }
+        String[] updated = Arrays.stream(nodes).filter(node -> !node.equals(nodeId)).toArray(String[]::new);
+        if (updated.length == nodes.length) {
+            return false;
+        }
+        if (updated.length == 0) {
+            nodesByUser.remove(userId);
+            return true;
+        }
+        nodesByUser.put(userId, updated);
+        return false;
+    }
+}
@@ -6,12 +6,19 @@ import org.springframework.context.annotation.Configuration;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 @Configuration
 public class DatabaseConfig {
 
+    // Message ids of month yyyyMM start at yyyyMM * MESSAGE_ID_MONTH_FACTOR
+    public static final long MESSAGE_ID_MONTH_FACTOR = 10_000_000_000L;
+
     @Bean
     public void initializeDatabase(DataSource dataSource) throws SQLException {
         try (Connection connection = dataSource.getConnection()) {
@@ -45,19 +52,9 @@ public class DatabaseConfig {
                 )
             """);
             
-            // Create messages table (current month)
+            // Create messages table (current month); later months are pre-created by PartitionManager
             String currentMonth = java.time.LocalDate.now().toString().substring(0, 7).replace("-", "");
-            statement.execute(String.format("""
-                CREATE TABLE IF NOT EXISTS messages_%s (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    sender INTEGER NOT NULL,
-                    receiver INTEGER NOT NULL,
-                    type INTEGER NOT NULL,
-                    content TEXT NOT NULL,
-                    status INTEGER DEFAULT 0,
-                    timestamp INTEGER DEFAULT (strftime('%s', 'now') * 1000)
-                )
-            """, currentMonth));
+            createMessagePartition(connection, currentMonth);
             
             // Create groups table
             statement.execute("""
@@ -80,11 +77,131 @@ public class DatabaseConfig {
                 )
             """);
             
+            // Create conversations table (one summary row per owner and peer/group)
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS conversations (
+                    owner_id INTEGER NOT NULL,
+                    peer_id INTEGER NOT NULL,
+                    peer_type INTEGER NOT NULL,
+                    last_message_id INTEGER NOT NULL,
+                    last_sender INTEGER NOT NULL,
+                    last_preview TEXT,
+                    last_timestamp INTEGER NOT NULL,
+                    unread_count INTEGER NOT NULL DEFAULT 0,
+                    PRIMARY KEY (owner_id, peer_type, peer_id)
+                )
+            """);
+            
+            // Create receipts table (delivery/read watermarks per receiver and sender)
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS receipts (
+                    owner_id INTEGER NOT NULL,
+                    peer_id INTEGER NOT NULL,
+                    delivered_up_to INTEGER NOT NULL DEFAULT 0,
+                    read_up_to INTEGER NOT NULL DEFAULT 0,
+                    PRIMARY KEY (owner_id, peer_id)
+                )
+            """);
+            
+            // Create replay_cursors table (offline replay progress per user)
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS replay_cursors (
+                    user_id INTEGER PRIMARY KEY,
+                    replayed_up_to INTEGER NOT NULL DEFAULT 0
+                )
+            """);
+            
+            // Create search_index_progress table (last message id indexed per partition)
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS search_index_progress (
+                    table_name TEXT PRIMARY KEY,
+                    indexed_up_to INTEGER NOT NULL DEFAULT 0
+                )
+            """);
+            
+            // Create refresh_tokens table (SHA-256 of each refresh token; a family is one login's rotation chain;
+            // used is when the token was spent, 0 while it is live)
+            statement.execute("""
+                CREATE TABLE IF NOT EXISTS refresh_tokens (
+                    token_hash TEXT PRIMARY KEY,
+                    user_id INTEGER NOT NULL,
+                    family_id TEXT NOT NULL,
+                    expires_at INTEGER NOT NULL,
+                    used INTEGER NOT NULL DEFAULT 0,
+                    revoked INTEGER NOT NULL DEFAULT 0,
+                    created_at INTEGER DEFAULT (strftime('%s', 'now') * 1000)
+                )
+            """);
+            
             // Create indexes for better performance
             statement.execute("CREATE INDEX IF NOT EXISTS idx_friendships_user_a ON friendships(user_a)");
             statement.execute("CREATE INDEX IF NOT EXISTS idx_friendships_user_b ON friendships(user_b)");
-            statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_messages_%s_sender ON messages_%s(sender)", currentMonth, currentMonth));
-            statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_messages_%s_receiver ON messages_%s(receiver)", currentMonth, currentMonth));
+            statement.execute("CREATE INDEX IF NOT EXISTS idx_conversations_owner_time ON conversations(owner_id, last_timestamp DESC)");
+            statement.execute("CREATE INDEX IF NOT EXISTS idx_refresh_tokens_family ON refresh_tokens(family_id)");
+            statement.execute("CREATE INDEX IF NOT EXISTS idx_refresh_tokens_expires ON refresh_tokens(expires_at)");
+            
+            // Partitions created before the conversation index or the search index existed get them here
+            List<String> messageTables = new ArrayList<>();
+            ResultSet tables = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB 'messages_[0-9][0-9][0-9][0-9][0-9][0-9]'");
+            while (tables.next()) {
+                messageTables.add(tables.getString(1));
+            }
+            tables.close();
+            for (String table : messageTables) {
+                statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_%s_conversation ON %s(min(sender, receiver), max(sender, receiver), type, timestamp)", table, table));
+                createSearchIndex(statement, table);
+            }
+        }
+    }
+
+    /**
+     * Creates one monthly message partition with its indexes and seeded id sequence.
+     * Idempotent, so it is safe to call for a month that already exists.
+     */
+    public static void createMessagePartition(Connection connection, String month) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(String.format("""
+                CREATE TABLE IF NOT EXISTS messages_%s (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    sender INTEGER NOT NULL,
+                    receiver INTEGER NOT NULL,
+                    type INTEGER NOT NULL,
+                    content TEXT NOT NULL,
+                    status INTEGER DEFAULT 0,
+                    timestamp INTEGER DEFAULT (strftime('%%s', 'now') * 1000)
+                )
+            """, month));
+            seedMessageSequence(connection, month);
+            
+            statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_messages_%s_sender ON messages_%s(sender)", month, month));
+            statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_messages_%s_receiver ON messages_%s(receiver)", month, month));
+            // Conversation index for keyset history paging; the rowid (id) is implicitly the last key column
+            statement.execute(String.format("CREATE INDEX IF NOT EXISTS idx_messages_%s_conversation ON messages_%s(min(sender, receiver), max(sender, receiver), type, timestamp)", month, month));
+            createSearchIndex(statement, "messages_" + month);
+        }
+    }
+
+    /**
+     * Full-text index of one partition, filled in the background by SearchIndexer. It is
+     * contentless: rows are the message ids with their text pre-split by SearchText, and
+     * results are joined back to the partition for everything else.
+     */
+    private static void createSearchIndex(Statement statement, String table) throws SQLException {
+        statement.execute(String.format("CREATE VIRTUAL TABLE IF NOT EXISTS %s_fts USING fts5(content, content='', tokenize='unicode61 remove_diacritics 2')", table));
+    }
+
+    /**
+     * Starts a new month's ids at yyyyMM * 10^10 so message ids keep increasing across
+     * partitions and receipt watermarks can compare them directly. Tables that already
+     * have a sequence row are left alone.
+     */
+    public static void seedMessageSequence(Connection connection, String month) throws SQLException {
+        String sql = "INSERT INTO sqlite_sequence (name, seq) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM sqlite_sequence WHERE name = ?)";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, "messages_" + month);
+            stmt.setLong(2, Long.parseLong(month) * MESSAGE_ID_MONTH_FACTOR);
+            stmt.setString(3, "messages_" + month);
+            stmt.executeUpdate();
         }
     }
-}
\ No newline at end of file
+}
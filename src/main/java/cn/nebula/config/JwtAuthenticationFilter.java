@@ -0,0 +1,46 @@
+package cn.nebula.config;
+
+import cn.nebula.utils.JwtPrincipal;
+import cn.nebula.utils.JwtUtil;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Verifies the bearer token once per request and exposes the resulting principal
+ * both to Spring Security and as a request attribute, so controllers can take it
+ * with {@code @AuthenticationPrincipal} instead of re-parsing the header.
+ */
+public class JwtAuthenticationFilter extends OncePerRequestFilter {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final JwtUtil jwtUtil;
+
+    public JwtAuthenticationFilter(JwtUtil jwtUtil) {
+        this.jwtUtil = jwtUtil;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String header = request.getHeader("Authorization");
+        if (header != null) {
+            String token = header.startsWith(BEARER_PREFIX) ? header.substring(BEARER_PREFIX.length()) : header;
+            JwtPrincipal principal = jwtUtil.verify(token);
+            if (principal != null) {
+                request.setAttribute(JwtPrincipal.REQUEST_ATTRIBUTE, principal);
+                SecurityContextHolder.getContext().setAuthentication(
+                        new UsernamePasswordAuthenticationToken(principal, token, Collections.emptyList()));
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
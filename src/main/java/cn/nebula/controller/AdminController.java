@@ -0,0 +1,109 @@
+package cn.nebula.controller;
+
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.QueryLog;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.metrics.Metrics;
+import cn.nebula.service.AuthExecutor;
+import cn.nebula.service.MessageWriter;
+import cn.nebula.service.RefreshTokenStore;
+import cn.nebula.service.SearchIndexer;
+import cn.nebula.service.UserService;
+import cn.nebula.utils.JwtUtil;
+import cn.nebula.websocket.GroupFanout;
+import cn.nebula.websocket.InboundDispatcher;
+import cn.nebula.websocket.OutboundQueueManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/admin")
+public class AdminController {
+    
+    @Autowired
+    private MessageWriter messageWriter;
+    
+    @Autowired
+    private JwtUtil jwtUtil;
+    
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+    
+    @Autowired
+    private GroupFanout groupFanout;
+    
+    @Autowired
+    private SqliteDatabase database;
+    
+    @Autowired
+    private InboundDispatcher inboundDispatcher;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private SearchIndexer searchIndexer;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private AuthExecutor authExecutor;
+
+    @Autowired
+    private RefreshTokenStore refreshTokens;
+
+    @Autowired
+    private QueryLog queryLog;
+    
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("messageWriter", messageWriter.getStats());
+        response.put("jwt", jwtUtil.getCacheStats());
+        response.put("users", userService.getCacheStats());
+        response.put("authExecutor", authExecutor.getStats());
+        response.put("refreshTokens", refreshTokens.getStats());
+        response.put("outbound", outboundQueues.getStats());
+        response.put("groupFanout", groupFanout.getStats());
+        response.put("sqlite", database.getStats());
+        response.put("inbound", inboundDispatcher.getStats());
+        response.put("cluster", clusterRouter.getStats());
+        response.put("search", searchIndexer.getStats());
+        return ResponseEntity.ok(response);
+    }
+
+    // Prometheus text exposition format
+    @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public ResponseEntity<String> getMetrics() {
+        return ResponseEntity.ok(metrics.scrape());
+    }
+
+    // Per-template SQL statistics; empty unless sqlite.instrumentation.enabled is set
+    @GetMapping("/sql")
+    public ResponseEntity<Map<String, Object>> getSqlStats() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("sql", queryLog.getStats());
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/sql/slow")
+    public ResponseEntity<Map<String, Object>> getSlowQueries() {
+        List<Map<String, Object>> slowQueries = queryLog.getSlowQueries();
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("slowQueries", slowQueries);
+        response.put("count", slowQueries.size());
+        return ResponseEntity.ok(response);
+    }
+}
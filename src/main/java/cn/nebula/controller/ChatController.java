@@ -0,0 +1,153 @@
+package cn.nebula.controller;
+
+import cn.nebula.service.ChatService;
+import cn.nebula.service.SearchService;
+import cn.nebula.utils.JwtPrincipal;
+import cn.nebula.websocket.ChatWebSocketHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/chat")
+@CrossOrigin(origins = "*")
+public class ChatController {
+    
+    private static final int MAX_PAGE_SIZE = 100;
+    
+    @Autowired
+    private ChatService chatService;
+    
+    @Autowired
+    private SearchService searchService;
+    
+    @Autowired
+    private ChatWebSocketHandler chatWebSocketHandler;
+    
+    @GetMapping("/history")
+    public ResponseEntity<Map<String, Object>> getHistory(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestParam Long contactId,
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String cursor) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        try {
+            Map<String, Object> page = chatService.getChatHistory(principal.getUserId(), contactId,
+                    Math.max(1, Math.min(limit, MAX_PAGE_SIZE)), cursor);
+            response.put("success", true);
+            response.putAll(page);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("message", "无效的游标");
+            return ResponseEntity.badRequest().body(response);
+        }
+        
+        return ResponseEntity.ok(response);
+    }
+    
+    @GetMapping("/search")
+    public ResponseEntity<Map<String, Object>> search(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestParam String q,
+            @RequestParam(required = false) Long contactId,
+            @RequestParam(required = false) Long groupId,
+            @RequestParam(defaultValue = "20") int limit,
+            @RequestParam(required = false) String cursor) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        if (contactId != null && groupId != null) {
+            response.put("success", false);
+            response.put("message", "contactId和groupId不能同时指定");
+            return ResponseEntity.badRequest().body(response);
+        }
+        try {
+            Map<String, Object> page = searchService.search(principal.getUserId(), q, contactId, groupId,
+                    Math.max(1, Math.min(limit, MAX_PAGE_SIZE)), cursor);
+            response.put("success", true);
+            response.putAll(page);
+        } catch (IllegalArgumentException e) {
+            response.put("success", false);
+            response.put("message", "无效的搜索关键词或游标");
+            return ResponseEntity.badRequest().body(response);
+        }
+        
+        return ResponseEntity.ok(response);
+    }
+    
+    @GetMapping("/recent")
+    public ResponseEntity<Map<String, Object>> getRecentChats(@AuthenticationPrincipal JwtPrincipal principal) {
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("chats", chatService.getRecentChats(principal.getUserId()));
+        return ResponseEntity.ok(response);
+    }
+    
+    @GetMapping("/unread")
+    public ResponseEntity<Map<String, Object>> getUnreadCounts(@AuthenticationPrincipal JwtPrincipal principal) {
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("unread", chatService.getUnreadCounts(principal.getUserId()));
+        return ResponseEntity.ok(response);
+    }
+    
+    @PostMapping("/read")
+    public ResponseEntity<Map<String, Object>> markAsRead(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestBody Map<String, Object> request) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        Object fromUserId = request.get("fromUserId");
+        Object groupId = request.get("groupId");
+        if (fromUserId == null && groupId == null) {
+            response.put("success", false);
+            response.put("message", "fromUserId不能为空");
+            return ResponseEntity.badRequest().body(response);
+        }
+        
+        if (groupId != null) {
+            chatService.markGroupAsRead(principal.getUserId(), Long.parseLong(groupId.toString()));
+        } else {
+            Long senderId = Long.parseLong(fromUserId.toString());
+            Object upToId = request.get("upToId");
+            if (chatService.markMessagesAsRead(principal.getUserId(), senderId,
+                    upToId == null ? null : Long.parseLong(upToId.toString()))) {
+                chatWebSocketHandler.sendReceipt(principal.getUserId(), senderId);
+            }
+        }
+        response.put("success", true);
+        return ResponseEntity.ok(response);
+    }
+    
+    private ResponseEntity<Map<String, Object>> unauthorized() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", "无效的token");
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+    }
+}
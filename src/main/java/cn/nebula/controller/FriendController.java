@@ -0,0 +1,133 @@
+package cn.nebula.controller;
+
+import cn.nebula.service.FriendService;
+import cn.nebula.utils.JwtPrincipal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/friends")
+@CrossOrigin(origins = "*")
+public class FriendController {
+
+    @Autowired
+    private FriendService friendService;
+
+    /**
+     * The full list with its version as ETag. With since set to a previous version: 304
+     * if nothing changed, otherwise only the changes. A plain If-None-Match revalidation
+     * gets 304 or the full list, since a browser cache cannot apply a delta.
+     */
+    @GetMapping("/list")
+    public ResponseEntity<Map<String, Object>> getFriends(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestParam(required = false) String since,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        String known = since != null ? since : ifNoneMatch == null ? null : ifNoneMatch.replace("W/", "").replace("\"", "");
+        Map<String, Object> sync = friendService.getFriendsListSince(principal.getUserId(), known, since != null);
+        if (sync == null) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(known).build();
+        }
+
+        Map<String, Object> response = new HashMap<>(sync);
+        response.put("success", true);
+        return ResponseEntity.ok().eTag((String) sync.get("version")).body(response);
+    }
+
+    // Not versioned: presence changes all the time and is pushed over the WebSocket afterwards
+    @GetMapping("/presence")
+    public ResponseEntity<Map<String, Object>> getPresence(@AuthenticationPrincipal JwtPrincipal principal) {
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("presence", friendService.getFriendsPresence(principal.getUserId()));
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/requests")
+    public ResponseEntity<Map<String, Object>> getRequests(@AuthenticationPrincipal JwtPrincipal principal) {
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("requests", friendService.getFriendRequests(principal.getUserId()));
+        return ResponseEntity.ok(response);
+    }
+
+    @PostMapping("/request")
+    public ResponseEntity<Map<String, Object>> sendRequest(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestBody Map<String, Object> request) {
+
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        Object toUserId = request.get("toUserId");
+        if (toUserId == null) {
+            return badRequest("用户ID不能为空");
+        }
+
+        return ResponseEntity.ok(friendService.sendFriendRequest(principal.getUserId(), Long.parseLong(toUserId.toString())));
+    }
+
+    @PostMapping("/approve")
+    public ResponseEntity<Map<String, Object>> approve(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestBody Map<String, Object> request) {
+
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        Object fromUserId = request.get("fromUserId");
+        if (fromUserId == null) {
+            return badRequest("用户ID不能为空");
+        }
+        boolean accept = !Boolean.FALSE.equals(request.get("accept"));
+
+        return ResponseEntity.ok(friendService.approveFriendRequest(principal.getUserId(), Long.parseLong(fromUserId.toString()), accept));
+    }
+
+    @DeleteMapping("/{friendId}")
+    public ResponseEntity<Map<String, Object>> remove(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @PathVariable Long friendId) {
+
+        if (principal == null) {
+            return unauthorized();
+        }
+
+        return ResponseEntity.ok(friendService.removeFriend(principal.getUserId(), friendId));
+    }
+
+    private ResponseEntity<Map<String, Object>> badRequest(String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", message);
+        return ResponseEntity.badRequest().body(response);
+    }
+
+    private ResponseEntity<Map<String, Object>> unauthorized() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", "无效的token");
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+    }
+}
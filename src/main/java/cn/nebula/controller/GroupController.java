@@ -0,0 +1,135 @@
+package cn.nebula.controller;
+
+import cn.nebula.service.GroupService;
+import cn.nebula.utils.JwtPrincipal;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/groups")
+@CrossOrigin(origins = "*")
+public class GroupController {
+    
+    @Autowired
+    private GroupService groupService;
+    
+    @PostMapping("/create")
+    public ResponseEntity<Map<String, Object>> createGroup(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestBody Map<String, Object> request) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        String name = (String) request.get("name");
+        if (name == null || name.isBlank()) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("message", "群名称不能为空");
+            return ResponseEntity.badRequest().body(response);
+        }
+        
+        List<Long> members = new ArrayList<>();
+        if (request.get("members") instanceof List<?> list) {
+            for (Object member : list) {
+                members.add(Long.parseLong(member.toString()));
+            }
+        }
+        
+        return ResponseEntity.ok(groupService.createGroup(principal.getUserId(), name, members));
+    }
+    
+    @GetMapping("/my-groups")
+    public ResponseEntity<Map<String, Object>> getMyGroups(@AuthenticationPrincipal JwtPrincipal principal) {
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("groups", groupService.getUserGroups(principal.getUserId()));
+        return ResponseEntity.ok(response);
+    }
+    
+    @GetMapping("/{groupId}/members")
+    public ResponseEntity<Map<String, Object>> getMembers(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @PathVariable Long groupId) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        if (!groupService.isMember(groupId, principal.getUserId())) {
+            response.put("success", false);
+            response.put("message", "您不是该群成员");
+            return ResponseEntity.ok(response);
+        }
+        
+        response.put("success", true);
+        response.put("members", groupService.getMembers(groupId));
+        return ResponseEntity.ok(response);
+    }
+    
+    @PostMapping("/{groupId}/invite")
+    public ResponseEntity<Map<String, Object>> invite(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @PathVariable Long groupId,
+            @RequestBody Map<String, Object> request) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        Object userId = request.get("userId");
+        if (userId == null) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("message", "用户ID不能为空");
+            return ResponseEntity.badRequest().body(response);
+        }
+        
+        return ResponseEntity.ok(groupService.inviteMember(principal.getUserId(), groupId, Long.parseLong(userId.toString())));
+    }
+    
+    @PostMapping("/{groupId}/leave")
+    public ResponseEntity<Map<String, Object>> leave(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @PathVariable Long groupId) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        return ResponseEntity.ok(groupService.leaveGroup(principal.getUserId(), groupId));
+    }
+    
+    @DeleteMapping("/{groupId}")
+    public ResponseEntity<Map<String, Object>> dissolve(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @PathVariable Long groupId) {
+        
+        if (principal == null) {
+            return unauthorized();
+        }
+        
+        return ResponseEntity.ok(groupService.dissolveGroup(principal.getUserId(), groupId));
+    }
+    
+    private ResponseEntity<Map<String, Object>> unauthorized() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", "无效的token");
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+    }
+}
@@ -2,13 +2,19 @@ package cn.nebula.controller;
 
 import cn.nebula.model.User;
 import cn.nebula.service.UserService;
-import cn.nebula.utils.JwtUtil;
+import cn.nebula.utils.JwtPrincipal;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/user")
@@ -18,11 +24,8 @@ public class UserController {
     @Autowired
     private UserService userService;
     
-    @Autowired
-    private JwtUtil jwtUtil;
-    
     @PostMapping("/register")
-    public ResponseEntity<Map<String, Object>> register(@RequestBody Map<String, String> request) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> register(@RequestBody Map<String, String> request) {
         String phone = request.get("phone");
         String password = request.get("password");
         String nickname = request.get("nickname");
@@ -31,15 +34,17 @@ public class UserController {
             Map<String, Object> response = new HashMap<>();
             response.put("success", false);
             response.put("message", "手机号和密码不能为空");
-            return ResponseEntity.badRequest().body(response);
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(response));
         }
         
-        Map<String, Object> result = userService.register(phone, password, nickname);
-        return ResponseEntity.ok(result);
+        // Completed on the auth executor; the request thread is released in the meantime
+        return userService.register(phone, password, nickname)
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(error -> authFailed(error, "注册失败"));
     }
     
     @PostMapping("/login")
-    public ResponseEntity<Map<String, Object>> login(@RequestBody Map<String, String> request) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> login(@RequestBody Map<String, String> request) {
         String phone = request.get("phone");
         String password = request.get("password");
         
@@ -47,52 +52,58 @@ public class UserController {
             Map<String, Object> response = new HashMap<>();
             response.put("success", false);
             response.put("message", "手机号和密码不能为空");
-            return ResponseEntity.badRequest().body(response);
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(response));
         }
         
-        Map<String, Object> result = userService.login(phone, password);
+        return userService.login(phone, password)
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(error -> authFailed(error, "登录失败"));
+    }
+    
+    @PostMapping("/refresh")
+    public ResponseEntity<Map<String, Object>> refresh(@RequestBody Map<String, String> request) {
+        Map<String, Object> result = userService.refresh(request.get("refreshToken"));
+        if (!Boolean.TRUE.equals(result.get("success"))) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(result);
+        }
         return ResponseEntity.ok(result);
     }
     
     @PostMapping("/logout")
-    public ResponseEntity<Map<String, Object>> logout(@RequestHeader("Authorization") String token) {
+    public ResponseEntity<Map<String, Object>> logout(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestBody(required = false) Map<String, String> request) {
         Map<String, Object> response = new HashMap<>();
         
-        try {
-            if (token.startsWith("Bearer ")) {
-                token = token.substring(7);
-            }
-            
-            Long userId = jwtUtil.getUserIdFromToken(token);
-            userService.updateUserStatus(userId, 0); // Set offline
-            
-            response.put("success", true);
-            response.put("message", "登出成功");
-        } catch (Exception e) {
+        // The refresh token ends its session even after the access token expired; without one
+        // every session of the authenticated user ends
+        boolean revoked = userService.logout(principal == null ? null : principal.getUserId(),
+                request == null ? null : request.get("refreshToken"));
+        if (principal == null && !revoked) {
             response.put("success", false);
             response.put("message", "登出失败");
+            return ResponseEntity.ok(response);
         }
         
+        // Presence follows the WebSocket connection, which the client closes on logout
+        response.put("success", true);
+        response.put("message", "登出成功");
+        
         return ResponseEntity.ok(response);
     }
     
     @GetMapping("/profile")
-    public ResponseEntity<Map<String, Object>> getProfile(@RequestHeader("Authorization") String token) {
+    public ResponseEntity<Map<String, Object>> getProfile(@AuthenticationPrincipal JwtPrincipal principal) {
         Map<String, Object> response = new HashMap<>();
         
+        if (principal == null) {
+            response.put("success", false);
+            response.put("message", "无效的token");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+        }
+        
         try {
-            if (token.startsWith("Bearer ")) {
-                token = token.substring(7);
-            }
-            
-            if (!jwtUtil.validateToken(token)) {
-                response.put("success", false);
-                response.put("message", "无效的token");
-                return ResponseEntity.unauthorized().body(response);
-            }
-            
-            Long userId = jwtUtil.getUserIdFromToken(token);
-            User user = userService.getUserById(userId);
+            User user = userService.getUserById(principal.getUserId());
             
             if (user != null) {
                 response.put("success", true);
@@ -111,27 +122,22 @@ public class UserController {
     
     @PutMapping("/profile")
     public ResponseEntity<Map<String, Object>> updateProfile(
-            @RequestHeader("Authorization") String token,
+            @AuthenticationPrincipal JwtPrincipal principal,
             @RequestBody Map<String, String> request) {
         
         Map<String, Object> response = new HashMap<>();
         
+        if (principal == null) {
+            response.put("success", false);
+            response.put("message", "无效的token");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(response);
+        }
+        
         try {
-            if (token.startsWith("Bearer ")) {
-                token = token.substring(7);
-            }
-            
-            if (!jwtUtil.validateToken(token)) {
-                response.put("success", false);
-                response.put("message", "无效的token");
-                return ResponseEntity.unauthorized().body(response);
-            }
-            
-            Long userId = jwtUtil.getUserIdFromToken(token);
             String nickname = request.get("nickname");
             String avatar = request.get("avatar");
             
-            boolean updated = userService.updateUserProfile(userId, nickname, avatar);
+            boolean updated = userService.updateUserProfile(principal.getUserId(), nickname, avatar);
             
             if (updated) {
                 response.put("success", true);
@@ -147,4 +153,18 @@ public class UserController {
         
         return ResponseEntity.ok(response);
     }
-}
\ No newline at end of file
+    
+    // The auth executor refusing work means overload: 503 so clients back off and retry
+    private ResponseEntity<Map<String, Object>> authFailed(Throwable error, String message) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        if (cause instanceof RejectedExecutionException) {
+            response.put("message", "服务繁忙，请稍后再试");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(response);
+        }
+        cause.printStackTrace();
+        response.put("message", message);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+    }
+}
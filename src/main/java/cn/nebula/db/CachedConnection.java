@@ -0,0 +1,321 @@
+package cn.nebula.db;
+
+import cn.nebula.metrics.Histogram;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A long-lived physical SQLite connection with an LRU cache of prepared statements.
+ * Callers never see the physical connection: each checkout gets a proxy whose close()
+ * hands the connection back instead of closing it, and whose prepareStatement() returns
+ * a cached statement whose close() just resets it for the next caller. Only one thread
+ * uses a connection at a time, so the cache itself needs no locking. Statement executions
+ * are timed per SQL template through SqlTimings, counting time inside the driver only, the
+ * same as QueryLog: SQLite produces query rows while they are read, so a query's time is
+ * the executeQuery call plus every next() call on its result set, recorded once the result
+ * set is exhausted or closed, or its statement is closed or executed again. What the
+ * caller does between next() calls is not counted.
+ */
+class CachedConnection {
+
+    private final Connection physical;
+    private final int cacheSize;
+    private final Map<StatementKey, PreparedStatement> statements;
+    private final Set<PreparedStatement> inUse = new HashSet<>();
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final SqlTimings timings;
+
+    CachedConnection(Connection physical, int cacheSize, LongAdder hits, LongAdder misses, SqlTimings timings) {
+        this.physical = physical;
+        this.cacheSize = cacheSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.timings = timings;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    Connection physical() {
+        return physical;
+    }
+
+    // A fresh handle for one checkout; release runs once when the caller closes it
+    Connection checkout(Runnable release) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new ConnectionHandle(release));
+    }
+
+    void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private PreparedStatement prepare(Connection handle, List<StatementHandle> opened, String sql, int autoGeneratedKeys) throws SQLException {
+        StatementKey key = new StatementKey(sql, autoGeneratedKeys);
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !inUse.contains(stmt)) {
+            hits.increment();
+        } else {
+            misses.increment();
+            PreparedStatement prepared = physical.prepareStatement(sql, autoGeneratedKeys);
+            if (stmt != null) {
+                // Same SQL already open further up the stack; use a one-off statement
+                return wrap(handle, opened, sql, prepared, false);
+            }
+            stmt = prepared;
+            statements.put(key, stmt);
+            evictOverflow();
+        }
+        inUse.add(stmt);
+        return wrap(handle, opened, sql, stmt, true);
+    }
+
+    private void evictOverflow() {
+        Iterator<PreparedStatement> it = statements.values().iterator();
+        while (statements.size() > cacheSize && it.hasNext()) {
+            PreparedStatement eldest = it.next();
+            if (!inUse.contains(eldest)) {
+                it.remove();
+                closeQuietly(eldest);
+            }
+        }
+    }
+
+    private PreparedStatement wrap(Connection handle, List<StatementHandle> opened, String sql, PreparedStatement stmt, boolean cached) {
+        StatementHandle statement = new StatementHandle(handle, stmt, cached, timings.forSql(sql));
+        opened.add(statement);
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, statement);
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ConnectionHandle implements InvocationHandler {
+        private final Runnable release;
+        private final List<StatementHandle> opened = new ArrayList<>();
+        private boolean closed;
+
+        ConnectionHandle(Runnable release) {
+            this.release = release;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        // Statements the caller forgot to close go back to the cache first
+                        for (StatementHandle statement : opened) {
+                            statement.close();
+                        }
+                        release.run();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || physical.isClosed();
+                case "unwrap":
+                    return physical.unwrap((Class<?>) args[0]);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CachedConnection[" + physical + "]";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection handle is closed");
+            }
+            if ("prepareStatement".equals(method.getName()) && args.length == 1) {
+                return prepare((Connection) proxy, opened, (String) args[0], Statement.NO_GENERATED_KEYS);
+            }
+            if ("prepareStatement".equals(method.getName()) && args.length == 2 && args[1] instanceof Integer keys) {
+                return prepare((Connection) proxy, opened, (String) args[0], keys);
+            }
+            return CachedConnection.invoke(physical, method, args);
+        }
+    }
+
+    private class StatementHandle implements InvocationHandler {
+        private final Connection handle;
+        private final PreparedStatement stmt;
+        private final boolean cached;
+        private final Histogram timer;
+        private ResultSet lastResult;
+        // Driver time so far of the query whose result set is still open
+        private long queryNanos;
+        private boolean queryOpen;
+        private boolean closed;
+
+        StatementHandle(Connection handle, PreparedStatement stmt, boolean cached, Histogram timer) {
+            this.handle = handle;
+            this.stmt = stmt;
+            this.cached = cached;
+            this.timer = timer;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return handle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if (!method.getName().startsWith("execute")) {
+                return CachedConnection.invoke(stmt, method, args);
+            }
+            // Running the statement again ends the previous result set
+            finishQuery();
+            Object result;
+            long start = System.nanoTime();
+            try {
+                result = CachedConnection.invoke(stmt, method, args);
+            } catch (SQLException e) {
+                timer.recordSince(start);
+                timings.failed();
+                throw e;
+            }
+            if (result instanceof ResultSet rs && "executeQuery".equals(method.getName())) {
+                lastResult = rs;
+                queryNanos = System.nanoTime() - start;
+                queryOpen = true;
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                        new ResultSetHandle((PreparedStatement) proxy, rs, this));
+            }
+            timer.recordSince(start);
+            return result;
+        }
+
+        private void finishQuery() {
+            if (queryOpen) {
+                queryOpen = false;
+                timer.record(queryNanos);
+            }
+        }
+
+        // Callers often leave the ResultSet open; close it so SQLite can end the read
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            finishQuery();
+            if (!cached) {
+                closeQuietly(stmt);
+                return;
+            }
+            try {
+                if (lastResult != null) {
+                    lastResult.close();
+                }
+                stmt.clearParameters();
+                stmt.clearBatch();
+            } catch (SQLException e) {
+                // A statement that cannot be reset is dropped from the cache
+                statements.values().remove(stmt);
+                closeQuietly(stmt);
+            } finally {
+                inUse.remove(stmt);
+            }
+        }
+    }
+
+    // Adds the time spent in next() to the query of the statement that opened the result set
+    private static class ResultSetHandle implements InvocationHandler {
+        private final PreparedStatement statementProxy;
+        private final ResultSet rs;
+        private final StatementHandle statement;
+
+        ResultSetHandle(PreparedStatement statementProxy, ResultSet rs, StatementHandle statement) {
+            this.statementProxy = statementProxy;
+            this.rs = rs;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next": {
+                    long start = System.nanoTime();
+                    boolean more = (Boolean) CachedConnection.invoke(rs, method, args);
+                    // A result set the statement has moved past no longer adds to its query
+                    if (statement.lastResult == rs) {
+                        statement.queryNanos += System.nanoTime() - start;
+                        if (!more) {
+                            statement.finishQuery();
+                        }
+                    }
+                    return more;
+                }
+                case "close":
+                    if (statement.lastResult == rs) {
+                        statement.finishQuery();
+                    }
+                    break;
+                case "getStatement":
+                    return statementProxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            return CachedConnection.invoke(rs, method, args);
+        }
+    }
+
+    private record StatementKey(String sql, int autoGeneratedKeys) {}
+}
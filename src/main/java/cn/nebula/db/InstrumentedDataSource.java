@@ -0,0 +1,250 @@
+package cn.nebula.db;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps a DataSource so every connection it hands out reports to a QueryLog: how long the
+ * caller waited for it, and per prepared statement the time and rows by SQL template.
+ * The wrapper is a subclass proxy of the DataSource bean, so code injecting
+ * SqliteDatabase and calling reader()/writer() is instrumented without changes.
+ *
+ * SQLite does the work of a query row by row, so a query's time is the executeQuery call
+ * plus every next() call on its result set, recorded once the result set is exhausted or
+ * closed (closing the statement or the connection closes it too). What the caller does
+ * between next() calls is not counted. Updates and batches are timed around the call.
+ */
+final class InstrumentedDataSource implements MethodInterceptor {
+
+    private final QueryLog log;
+
+    private InstrumentedDataSource(QueryLog log) {
+        this.log = log;
+    }
+
+    static Object wrap(DataSource target, QueryLog log) {
+        ProxyFactory factory = new ProxyFactory(target);
+        factory.setProxyTargetClass(true);
+        factory.addAdvice(new InstrumentedDataSource(log));
+        return factory.getProxy();
+    }
+
+    // reader(), writer() and getConnection() all return a Connection; the method name is the kind
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (invocation.getMethod().getReturnType() != Connection.class) {
+            return invocation.proceed();
+        }
+        String kind = invocation.getMethod().getName();
+        long start = System.nanoTime();
+        Connection connection = (Connection) invocation.proceed();
+        log.connectionAcquired(kind, System.nanoTime() - start);
+        return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                new ConnectionHandle(connection, kind));
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // One timed statement execution; finished exactly once
+    private class Execution {
+        final ConnectionHandle connection;
+        final String sql;
+        final String template;
+        // Time spent inside the driver so far
+        long nanos;
+        long rows;
+        boolean failed;
+        boolean finished;
+
+        Execution(ConnectionHandle connection, String sql, String template) {
+            this.connection = connection;
+            this.sql = sql;
+            this.template = template;
+            connection.running.add(this);
+        }
+
+        void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            connection.running.remove(this);
+            log.executed(template, sql, connection.kind, nanos, rows, failed);
+        }
+    }
+
+    private class ConnectionHandle implements InvocationHandler {
+        final Connection target;
+        final String kind;
+        // Queries whose result sets are still open; a connection is used by one thread at a time
+        final List<Execution> running = new ArrayList<>(2);
+
+        ConnectionHandle(Connection target, String kind) {
+            this.target = target;
+            this.kind = kind;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    for (Execution execution : new ArrayList<>(running)) {
+                        execution.finish();
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            Object result = forward(target, method, args);
+            if (result instanceof PreparedStatement stmt && "prepareStatement".equals(method.getName())) {
+                String sql = (String) args[0];
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+                        new StatementHandle((Connection) proxy, this, stmt, sql, SqlTimings.template(sql)));
+            }
+            return result;
+        }
+    }
+
+    private class StatementHandle implements InvocationHandler {
+        final Connection connectionProxy;
+        final ConnectionHandle connection;
+        final PreparedStatement target;
+        final String sql;
+        final String template;
+        Execution query;
+
+        StatementHandle(Connection connectionProxy, ConnectionHandle connection, PreparedStatement target, String sql, String template) {
+            this.connectionProxy = connectionProxy;
+            this.connection = connection;
+            this.target = target;
+            this.sql = sql;
+            this.template = template;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "getConnection":
+                    return connectionProxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (!name.startsWith("execute") && !"close".equals(name)) {
+                return forward(target, method, args);
+            }
+
+            // Closing the statement or running it again ends the previous result set
+            if (query != null) {
+                query.finish();
+                query = null;
+            }
+            if ("close".equals(name)) {
+                return forward(target, method, args);
+            }
+
+            Execution execution = new Execution(connection, sql, template);
+            Object result;
+            long start = System.nanoTime();
+            try {
+                result = forward(target, method, args);
+            } catch (SQLException e) {
+                execution.nanos = System.nanoTime() - start;
+                execution.failed = true;
+                execution.finish();
+                throw e;
+            }
+            execution.nanos = System.nanoTime() - start;
+            if (result instanceof ResultSet rs && "executeQuery".equals(name)) {
+                query = execution;
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                        new ResultSetHandle((PreparedStatement) proxy, rs, execution));
+            }
+            if (result instanceof Integer count) {
+                execution.rows = Math.max(0, count);
+            } else if (result instanceof Long count) {
+                execution.rows = Math.max(0, count);
+            } else if (result instanceof int[] counts) {
+                for (int count : counts) {
+                    execution.rows += Math.max(0, count);
+                }
+            } else if (result instanceof long[] counts) {
+                for (long count : counts) {
+                    execution.rows += Math.max(0, count);
+                }
+            } else if (Boolean.FALSE.equals(result)) {
+                execution.rows = Math.max(0, target.getUpdateCount());
+            }
+            execution.finish();
+            return result;
+        }
+    }
+
+    private static class ResultSetHandle implements InvocationHandler {
+        final PreparedStatement statementProxy;
+        final ResultSet target;
+        final Execution execution;
+
+        ResultSetHandle(PreparedStatement statementProxy, ResultSet target, Execution execution) {
+            this.statementProxy = statementProxy;
+            this.target = target;
+            this.execution = execution;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next": {
+                    long start = System.nanoTime();
+                    boolean more = (Boolean) forward(target, method, args);
+                    execution.nanos += System.nanoTime() - start;
+                    if (more) {
+                        execution.rows++;
+                    } else {
+                        execution.finish();
+                    }
+                    return more;
+                }
+                case "close":
+                    execution.finish();
+                    break;
+                case "getStatement":
+                    return statementProxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            return forward(target, method, args);
+        }
+    }
+}
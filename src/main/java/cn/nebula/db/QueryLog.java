@@ -0,0 +1,277 @@
+package cn.nebula.db;
+
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Histogram;
+import cn.nebula.metrics.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What InstrumentedDataSource observes: time and rows per SQL template, how long callers
+ * waited for each kind of connection, and a ring buffer of the most recent statements
+ * that took longer than slowQueryMs, each with its EXPLAIN QUERY PLAN. A slow statement
+ * only queues its template: a background thread explains it on a reader connection, so
+ * the caller's connection (possibly the writer, inside a batch transaction) is never used
+ * for it. Plans are kept per template for planTtlMs, so a template that is slow every time
+ * is explained once per interval, and a slow-log entry shows the latest plan of its
+ * template, or none while the plan is still queued.
+ */
+@Component
+public class QueryLog {
+
+    private static final int MAX_TEMPLATES = 500;
+    private static final String OTHER = "other";
+    private static final int MAX_QUEUED_PLANS = 64;
+
+    @Autowired
+    private Metrics metrics;
+
+    // Looked up lazily: the database bean is wrapped using this log
+    @Autowired
+    private ObjectProvider<SqliteDatabase> database;
+
+    @Value("${sqlite.instrumentation.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sqlite.instrumentation.slow-query-ms:50}")
+    private long slowQueryMs;
+
+    @Value("${sqlite.instrumentation.slow-log-size:200}")
+    private int slowLogSize;
+
+    @Value("${sqlite.instrumentation.plan-ttl-ms:60000}")
+    private long planTtlMs;
+
+    private final Map<String, TemplateStats> templates = new ConcurrentHashMap<>();
+    private final Map<String, WaitStats> waits = new ConcurrentHashMap<>();
+    private final Map<String, Plan> plans = new ConcurrentHashMap<>();
+    // Templates waiting for the explain thread, with the SQL to explain
+    private final Map<String, String> queuedPlans = new ConcurrentHashMap<>();
+    private final AtomicLong slowSequence = new AtomicLong();
+    private AtomicReferenceArray<SlowQuery> slowLog;
+    private ThreadPoolExecutor explainer;
+
+    @PostConstruct
+    public void init() {
+        slowLog = new AtomicReferenceArray<>(slowLogSize);
+        // One thread and a bounded queue: when it falls behind, plans are skipped, not callers
+        explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_PLANS), r -> {
+            Thread t = new Thread(r, "sql-explain");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        explainer.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    void connectionAcquired(String kind, long waitNanos) {
+        waits.computeIfAbsent(kind, k -> new WaitStats(metrics.histogram("nebula_sql_connection_wait_seconds",
+                "Time callers waited for a database connection", "kind", k))).record(waitNanos);
+    }
+
+    void executed(String template, String sql, String connectionKind, long nanos, long rows, boolean failed) {
+        TemplateStats stats = templates.get(template);
+        if (stats == null) {
+            String key = templates.size() >= MAX_TEMPLATES ? OTHER : template;
+            stats = templates.computeIfAbsent(key, t -> new TemplateStats(
+                    metrics.counter("nebula_sql_rows_total", "Rows read or written by SQL template", "statement", t)));
+        }
+        stats.record(nanos, rows, failed);
+
+        if (nanos >= slowQueryMs * 1_000_000L) {
+            SlowQuery entry = new SlowQuery(System.currentTimeMillis(), template, connectionKind, nanos / 1_000_000.0,
+                    rows, failed, Thread.currentThread().getName());
+            slowLog.set((int) (slowSequence.getAndIncrement() % slowLogSize), entry);
+            queuePlan(template, sql);
+        }
+    }
+
+    private void queuePlan(String template, String sql) {
+        Plan plan = plans.get(template);
+        if (plan != null && System.currentTimeMillis() - plan.capturedAt() < planTtlMs) {
+            return;
+        }
+        if (plan == null && plans.size() >= MAX_TEMPLATES) {
+            return;
+        }
+        if (queuedPlans.putIfAbsent(template, sql) == null) {
+            try {
+                explainer.execute(() -> capturePlan(template));
+            } catch (RejectedExecutionException e) {
+                queuedPlans.remove(template);
+            }
+        }
+    }
+
+    private void capturePlan(String template) {
+        String sql = queuedPlans.get(template);
+        try {
+            plans.put(template, new Plan(explain(sql), System.currentTimeMillis()));
+        } finally {
+            queuedPlans.remove(template);
+        }
+    }
+
+    // The plan tree as indented detail lines; parameters stay unbound, which does not change the plan
+    private List<String> explain(String sql) {
+        List<String> lines = new ArrayList<>();
+        try (Connection connection = database.getObject().reader();
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery("EXPLAIN QUERY PLAN " + sql);
+            Map<Integer, Integer> depths = new HashMap<>();
+            while (rs.next()) {
+                int depth = depths.getOrDefault(rs.getInt("parent"), -1) + 1;
+                depths.put(rs.getInt("id"), depth);
+                lines.add("  ".repeat(depth) + rs.getString("detail"));
+            }
+        } catch (SQLException e) {
+            lines.add("EXPLAIN failed: " + e.getMessage());
+        }
+        return lines;
+    }
+
+    // Most recent first
+    public List<Map<String, Object>> getSlowQueries() {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        long next = slowSequence.get();
+        for (long i = next - 1; i >= Math.max(0, next - slowLogSize); i--) {
+            SlowQuery entry = slowLog.get((int) (i % slowLogSize));
+            if (entry != null) {
+                Plan plan = plans.get(entry.statement());
+                entries.add(entry.toMap(plan == null ? null : plan.lines()));
+            }
+        }
+        return entries;
+    }
+
+    // Templates by total time spent, the most expensive first
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("slowQueryMs", slowQueryMs);
+        stats.put("slowQueries", slowSequence.get());
+
+        Map<String, Object> connectionWaits = new LinkedHashMap<>();
+        waits.forEach((kind, wait) -> connectionWaits.put(kind, wait.toMap()));
+        stats.put("connectionWaits", connectionWaits);
+
+        List<Map<String, Object>> statements = new ArrayList<>();
+        templates.forEach((template, templateStats) -> statements.add(templateStats.toMap(template)));
+        statements.sort(Comparator.comparingDouble((Map<String, Object> s) -> (Double) s.get("totalMillis")).reversed());
+        stats.put("statements", statements.subList(0, Math.min(statements.size(), 100)));
+        return stats;
+    }
+
+    private static class TemplateStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final Counter rowsCounter;
+
+        TemplateStats(Counter rowsCounter) {
+            this.rowsCounter = rowsCounter;
+        }
+
+        void record(long nanos, long rowCount, boolean failed) {
+            count.increment();
+            totalNanos.add(nanos);
+            rows.add(rowCount);
+            rowsCounter.add(rowCount);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            if (failed) {
+                failures.increment();
+            }
+        }
+
+        Map<String, Object> toMap(String template) {
+            long executions = count.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("statement", template);
+            map.put("count", executions);
+            map.put("failures", failures.sum());
+            map.put("totalMillis", totalNanos.sum() / 1_000_000.0);
+            map.put("avgMillis", executions == 0 ? 0.0 : totalNanos.sum() / 1_000_000.0 / executions);
+            map.put("maxMillis", maxNanos.get() / 1_000_000.0);
+            map.put("rows", rows.sum());
+            map.put("avgRows", executions == 0 ? 0.0 : (double) rows.sum() / executions);
+            return map;
+        }
+    }
+
+    private static class WaitStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final Histogram histogram;
+
+        WaitStats(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            histogram.record(nanos);
+        }
+
+        Map<String, Object> toMap() {
+            long checkouts = count.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("checkouts", checkouts);
+            map.put("avgWaitMillis", checkouts == 0 ? 0.0 : totalNanos.sum() / 1_000_000.0 / checkouts);
+            map.put("maxWaitMillis", maxNanos.get() / 1_000_000.0);
+            return map;
+        }
+    }
+
+    private record Plan(List<String> lines, long capturedAt) {}
+
+    private record SlowQuery(long timestamp, String statement, String connection, double millis, long rows,
+                             boolean failed, String thread) {
+        Map<String, Object> toMap(List<String> plan) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("timestamp", timestamp);
+            map.put("statement", statement);
+            map.put("connection", connection);
+            map.put("millis", millis);
+            map.put("rows", rows);
+            map.put("failed", failed);
+            map.put("thread", thread);
+            map.put("plan", plan);
+            return map;
+        }
+    }
+}
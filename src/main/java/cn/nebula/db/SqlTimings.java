@@ -0,0 +1,56 @@
+package cn.nebula.db;
+
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Histogram;
+import cn.nebula.metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Time prepared statements spend in the driver per SQL template, as the nebula_sql_seconds
+ * histogram; CachedConnection decides what counts, the same way QueryLog does. The services build SQL with String.format, so the label folds the parts that
+ * vary between otherwise identical statements: whitespace, the month of a message
+ * partition and the length of "?, ?, ?" lists. Raw SQL strings map to their histogram
+ * directly, so the folding runs once per distinct string.
+ */
+final class SqlTimings {
+
+    private static final int MAX_CACHED_SQL = 4096;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern PARTITION = Pattern.compile("messages_\\d{6}");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+    private final Metrics metrics;
+    private final Counter errors;
+    private final Map<String, Histogram> bySql = new ConcurrentHashMap<>();
+
+    SqlTimings(Metrics metrics) {
+        this.metrics = metrics;
+        this.errors = metrics.errors("sql");
+    }
+
+    Histogram forSql(String sql) {
+        Histogram histogram = bySql.get(sql);
+        if (histogram == null) {
+            histogram = metrics.histogram("nebula_sql_seconds", "Prepared statement time in the driver by SQL template",
+                    "statement", template(sql));
+            if (bySql.size() < MAX_CACHED_SQL) {
+                bySql.put(sql, histogram);
+            }
+        }
+        return histogram;
+    }
+
+    void failed() {
+        errors.increment();
+    }
+
+    static String template(String sql) {
+        String template = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        template = PARTITION.matcher(template).replaceAll("messages_YYYYMM");
+        return PARAMETER_LIST.matcher(template).replaceAll("?, ...");
+    }
+}
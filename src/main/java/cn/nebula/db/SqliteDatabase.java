@@ -0,0 +1,307 @@
+package cn.nebula.db;
+
+import cn.nebula.metrics.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * SQLite access split the way WAL wants it: one writer connection that callers take in
+ * turn, and a pool of read-only connections that run in parallel with it and with each
+ * other. Every connection applies the configured pragma profile and keeps its own
+ * prepared-statement cache. Code that asks for a plain DataSource connection gets the
+ * writer, so anything not yet routed explicitly stays correct.
+ *
+ * All checkouts also pass a fair admission limit. With request handling on virtual threads
+ * there can be thousands of callers at once; the limit makes them queue in one place, with
+ * a timeout, instead of on the writer lock and the read pool. Neither the limit of 32 nor
+ * its effect on latency has been measured yet; treat it as an unvalidated default until
+ * nebula-loadtest's A/B results are committed.
+ */
+@Component
+public class SqliteDatabase implements DataSource {
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value("${spring.datasource.url:jdbc:sqlite:nebula.db}")
+    private String url;
+
+    @Value("${sqlite.read-pool-size:4}")
+    private int readPoolSize;
+
+    @Value("${sqlite.read-wait-timeout-ms:5000}")
+    private long readWaitTimeoutMs;
+
+    @Value("${sqlite.max-concurrent-callers:32}")
+    private int maxConcurrentCallers;
+
+    @Value("${sqlite.admission-timeout-ms:5000}")
+    private long admissionTimeoutMs;
+
+    @Value("${sqlite.statement-cache-size:64}")
+    private int statementCacheSize;
+
+    @Value("${sqlite.pragma.synchronous:NORMAL}")
+    private String synchronous;
+
+    @Value("${sqlite.pragma.cache-size:-16000}")
+    private long cacheSize;
+
+    @Value("${sqlite.pragma.mmap-size:268435456}")
+    private long mmapSize;
+
+    @Value("${sqlite.pragma.temp-store:MEMORY}")
+    private String tempStore;
+
+    @Value("${sqlite.pragma.busy-timeout-ms:5000}")
+    private int busyTimeoutMs;
+
+    private CachedConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private BlockingQueue<CachedConnection> readers;
+    private final List<CachedConnection> allReaders = new ArrayList<>();
+    private Semaphore admission;
+
+    // Open checkouts made by each thread; a thread holds one admission permit while any is
+    // open. Each handle keeps the counter of the thread that opened it, so a handle closed on
+    // another thread still settles the right count.
+    private final ThreadLocal<AtomicInteger> checkouts = ThreadLocal.withInitial(AtomicInteger::new);
+
+    private final LongAdder writerCheckouts = new LongAdder();
+    private final LongAdder writerWaitNanos = new LongAdder();
+    private final LongAdder readerCheckouts = new LongAdder();
+    private final LongAdder readerWaitNanos = new LongAdder();
+    private final LongAdder readerTimeouts = new LongAdder();
+    private final LongAdder admissionWaitNanos = new LongAdder();
+    private final LongAdder admissionRejected = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    @PostConstruct
+    public void open() throws SQLException {
+        admission = new Semaphore(maxConcurrentCallers, true);
+        SqlTimings timings = new SqlTimings(metrics);
+
+        // The writer goes first so the database is in WAL mode before any reader attaches
+        Connection physicalWriter = DriverManager.getConnection(url);
+        try (Statement statement = physicalWriter.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            applyPragmas(statement);
+        }
+        writer = new CachedConnection(physicalWriter, statementCacheSize, statementHits, statementMisses, timings);
+
+        readers = new ArrayBlockingQueue<>(readPoolSize);
+        for (int i = 0; i < readPoolSize; i++) {
+            Connection physicalReader = DriverManager.getConnection(url);
+            try (Statement statement = physicalReader.createStatement()) {
+                applyPragmas(statement);
+                statement.execute("PRAGMA query_only=ON");
+            }
+            CachedConnection reader = new CachedConnection(physicalReader, statementCacheSize, statementHits, statementMisses, timings);
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+    }
+
+    private void applyPragmas(Statement statement) throws SQLException {
+        statement.execute("PRAGMA synchronous=" + synchronous);
+        statement.execute("PRAGMA cache_size=" + cacheSize);
+        statement.execute("PRAGMA mmap_size=" + mmapSize);
+        statement.execute("PRAGMA temp_store=" + tempStore);
+        statement.execute("PRAGMA busy_timeout=" + busyTimeoutMs);
+    }
+
+    @PreDestroy
+    public void close() {
+        for (CachedConnection reader : allReaders) {
+            reader.close();
+        }
+        writerLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * The writer connection, held exclusively until the returned handle is closed.
+     * Re-entrant: a thread that already holds the writer gets it again, and only the
+     * outermost close ends any transaction left open and releases it.
+     */
+    public Connection writer() throws SQLException {
+        AtomicInteger admitted = admit();
+        long start = System.nanoTime();
+        writerLock.lock();
+        writerWaitNanos.add(System.nanoTime() - start);
+        writerCheckouts.increment();
+        return writer.checkout(() -> releaseWriter(admitted));
+    }
+
+    private void releaseWriter(AtomicInteger admitted) {
+        try {
+            if (writerLock.getHoldCount() == 1 && !writer.physical().getAutoCommit()) {
+                writer.physical().rollback();
+                writer.physical().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            writerLock.unlock();
+            leave(admitted);
+        }
+    }
+
+    // A read-only connection from the pool; writes through it fail with SQLITE_READONLY
+    public Connection reader() throws SQLException {
+        AtomicInteger admitted = admit();
+        long start = System.nanoTime();
+        CachedConnection reader;
+        try {
+            reader = readers.poll(readWaitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            leave(admitted);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read connection", e);
+        }
+        readerWaitNanos.add(System.nanoTime() - start);
+        if (reader == null) {
+            leave(admitted);
+            readerTimeouts.increment();
+            throw new SQLException("No read connection available within " + readWaitTimeoutMs + " ms");
+        }
+        readerCheckouts.increment();
+        return reader.checkout(() -> {
+            readers.add(reader);
+            leave(admitted);
+        });
+    }
+
+    // Counts a checkout for the current thread; only its first open checkout takes a permit
+    private AtomicInteger admit() throws SQLException {
+        AtomicInteger admitted = checkouts.get();
+        if (admitted.getAndIncrement() > 0) {
+            return admitted;
+        }
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = admission.tryAcquire(admissionTimeoutMs, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                admissionRejected.increment();
+                throw new SQLException("Database is busy, try again later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for database admission", e);
+        } finally {
+            admissionWaitNanos.add(System.nanoTime() - start);
+            if (!acquired) {
+                admitted.decrementAndGet();
+            }
+        }
+        return admitted;
+    }
+
+    // Called once per checkout with the counter admit() returned for it
+    private void leave(AtomicInteger admitted) {
+        if (admitted.decrementAndGet() == 0) {
+            admission.release();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return writer();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return writer();
+    }
+
+    public Map<String, Object> getStats() {
+        long writes = writerCheckouts.sum();
+        long reads = readerCheckouts.sum();
+        long hits = statementHits.sum();
+        long misses = statementMisses.sum();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxConcurrentCallers", maxConcurrentCallers);
+        stats.put("admissionAvailable", admission.availablePermits());
+        stats.put("admissionQueueLength", admission.getQueueLength());
+        stats.put("admissionRejected", admissionRejected.sum());
+        stats.put("admissionWaitMillis", admissionWaitNanos.sum() / 1_000_000.0);
+        stats.put("readPoolSize", readPoolSize);
+        stats.put("readersIdle", readers.size());
+        stats.put("readerCheckouts", reads);
+        stats.put("avgReaderWaitMillis", reads == 0 ? 0.0 : readerWaitNanos.sum() / 1_000_000.0 / reads);
+        stats.put("readerTimeouts", readerTimeouts.sum());
+        stats.put("writerCheckouts", writes);
+        stats.put("avgWriterWaitMillis", writes == 0 ? 0.0 : writerWaitNanos.sum() / 1_000_000.0 / writes);
+        stats.put("writerQueueLength", writerLock.getQueueLength());
+        stats.put("statementCacheHits", hits);
+        stats.put("statementCacheMisses", misses);
+        stats.put("statementCacheHitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        return stats;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
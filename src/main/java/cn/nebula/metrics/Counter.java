@@ -0,0 +1,26 @@
+package cn.nebula.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic count on a LongAdder, so increments from many threads land in separate cells
+ * instead of contending on one value.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {}
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long sum() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,68 @@
+package cn.nebula.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution over fixed buckets, recorded in nanoseconds and exported in
+ * seconds. Each bucket is its own LongAdder and holds only the observations that fall into
+ * it; the cumulative counts Prometheus expects are summed up at scrape time, so recording
+ * is a short scan of the bounds plus two uncontended adds.
+ */
+public final class Histogram {
+
+    // Upper bounds in seconds, from 100µs to 10s
+    static final double[] BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    // The bounds as "le" label values, plus "+Inf" for the overflow bucket
+    static final String[] LABELS = new String[BOUNDS.length + 1];
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1_000_000_000L);
+            LABELS[i] = BigDecimal.valueOf(BOUNDS[i]).toPlainString();
+        }
+        LABELS[BOUNDS.length] = "+Inf";
+    }
+
+    // One per bound plus the overflow (+Inf) bucket
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    // Records the time elapsed since a System.nanoTime() reading
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Non-cumulative count per bucket, the last one being +Inf
+    long[] bucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1_000_000_000.0;
+    }
+}
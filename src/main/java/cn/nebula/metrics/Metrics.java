@@ -0,0 +1,144 @@
+package cn.nebula.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process metrics registry, exported in the Prometheus text format at
+ * /api/admin/metrics. Metrics are named families of counters, histograms or gauges, each
+ * with at most one label. Hot paths should look a metric up once and keep the reference;
+ * recording is then only LongAdder work, and nothing is aggregated until a scrape.
+ */
+@Component
+public class Metrics {
+
+    // Distinct values of one label beyond this are folded into "other"
+    static final int MAX_LABEL_VALUES = 500;
+    static final String OTHER = "other";
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    // Pre-registered so error kinds can be counted without a lookup of their own
+    private final Family errors = family("nebula_errors_total", "Errors by kind", Type.COUNTER, "kind");
+
+    public Counter counter(String name, String help) {
+        return (Counter) family(name, help, Type.COUNTER, null).child("");
+    }
+
+    public Counter counter(String name, String help, String label, String value) {
+        return (Counter) family(name, help, Type.COUNTER, label).child(value);
+    }
+
+    public Histogram histogram(String name, String help) {
+        return (Histogram) family(name, help, Type.HISTOGRAM, null).child("");
+    }
+
+    public Histogram histogram(String name, String help, String label, String value) {
+        return (Histogram) family(name, help, Type.HISTOGRAM, label).child(value);
+    }
+
+    // Read at scrape time; registering the same name again replaces the supplier
+    public void gauge(String name, String help, LongSupplier value) {
+        family(name, help, Type.GAUGE, null).children.put("", value);
+    }
+
+    public Counter errors(String kind) {
+        return (Counter) errors.child(kind);
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, Type type, String label) {
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, label));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private enum Type {
+        COUNTER("counter"), HISTOGRAM("histogram"), GAUGE("gauge");
+
+        final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final String label;
+        final Map<String, Object> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type, String label) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+        }
+
+        Object child(String value) {
+            Object child = children.get(value);
+            if (child != null) {
+                return child;
+            }
+            if (children.size() >= MAX_LABEL_VALUES) {
+                value = OTHER;
+            }
+            return children.computeIfAbsent(value, v -> type == Type.HISTOGRAM ? new Histogram() : new Counter());
+        }
+
+        void write(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type.text).append('\n');
+            for (Map.Entry<String, Object> entry : children.entrySet()) {
+                String labels = label == null ? "" : label + "=\"" + escape(entry.getKey()) + "\"";
+                Object child = entry.getValue();
+                if (child instanceof Counter counter) {
+                    sample(out, name, labels, counter.sum());
+                } else if (child instanceof LongSupplier gauge) {
+                    sample(out, name, labels, gauge.getAsLong());
+                } else if (child instanceof Histogram histogram) {
+                    String separator = labels.isEmpty() ? "" : ",";
+                    long[] counts = histogram.bucketCounts();
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        sample(out, name + "_bucket", labels + separator + "le=\"" + Histogram.LABELS[i] + "\"", cumulative);
+                    }
+                    out.append(name).append("_sum");
+                    if (!labels.isEmpty()) {
+                        out.append('{').append(labels).append('}');
+                    }
+                    out.append(' ').append(histogram.sumSeconds()).append('\n');
+                    sample(out, name + "_count", labels, cumulative);
+                }
+            }
+        }
+
+        private static void sample(StringBuilder out, String name, String labels, long value) {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package cn.nebula.service;
+
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Histogram;
+import cn.nebula.metrics.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs password hashing (BCrypt, on the order of 100ms of CPU each) on a small fixed pool
+ * instead of the request threads. Admission is by queue: when queueCapacity hashes are
+ * already waiting the next one is refused at once, and a hash that waited longer than
+ * maxWaitMs is dropped unstarted because its caller has most likely given up. A login
+ * storm therefore costs at most `threads` cores and fails fast beyond that, rather than
+ * queueing requests until every client times out. What comes after a hash (writing the
+ * new user, issuing a refresh token) runs on a separate small pool, so auth threads never
+ * wait on the database writer.
+ */
+@Component
+public class AuthExecutor {
+
+    @Autowired
+    private Metrics metrics;
+
+    // 0: half of the available processors
+    @Value("${auth.bcrypt.threads:0}")
+    private int threads;
+
+    @Value("${auth.bcrypt.queue-capacity:64}")
+    private int queueCapacity;
+
+    @Value("${auth.bcrypt.max-wait-ms:2000}")
+    private long maxWaitMs;
+
+    @Value("${auth.session-threads:2}")
+    private int sessionThreads;
+
+    private ThreadPoolExecutor executor;
+    private ExecutorService sessionExecutor;
+
+    private Histogram queueWait;
+    private Histogram hashTime;
+    private Counter completed;
+    private Counter rejectedFull;
+    private Counter rejectedTimeout;
+
+    @PostConstruct
+    public void start() {
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "auth-bcrypt-" + index.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        // Unbounded: it only ever receives work that already got through the hash queue
+        AtomicInteger sessionIndex = new AtomicInteger();
+        sessionExecutor = Executors.newFixedThreadPool(sessionThreads, r -> {
+            Thread t = new Thread(r, "auth-session-" + sessionIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        queueWait = metrics.histogram("nebula_auth_queue_wait_seconds", "Time password hashes waited for an auth thread");
+        hashTime = metrics.histogram("nebula_auth_hash_seconds", "Time spent hashing or checking a password");
+        completed = metrics.counter("nebula_auth_hashes_total", "Password hashes run on the auth executor");
+        rejectedFull = metrics.counter("nebula_auth_rejected_total", "Password hashes refused by the auth executor", "reason", "queue_full");
+        rejectedTimeout = metrics.counter("nebula_auth_rejected_total", "Password hashes refused by the auth executor", "reason", "wait_timeout");
+        metrics.gauge("nebula_auth_queue_depth", "Password hashes waiting for an auth thread", () -> executor.getQueue().size());
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+        sessionExecutor.shutdown();
+    }
+
+    /**
+     * Runs the work on an auth thread. The future fails with RejectedExecutionException if
+     * the queue is full or the work waited longer than maxWaitMs.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long waited = System.nanoTime() - queuedAt;
+                queueWait.record(waited);
+                if (waited > TimeUnit.MILLISECONDS.toNanos(maxWaitMs)) {
+                    rejectedTimeout.increment();
+                    future.completeExceptionally(new RejectedExecutionException("Waited " + waited / 1_000_000 + "ms for an auth thread"));
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    future.complete(work.get());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    hashTime.recordSince(start);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedFull.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the work on an auth thread and then, on the session pool, applies the follow-up
+     * to its result; the follow-up is where database writes belong.
+     */
+    public <T, R> CompletableFuture<R> submit(Supplier<T> work, Function<T, R> then) {
+        return submit(work).thenApplyAsync(then, sessionExecutor);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", threads);
+        stats.put("sessionThreads", sessionThreads);
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("maxWaitMs", maxWaitMs);
+        stats.put("completed", completed.sum());
+        stats.put("rejectedQueueFull", rejectedFull.sum());
+        stats.put("rejectedWaitTimeout", rejectedTimeout.sum());
+        return stats;
+    }
+}
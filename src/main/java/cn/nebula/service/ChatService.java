@@ -1,185 +1,388 @@
 package cn.nebula.service;
 
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Histogram;
+import cn.nebula.metrics.Metrics;
 import cn.nebula.model.Message;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Service
 public class ChatService {
 
     @Autowired
-    private DataSource dataSource;
+    private SqliteDatabase database;
 
     @Autowired
     private FriendService friendService;
 
-    private String getCurrentMessageTable() {
-        String currentMonth = LocalDate.now().toString().substring(0, 7).replace("-", "");
-        return "messages_" + currentMonth;
+    @Autowired
+    private GroupService groupService;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @Autowired
+    private ConversationStore conversationStore;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
+
+    @Autowired
+    private ReceiptStore receiptStore;
+
+    @Autowired
+    private PartitionManager partitionManager;
+
+    @Autowired
+    private Metrics metrics;
+
+    private Histogram saveLatency;
+    private Counter saveErrors;
+    private Counter saveRefused;
+
+    @PostConstruct
+    public void registerMetrics() {
+        saveLatency = metrics.histogram("nebula_message_save_seconds", "Time from submitting a message until its batch is committed");
+        saveErrors = metrics.errors("save");
+        saveRefused = metrics.errors("save_refused");
     }
 
     public boolean saveMessage(Long sender, Long receiver, Integer type, String content) {
+        try {
+            return saveMessageAsync(sender, receiver, type, content).join() != null;
+        } catch (CompletionException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Completes with the new message id once the write-behind batch is committed, or null if rejected
+    public CompletableFuture<Long> saveMessageAsync(Long sender, Long receiver, Integer type, String content) {
+        // Only private (0) and group (1) messages have a check below; any other type would be stored unchecked
+        if (type == null || (type != 0 && type != 1)) {
+            saveRefused.increment();
+            return CompletableFuture.completedFuture(null);
+        }
         // Check if users are friends (for private messages)
         if (type == 0 && !friendService.areFriends(sender, receiver)) {
-            return false;
+            saveRefused.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        // Group messages are addressed to the group id; only members may post
+        if (type == 1 && !groupService.isMember(receiver, sender)) {
+            saveRefused.increment();
+            return CompletableFuture.completedFuture(null);
         }
 
-        try (Connection conn = dataSource.getConnection()) {
-            String tableName = getCurrentMessageTable();
-            String sql = String.format("INSERT INTO %s (sender, receiver, type, content, status, timestamp) VALUES (?, ?, ?, ?, 0, ?)", tableName);
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, sender);
-                stmt.setLong(2, receiver);
-                stmt.setInt(3, type);
-                stmt.setString(4, content);
-                stmt.setLong(5, System.currentTimeMillis());
-                
-                return stmt.executeUpdate() > 0;
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+        return messageWriter.submit(partitionManager.getTable(timestamp), sender, receiver, type, content, timestamp)
+                .whenComplete((id, error) -> {
+                    if (error == null) {
+                        saveLatency.recordSince(start);
+                    } else {
+                        saveErrors.increment();
+                    }
+                });
+    }
+
+    /**
+     * Client ack covering every message from the sender up to the given ids; null ids are
+     * ignored. Both the sender and the ids come from the client, so acks for a pair without
+     * a conversation are dropped and the ids are capped at the conversation's newest message:
+     * watermarks only move forward, and an ack past it would cover messages not sent yet.
+     */
+    public boolean acknowledge(Long receiverId, Long senderId, Long deliveredUpTo, Long readUpTo) {
+        long lastMessageId = senderId == null ? 0L : conversationStore.getLastMessageId(receiverId, senderId, ConversationStore.PEER_USER);
+        if (lastMessageId <= 0) {
+            return false;
         }
-        return false;
+        boolean advanced = false;
+        if (deliveredUpTo != null) {
+            advanced = receiptStore.markDelivered(receiverId, senderId, Math.min(deliveredUpTo, lastMessageId));
+        }
+        if (readUpTo != null) {
+            long capped = Math.min(readUpTo, lastMessageId);
+            advanced |= receiptStore.markRead(receiverId, senderId, capped);
+            updateUnread(receiverId, senderId, capped);
+        }
+        return advanced;
     }
 
-    public boolean updateMessageStatus(Long sender, Long receiver, Integer status) {
-        try (Connection conn = dataSource.getConnection()) {
-            String tableName = getCurrentMessageTable();
-            String sql = String.format("UPDATE %s SET status = ? WHERE sender = ? AND receiver = ? AND status < ?", tableName);
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setInt(1, status);
-                stmt.setLong(2, sender);
-                stmt.setLong(3, receiver);
-                stmt.setInt(4, status);
-                
-                return stmt.executeUpdate() > 0;
+    // Zeroes the unread count if the receiver read up to the newest message, otherwise recounts what is left
+    private void updateUnread(Long receiverId, Long senderId, long readUpTo) {
+        if (readUpTo >= conversationStore.getLastMessageId(receiverId, senderId, ConversationStore.PEER_USER)) {
+            unreadCounters.reset(receiverId, senderId, ConversationStore.PEER_USER);
+            return;
+        }
+
+        int unread = 0;
+        try (Connection conn = database.reader()) {
+            for (String tableName : partitionManager.getTablesAfterId(readUpTo)) {
+                String sql = String.format("SELECT COUNT(*) FROM %s WHERE receiver = ? AND id > ? AND sender = ? AND type = 0", tableName);
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setLong(1, receiverId);
+                    stmt.setLong(2, readUpTo);
+                    stmt.setLong(3, senderId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next()) {
+                        unread += rs.getInt(1);
+                    }
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return;
         }
-        return false;
+        unreadCounters.set(receiverId, senderId, ConversationStore.PEER_USER, unread);
     }
 
-    public List<Map<String, Object>> getChatHistory(Long userId, Long otherUserId, int limit, long offset) {
+    /**
+     * Returns one page of a private conversation, newest first, using keyset pagination on
+     * (timestamp, id). The cursor is the opaque token returned as nextCursor by the previous
+     * page (null for the first page); nextCursor is null once the history is exhausted.
+     * Pages walk backwards through the monthly partitions and stop as soon as they are full.
+     */
+    public Map<String, Object> getChatHistory(Long userId, Long otherUserId, int limit, String cursor) {
+        Map<String, Object> result = new HashMap<>();
         List<Map<String, Object>> messages = new ArrayList<>();
+        result.put("messages", messages);
+        result.put("nextCursor", null);
         
         if (!friendService.areFriends(userId, otherUserId)) {
-            return messages;
-        }
-
-        try (Connection conn = dataSource.getConnection()) {
-            String tableName = getCurrentMessageTable();
-            String sql = String.format("""
-                SELECT id, sender, receiver, content, status, timestamp 
-                FROM %s 
-                WHERE ((sender = ? AND receiver = ?) OR (sender = ? AND receiver = ?)) AND type = 0
-                ORDER BY timestamp DESC 
-                LIMIT ? OFFSET ?
-                """, tableName);
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId);
-                stmt.setLong(2, otherUserId);
-                stmt.setLong(3, otherUserId);
-                stmt.setLong(4, userId);
-                stmt.setInt(5, limit);
-                stmt.setLong(6, offset);
-                
-                ResultSet rs = stmt.executeQuery();
+            return result;
+        }
+
+        // Start strictly before the cursor position, or at the newest message
+        long[] position = cursor == null || cursor.isEmpty() ? new long[] {Long.MAX_VALUE, Long.MAX_VALUE} : decodeCursor(cursor);
+        long lowUser = Math.min(userId, otherUserId);
+        long highUser = Math.max(userId, otherUserId);
+
+        // One row past the page tells whether there is anything left for a next page
+        int wanted = limit + 1;
+
+        try (Connection conn = database.reader()) {
+            // Only the partitions at or before the cursor's month
+            for (String tableName : partitionManager.getTables(Long.MIN_VALUE, position[0])) {
+                // Served by the conversation index as a single range scan
+                String sql = String.format("""
+                    SELECT id, sender, receiver, content, status, timestamp 
+                    FROM %s 
+                    WHERE min(sender, receiver) = ? AND max(sender, receiver) = ? AND type = 0
+                      AND (timestamp, id) < (?, ?)
+                    ORDER BY timestamp DESC, id DESC 
+                    LIMIT ?
+                    """, tableName);
                 
-                while (rs.next()) {
-                    Map<String, Object> message = new HashMap<>();
-                    message.put("id", rs.getLong("id"));
-                    message.put("sender", rs.getLong("sender"));
-                    message.put("receiver", rs.getLong("receiver"));
-                    message.put("content", rs.getString("content"));
-                    message.put("status", rs.getInt("status"));
-                    message.put("timestamp", rs.getLong("timestamp"));
-                    messages.add(message);
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setLong(1, lowUser);
+                    stmt.setLong(2, highUser);
+                    stmt.setLong(3, position[0]);
+                    stmt.setLong(4, position[1]);
+                    stmt.setInt(5, wanted - messages.size());
+                    
+                    ResultSet rs = stmt.executeQuery();
+                    
+                    while (rs.next()) {
+                        Map<String, Object> message = new HashMap<>();
+                        message.put("id", rs.getLong("id"));
+                        message.put("sender", rs.getLong("sender"));
+                        message.put("receiver", rs.getLong("receiver"));
+                        message.put("content", rs.getString("content"));
+                        // Rows written before receipts existed may still carry their own status
+                        message.put("status", Math.max(rs.getInt("status"),
+                                receiptStore.statusOf(rs.getLong("receiver"), rs.getLong("sender"), rs.getLong("id"))));
+                        message.put("timestamp", rs.getLong("timestamp"));
+                        messages.add(message);
+                    }
+                }
+
+                if (messages.size() >= wanted) {
+                    break;
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+
+        if (messages.size() > limit) {
+            messages.subList(limit, messages.size()).clear();
+            Map<String, Object> last = messages.get(limit - 1);
+            result.put("nextCursor", encodeCursor((Long) last.get("timestamp"), (Long) last.get("id")));
+        }
         
-        return messages;
+        return result;
     }
 
-    public List<Map<String, Object>> getRecentChats(Long userId) {
-        List<Map<String, Object>> chats = new ArrayList<>();
+    /**
+     * One batch of private messages to userId with ids in (afterId, upToId], oldest first.
+     * afterId is the replay cursor, not the delivered watermark: the watermark is one id per
+     * sender and live deliveries move it past older messages that never arrived, so only
+     * rows with their own legacy delivered status are skipped. The result carries the
+     * messages, the last id scanned as "cursor" (skipped rows included, so the next batch
+     * starts after them) and "done" once every partition up to upToId has been read.
+     */
+    public Map<String, Object> getUndeliveredMessages(Long userId, long afterId, long upToId, long sinceTimestamp, int limit) {
+        Map<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> messages = new ArrayList<>();
+        long cursor = afterId;
+        boolean done = true;
 
-        try (Connection conn = dataSource.getConnection()) {
-            String tableName = getCurrentMessageTable();
-            
-            // Get most recent message with each contact
-            String sql = String.format("""
-                SELECT 
-                    CASE WHEN sender = ? THEN receiver ELSE sender END as contact_id,
-                    content,
-                    timestamp,
-                    MAX(timestamp) as last_message_time
-                FROM %s 
-                WHERE (sender = ? OR receiver = ?) AND type = 0
-                GROUP BY contact_id
-                ORDER BY last_message_time DESC
-                """, tableName);
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId);
-                stmt.setLong(2, userId);
-                stmt.setLong(3, userId);
-                
-                ResultSet rs = stmt.executeQuery();
-                
-                while (rs.next()) {
-                    Map<String, Object> chat = new HashMap<>();
-                    chat.put("contactId", rs.getLong("contact_id"));
-                    chat.put("lastMessage", rs.getString("content"));
-                    chat.put("lastMessageTime", rs.getLong("timestamp"));
-                    chats.add(chat);
+        try (Connection conn = database.reader()) {
+            // Partitions in id order; the receiver index carries the rowid, so each query is one range scan
+            for (String tableName : partitionManager.getTablesAfterId(afterId)) {
+                String sql = String.format("""
+                    SELECT id, sender, receiver, content, status, timestamp
+                    FROM %s
+                    WHERE receiver = ? AND id > ? AND id <= ? AND type = 0 AND timestamp >= ?
+                    ORDER BY id
+                    LIMIT ?
+                    """, tableName);
+
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    boolean more = true;
+                    while (more && messages.size() < limit) {
+                        int wanted = limit - messages.size();
+                        stmt.setLong(1, userId);
+                        stmt.setLong(2, cursor);
+                        stmt.setLong(3, upToId);
+                        stmt.setLong(4, sinceTimestamp);
+                        stmt.setInt(5, wanted);
+
+                        int scanned = 0;
+                        ResultSet rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            scanned++;
+                            long id = rs.getLong("id");
+                            cursor = id;
+                            // Rows written before receipts existed may carry their own status
+                            if (rs.getInt("status") >= ReceiptStore.STATUS_DELIVERED) {
+                                continue;
+                            }
+                            Map<String, Object> message = new HashMap<>();
+                            message.put("id", id);
+                            message.put("from", rs.getLong("sender"));
+                            message.put("to", rs.getLong("receiver"));
+                            message.put("content", rs.getString("content"));
+                            message.put("timestamp", rs.getLong("timestamp"));
+                            messages.add(message);
+                        }
+                        more = scanned == wanted;
+                    }
+                }
+                // A full batch may have stopped just short of the end; the next call finds out
+                if (messages.size() >= limit) {
+                    done = false;
+                    break;
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        
-        return chats;
+
+        result.put("messages", messages);
+        result.put("cursor", cursor);
+        result.put("done", done);
+        return result;
     }
 
-    public int getUnreadMessageCount(Long userId, Long fromUserId) {
-        try (Connection conn = dataSource.getConnection()) {
-            String tableName = getCurrentMessageTable();
-            String sql = String.format("SELECT COUNT(*) FROM %s WHERE sender = ? AND receiver = ? AND status = 0", tableName);
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, fromUserId);
-                stmt.setLong(2, userId);
-                
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    return rs.getInt(1);
+    // Highest message id written so far, or 0 when there are no messages
+    public long getLatestMessageId() {
+        try (Connection conn = database.reader()) {
+            for (String tableName : partitionManager.getTables()) {
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT max(id) FROM " + tableName)) {
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next() && rs.getObject(1) != null) {
+                        return rs.getLong(1);
+                    }
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return 0;
+        return 0L;
+    }
+
+    private static String encodeCursor(long timestamp, long id) {
+        String raw = timestamp + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long[] decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.indexOf(':');
+            return new long[] {Long.parseLong(raw.substring(0, separator)), Long.parseLong(raw.substring(separator + 1))};
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid history cursor", e);
+        }
+    }
+
+    // Served from the conversation summary store, most recent activity first
+    public List<Map<String, Object>> getRecentChats(Long userId) {
+        List<Map<String, Object>> chats = new ArrayList<>();
+
+        for (ConversationStore.Summary summary : conversationStore.getRecentConversations(userId)) {
+            Map<String, Object> chat = new HashMap<>();
+            chat.put("contactId", summary.getPeerId());
+            chat.put("isGroup", summary.getPeerType() == ConversationStore.PEER_GROUP);
+            chat.put("lastMessageId", summary.getLastMessageId());
+            chat.put("lastSender", summary.getLastSender());
+            chat.put("lastMessage", summary.getLastPreview());
+            chat.put("lastMessageTime", summary.getLastTimestamp());
+            chat.put("unreadCount", unreadCounters.get(userId, summary.getPeerId(), summary.getPeerType()));
+            chats.add(chat);
+        }
+        
+        return chats;
+    }
+
+    public int getUnreadMessageCount(Long userId, Long fromUserId) {
+        return unreadCounters.get(userId, fromUserId, ConversationStore.PEER_USER);
+    }
+
+    // Every non-zero unread count for the user in one call
+    public List<Map<String, Object>> getUnreadCounts(Long userId) {
+        List<Map<String, Object>> counts = new ArrayList<>();
+        for (UnreadCounters.Unread unread : unreadCounters.getAll(userId)) {
+            Map<String, Object> count = new HashMap<>();
+            count.put("contactId", unread.peerId());
+            count.put("isGroup", unread.peerType() == ConversationStore.PEER_GROUP);
+            count.put("count", unread.count());
+            counts.add(count);
+        }
+        return counts;
+    }
+
+    // Marks everything from fromUserId as read, up to upToId or the latest message in the conversation
+    // Same cap as acknowledge: never past the newest message, nothing for a pair without a conversation
+    public boolean markMessagesAsRead(Long userId, Long fromUserId, Long upToId) {
+        long lastMessageId = conversationStore.getLastMessageId(userId, fromUserId, ConversationStore.PEER_USER);
+        if (lastMessageId <= 0) {
+            return false;
+        }
+        long readUpTo = upToId != null ? Math.min(upToId, lastMessageId) : lastMessageId;
+        updateUnread(userId, fromUserId, readUpTo);
+        return readUpTo > 0 && receiptStore.markRead(userId, fromUserId, readUpTo);
     }
 
-    public boolean markMessagesAsRead(Long userId, Long fromUserId) {
-        return updateMessageStatus(fromUserId, userId, 2);
+    public void markGroupAsRead(Long userId, Long groupId) {
+        unreadCounters.reset(userId, groupId, ConversationStore.PEER_GROUP);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,327 @@
+package cn.nebula.service;
+
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.model.Message;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One summary row per (owner, peer or group) in the conversations table, maintained
+ * incrementally by the message writer inside the same transaction as the INSERTs.
+ * Recently used owners are also held in memory so the recent-chats list is served
+ * without touching SQLite. In a cluster every committed batch also tells the other nodes
+ * which owners changed, and they drop those owners from their hot tier so the next read
+ * reloads them from the shared database.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class ConversationStore {
+
+    public static final int PEER_USER = 0;
+    public static final int PEER_GROUP = 1;
+
+    private static final int PREVIEW_LENGTH = 100;
+
+    private static final String UPSERT_SQL = """
+        INSERT INTO conversations (owner_id, peer_id, peer_type, last_message_id, last_sender, last_preview, last_timestamp)
+        VALUES (?, ?, ?, ?, ?, ?, ?)
+        ON CONFLICT(owner_id, peer_type, peer_id) DO UPDATE SET
+            last_message_id = excluded.last_message_id,
+            last_sender = excluded.last_sender,
+            last_preview = excluded.last_preview,
+            last_timestamp = excluded.last_timestamp
+        """;
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private GroupService groupService;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Value("${chat.conversations.hot-users:10000}")
+    private int maxHotUsers;
+
+    // Hot tier: owner id -> that owner's conversations, loaded on first read
+    private final Map<Long, OwnerConversations> hot = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws SQLException {
+        // Owners whose conversations changed on another node
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.ConversationsChanged change) {
+                for (long ownerId : change.ownerIds()) {
+                    // Waits for an in-flight load, which may predate the commit, and discards it
+                    hot.remove(ownerId);
+                }
+            }
+        });
+
+        try (Connection conn = database.writer(); Statement statement = conn.createStatement()) {
+            ResultSet rs = statement.executeQuery("SELECT 1 FROM conversations LIMIT 1");
+            boolean empty = !rs.next();
+            rs.close();
+            if (empty) {
+                backfill(conn);
+            }
+        }
+    }
+
+    /**
+     * Folds a batch of newly inserted messages into the summary table on the writer's
+     * connection, inside its open transaction. Several messages to the same conversation
+     * collapse into a single upsert.
+     */
+    public List<Summary> persist(Connection conn, List<Message> messages) throws SQLException {
+        Map<Key, Summary> updates = new LinkedHashMap<>();
+        for (Message message : messages) {
+            if (message.getType() == PEER_GROUP) {
+                for (long member : groupService.getMemberIds(message.getReceiver())) {
+                    merge(updates, member, message.getReceiver(), PEER_GROUP, message);
+                }
+            } else {
+                merge(updates, message.getSender(), message.getReceiver(), PEER_USER, message);
+                merge(updates, message.getReceiver(), message.getSender(), PEER_USER, message);
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(UPSERT_SQL)) {
+            for (Summary summary : updates.values()) {
+                stmt.setLong(1, summary.ownerId);
+                stmt.setLong(2, summary.peerId);
+                stmt.setInt(3, summary.peerType);
+                stmt.setLong(4, summary.lastMessageId);
+                stmt.setLong(5, summary.lastSender);
+                stmt.setString(6, summary.lastPreview);
+                stmt.setLong(7, summary.lastTimestamp);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        return new ArrayList<>(updates.values());
+    }
+
+    // Applies committed updates to owners currently held in the hot tier, here and on the other nodes
+    public void publish(List<Summary> updates) {
+        Set<Long> owners = new LinkedHashSet<>();
+        for (Summary update : updates) {
+            owners.add(update.ownerId);
+            // computeIfPresent waits for an in-flight load of the same owner before applying
+            hot.computeIfPresent(update.ownerId, (ownerId, owner) -> {
+                owner.apply(update);
+                return owner;
+            });
+        }
+        if (!owners.isEmpty()) {
+            clusterRouter.broadcast(new ClusterMessage.ConversationsChanged(
+                    owners.stream().mapToLong(Long::longValue).toArray()));
+        }
+    }
+
+    public List<Summary> getRecentConversations(Long ownerId) {
+        OwnerConversations owner = getOwner(ownerId);
+        return owner == null ? new ArrayList<>() : owner.sortedByActivity();
+    }
+
+    // Id of the newest message in the conversation, or 0 if there is none
+    public long getLastMessageId(Long ownerId, Long peerId, int peerType) {
+        OwnerConversations owner = getOwner(ownerId);
+        return owner == null ? 0L : owner.lastMessageId(new Key(ownerId, peerId, peerType));
+    }
+
+    private OwnerConversations getOwner(Long ownerId) {
+        OwnerConversations owner = hot.get(ownerId);
+        if (owner != null) {
+            owner.lastAccess = System.currentTimeMillis();
+            return owner;
+        }
+
+        if (hot.size() >= maxHotUsers) {
+            evictColdest();
+        }
+        // Loading inside computeIfAbsent makes a concurrent publish for this owner wait for the snapshot
+        return hot.computeIfAbsent(ownerId, this::load);
+    }
+
+    private OwnerConversations load(Long ownerId) {
+        OwnerConversations owner = new OwnerConversations();
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT peer_id, peer_type, last_message_id, last_sender, last_preview, last_timestamp " +
+                        "FROM conversations WHERE owner_id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, ownerId);
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    Summary summary = new Summary(ownerId, rs.getLong("peer_id"), rs.getInt("peer_type"));
+                    summary.lastMessageId = rs.getLong("last_message_id");
+                    summary.lastSender = rs.getLong("last_sender");
+                    summary.lastPreview = rs.getString("last_preview");
+                    summary.lastTimestamp = rs.getLong("last_timestamp");
+                    owner.summaries.put(summary.key(), summary);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return owner;
+    }
+
+    // Drop the least recently read tenth of the hot tier
+    private void evictColdest() {
+        List<Map.Entry<Long, OwnerConversations>> entries = new ArrayList<>(hot.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+        int toEvict = Math.max(1, entries.size() / 10);
+        for (int i = 0; i < toEvict && i < entries.size(); i++) {
+            hot.remove(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+    }
+
+    private static void merge(Map<Key, Summary> updates, long ownerId, long peerId, int peerType, Message message) {
+        Key key = new Key(ownerId, peerId, peerType);
+        Summary summary = updates.computeIfAbsent(key, k -> new Summary(ownerId, peerId, peerType));
+        summary.lastMessageId = message.getId();
+        summary.lastSender = message.getSender();
+        summary.lastPreview = preview(message.getContent());
+        summary.lastTimestamp = message.getTimestamp();
+    }
+
+    private static String preview(String content) {
+        return content.length() <= PREVIEW_LENGTH ? content : content.substring(0, PREVIEW_LENGTH);
+    }
+
+    // One-off rebuild for databases created before the conversations table existed; also seeds unread counts
+    private void backfill(Connection conn) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        try (Statement statement = conn.createStatement()) {
+            ResultSet rs = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB 'messages_[0-9][0-9][0-9][0-9][0-9][0-9]' ORDER BY name");
+            while (rs.next()) {
+                tables.add(rs.getString(1));
+            }
+            rs.close();
+
+            // Oldest partition first, rows in time order, so the newest message ends up as the summary
+            for (String table : tables) {
+                statement.execute(String.format("""
+                    INSERT INTO conversations (owner_id, peer_id, peer_type, last_message_id, last_sender, last_preview, last_timestamp, unread_count)
+                    SELECT owner_id, peer_id, peer_type, id, sender, substr(content, 1, %d), timestamp, unread FROM (
+                        SELECT sender AS owner_id, receiver AS peer_id, 0 AS peer_type, id, sender, content, timestamp, 0 AS unread
+                        FROM %s WHERE type = 0
+                        UNION ALL
+                        SELECT receiver, sender, 0, id, sender, content, timestamp, CASE WHEN status < 2 THEN 1 ELSE 0 END
+                        FROM %s WHERE type = 0
+                        UNION ALL
+                        SELECT gm.user_id, m.receiver, 1, m.id, m.sender, m.content, m.timestamp, 0
+                        FROM %s m JOIN group_members gm ON gm.group_id = m.receiver WHERE m.type = 1
+                    ) WHERE true
+                    ORDER BY timestamp, id
+                    ON CONFLICT(owner_id, peer_type, peer_id) DO UPDATE SET
+                        last_message_id = excluded.last_message_id,
+                        last_sender = excluded.last_sender,
+                        last_preview = excluded.last_preview,
+                        last_timestamp = excluded.last_timestamp,
+                        unread_count = unread_count + excluded.unread_count
+                    """, PREVIEW_LENGTH, table, table, table));
+            }
+        }
+    }
+
+    private static class OwnerConversations {
+        final Map<Key, Summary> summaries = new HashMap<>();
+        volatile long lastAccess = System.currentTimeMillis();
+
+        synchronized void apply(Summary update) {
+            Key key = update.key();
+            Summary current = summaries.get(key);
+            if (current == null) {
+                summaries.put(key, update.copy());
+                return;
+            }
+            // The snapshot may already include this commit; only newer messages move the summary
+            if (update.lastTimestamp < current.lastTimestamp
+                    || (update.lastTimestamp == current.lastTimestamp && update.lastMessageId <= current.lastMessageId)) {
+                return;
+            }
+            current.lastMessageId = update.lastMessageId;
+            current.lastSender = update.lastSender;
+            current.lastPreview = update.lastPreview;
+            current.lastTimestamp = update.lastTimestamp;
+        }
+
+        synchronized long lastMessageId(Key key) {
+            Summary summary = summaries.get(key);
+            return summary == null ? 0L : summary.lastMessageId;
+        }
+
+        synchronized List<Summary> sortedByActivity() {
+            List<Summary> list = new ArrayList<>(summaries.size());
+            for (Summary summary : summaries.values()) {
+                list.add(summary.copy());
+            }
+            list.sort(Comparator.comparingLong((Summary s) -> s.lastTimestamp).reversed());
+            return list;
+        }
+    }
+
+    private record Key(long ownerId, long peerId, int peerType) {}
+
+    public static class Summary {
+        private final long ownerId;
+        private final long peerId;
+        private final int peerType;
+        private long lastMessageId;
+        private long lastSender;
+        private String lastPreview;
+        private long lastTimestamp;
+
+        Summary(long ownerId, long peerId, int peerType) {
+            this.ownerId = ownerId;
+            this.peerId = peerId;
+            this.peerType = peerType;
+        }
+
+        Key key() {
+            return new Key(ownerId, peerId, peerType);
+        }
+
+        Summary copy() {
+            Summary copy = new Summary(ownerId, peerId, peerType);
+            copy.lastMessageId = lastMessageId;
+            copy.lastSender = lastSender;
+            copy.lastPreview = lastPreview;
+            copy.lastTimestamp = lastTimestamp;
+            return copy;
+        }
+
+        public long getOwnerId() { return ownerId; }
+        public long getPeerId() { return peerId; }
+        public int getPeerType() { return peerType; }
+        public long getLastMessageId() { return lastMessageId; }
+        public long getLastSender() { return lastSender; }
+        public String getLastPreview() { return lastPreview; }
+        public long getLastTimestamp() { return lastTimestamp; }
+    }
+}
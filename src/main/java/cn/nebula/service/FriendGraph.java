@@ -0,0 +1,269 @@
+package cn.nebula.service;
+
+import cn.nebula.utils.LongHashSet;
+import cn.nebula.utils.LongObjectHashMap;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory copy of the friendships table. Accepted friendships are kept as undirected
+ * adjacency sets and pending requests as directed from -> to sets, both keyed by primitive
+ * user id. Loaded once at startup and then updated in place by FriendService after each
+ * successful write, so friendship checks never touch SQLite.
+ *
+ * Every change to a user's friend list (a friend added or removed, or a friend's profile
+ * edited) bumps that user's list version and is kept in a short FriendListLog, which is
+ * what lets clients sync a list by delta. Versions are only meaningful to this node and
+ * this load, so they carry the load epoch and a client presenting any other falls back
+ * to the full list.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class FriendGraph {
+
+    private static final long[] NO_IDS = new long[0];
+
+    @Autowired
+    private DataSource dataSource;
+
+    private final StampedLock lock = new StampedLock();
+    private final LongObjectHashMap<LongHashSet> friends = new LongObjectHashMap<>(1024);
+    private final LongObjectHashMap<LongHashSet> pendingRequests = new LongObjectHashMap<>(256);
+    private final LongObjectHashMap<FriendListLog> logs = new LongObjectHashMap<>(256);
+    private long epoch;
+
+    @PostConstruct
+    public void load() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            String sql = "SELECT user_a, user_b, status FROM friendships";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+
+                long stamp = lock.writeLock();
+                try {
+                    friends.clear();
+                    pendingRequests.clear();
+                    logs.clear();
+                    epoch = System.currentTimeMillis();
+                    while (rs.next()) {
+                        long userA = rs.getLong("user_a");
+                        long userB = rs.getLong("user_b");
+                        if (rs.getInt("status") == 1) {
+                            link(friends, userA, userB);
+                            link(friends, userB, userA);
+                        } else {
+                            link(pendingRequests, userA, userB);
+                        }
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+        }
+    }
+
+    public boolean areFriends(long userId1, long userId2) {
+        long stamp = lock.readLock();
+        try {
+            LongHashSet set = friends.get(userId1);
+            return set != null && set.contains(userId2);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // True if either user has a pending request to the other
+    public boolean hasPendingRequest(long userId1, long userId2) {
+        long stamp = lock.readLock();
+        try {
+            LongHashSet outgoing = pendingRequests.get(userId1);
+            if (outgoing != null && outgoing.contains(userId2)) {
+                return true;
+            }
+            LongHashSet incoming = pendingRequests.get(userId2);
+            return incoming != null && incoming.contains(userId1);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long[] getFriendIds(long userId) {
+        long stamp = lock.readLock();
+        try {
+            LongHashSet set = friends.get(userId);
+            return set == null ? NO_IDS : set.toArray();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getFriendCount(long userId) {
+        long stamp = lock.readLock();
+        try {
+            LongHashSet set = friends.get(userId);
+            return set == null ? 0 : set.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void addPendingRequest(long fromUserId, long toUserId) {
+        long stamp = lock.writeLock();
+        try {
+            link(pendingRequests, fromUserId, toUserId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void removePendingRequest(long fromUserId, long toUserId) {
+        long stamp = lock.writeLock();
+        try {
+            unlink(pendingRequests, fromUserId, toUserId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Accepting a request turns it into an undirected edge
+    public void addFriendship(long fromUserId, long toUserId) {
+        long stamp = lock.writeLock();
+        try {
+            unlink(pendingRequests, fromUserId, toUserId);
+            unlink(pendingRequests, toUserId, fromUserId);
+            if (link(friends, fromUserId, toUserId)) {
+                log(fromUserId).append(toUserId, FriendListLog.ADDED);
+            }
+            if (link(friends, toUserId, fromUserId)) {
+                log(toUserId).append(fromUserId, FriendListLog.ADDED);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void removeFriendship(long userId1, long userId2) {
+        long stamp = lock.writeLock();
+        try {
+            if (unlink(friends, userId1, userId2)) {
+                log(userId1).append(userId2, FriendListLog.REMOVED);
+            }
+            if (unlink(friends, userId2, userId1)) {
+                log(userId2).append(userId1, FriendListLog.REMOVED);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // The user's nickname or avatar changed: every friend's list has a changed entry
+    public void profileChanged(long userId) {
+        long stamp = lock.writeLock();
+        try {
+            LongHashSet set = friends.get(userId);
+            if (set != null) {
+                set.forEach(friendId -> log(friendId).append(userId, FriendListLog.CHANGED));
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public String getListVersion(long userId) {
+        long stamp = lock.readLock();
+        try {
+            return versionOf(userId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The user's friend list relative to a version the client holds: unchanged, the
+     * delta since it if deltas are wanted, or, for a version too old, unknown or null,
+     * the full id list.
+     */
+    ListSync syncList(long userId, String knownVersion, boolean deltas) {
+        long stamp = lock.readLock();
+        try {
+            String version = versionOf(userId);
+            if (version.equals(knownVersion)) {
+                return new ListSync(version, false, null, null);
+            }
+            LongHashSet set = friends.get(userId);
+            FriendListLog log = logs.get(userId);
+            long since = deltas ? parseVersion(knownVersion) : -1;
+            if (since >= 0) {
+                FriendListLog.Delta delta = log == null ? null : log.since(since, set);
+                if (delta != null) {
+                    return new ListSync(version, true, null, delta);
+                }
+            }
+            return new ListSync(version, true, set == null ? NO_IDS : set.toArray(), null);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private FriendListLog log(long userId) {
+        FriendListLog log = logs.get(userId);
+        if (log == null) {
+            log = new FriendListLog();
+            logs.put(userId, log);
+        }
+        return log;
+    }
+
+    private String versionOf(long userId) {
+        FriendListLog log = logs.get(userId);
+        return epoch + "-" + (log == null ? 0 : log.version());
+    }
+
+    // The list version within the current epoch, or -1 if the token is from another load or node
+    private long parseVersion(String token) {
+        if (token == null) {
+            return -1;
+        }
+        int dash = token.indexOf('-');
+        try {
+            if (dash < 0 || Long.parseLong(token.substring(0, dash)) != epoch) {
+                return -1;
+            }
+            return Long.parseLong(token.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean link(LongObjectHashMap<LongHashSet> edges, long from, long to) {
+        LongHashSet set = edges.get(from);
+        if (set == null) {
+            set = new LongHashSet(4);
+            edges.put(from, set);
+        }
+        return set.add(to);
+    }
+
+    private static boolean unlink(LongObjectHashMap<LongHashSet> edges, long from, long to) {
+        LongHashSet set = edges.get(from);
+        if (set == null || !set.remove(to)) {
+            return false;
+        }
+        if (set.isEmpty()) {
+            edges.remove(from);
+        }
+        return true;
+    }
+
+    // modified is false when the client's version is current; otherwise exactly one of friendIds and delta is set
+    record ListSync(String version, boolean modified, long[] friendIds, FriendListLog.Delta delta) {}
+}
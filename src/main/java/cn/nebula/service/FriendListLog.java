@@ -0,0 +1,91 @@
+package cn.nebula.service;
+
+import cn.nebula.utils.LongHashSet;
+import cn.nebula.utils.LongObjectHashMap;
+
+/**
+ * One user's friend-list version and the most recent changes that produced it, as a ring
+ * of (version, friend, kind) entries. A client that presents a version still covered by
+ * the ring gets just the friends touched since, folded to their net effect, so a sync
+ * costs the number of changes rather than the number of friends. Older versions fall
+ * back to a full list. Guarded by the FriendGraph lock.
+ */
+final class FriendListLog {
+
+    static final byte ADDED = 0;
+    static final byte REMOVED = 1;
+    static final byte CHANGED = 2;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MAX_CAPACITY = 128;
+
+    private long version;
+    private long[] friendIds = new long[INITIAL_CAPACITY];
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    // Entries held: those with versions (version - count, version]
+    private int count;
+
+    long version() {
+        return version;
+    }
+
+    void append(long friendId, byte kind) {
+        if (count == friendIds.length && count < MAX_CAPACITY) {
+            grow();
+        }
+        version++;
+        int slot = (int) (version % friendIds.length);
+        friendIds[slot] = friendId;
+        kinds[slot] = kind;
+        count = Math.min(count + 1, friendIds.length);
+    }
+
+    /**
+     * The net changes after the given version against the current friend set, or null if
+     * the ring no longer reaches back that far (or the version is not one of ours).
+     */
+    Delta since(long since, LongHashSet current) {
+        if (since > version || since < version - count) {
+            return null;
+        }
+
+        // First kind seen per friend tells whether they were a friend at the client's version
+        LongObjectHashMap<Byte> firstKind = new LongObjectHashMap<>(Math.max(4, (int) (version - since)));
+        for (long v = since + 1; v <= version; v++) {
+            int slot = (int) (v % friendIds.length);
+            if (!firstKind.containsKey(friendIds[slot])) {
+                firstKind.put(friendIds[slot], kinds[slot]);
+            }
+        }
+
+        LongHashSet added = new LongHashSet(4);
+        LongHashSet removed = new LongHashSet(4);
+        LongHashSet changed = new LongHashSet(4);
+        firstKind.forEach((friendId, kind) -> {
+            boolean was = kind != ADDED;
+            boolean now = current != null && current.contains(friendId);
+            if (was && now) {
+                changed.add(friendId);
+            } else if (now) {
+                added.add(friendId);
+            } else if (was) {
+                removed.add(friendId);
+            }
+        });
+        return new Delta(added.toArray(), removed.toArray(), changed.toArray());
+    }
+
+    private void grow() {
+        int capacity = friendIds.length * 2;
+        long[] newIds = new long[capacity];
+        byte[] newKinds = new byte[capacity];
+        for (long v = version - count + 1; v <= version; v++) {
+            newIds[(int) (v % capacity)] = friendIds[(int) (v % friendIds.length)];
+            newKinds[(int) (v % capacity)] = kinds[(int) (v % kinds.length)];
+        }
+        friendIds = newIds;
+        kinds = newKinds;
+    }
+
+    record Delta(long[] added, long[] removed, long[] changed) {}
+}
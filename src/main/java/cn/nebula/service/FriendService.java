@@ -1,11 +1,14 @@
 package cn.nebula.service;
 
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
 import cn.nebula.model.Friendship;
 import cn.nebula.model.User;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -19,11 +22,36 @@ import java.util.Map;
 public class FriendService {
     
     @Autowired
-    private DataSource dataSource;
+    private SqliteDatabase database;
     
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private FriendGraph friendGraph;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    // Friend graph changes made on other nodes
+    @PostConstruct
+    public void registerClusterListener() {
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.FriendshipChanged change) {
+                switch (change.change()) {
+                    case ClusterMessage.FriendshipChanged.REQUESTED -> friendGraph.addPendingRequest(change.fromUserId(), change.toUserId());
+                    case ClusterMessage.FriendshipChanged.ACCEPTED -> friendGraph.addFriendship(change.fromUserId(), change.toUserId());
+                    case ClusterMessage.FriendshipChanged.REJECTED -> friendGraph.removePendingRequest(change.fromUserId(), change.toUserId());
+                    case ClusterMessage.FriendshipChanged.REMOVED -> friendGraph.removeFriendship(change.fromUserId(), change.toUserId());
+                    default -> { }
+                }
+            }
+        });
+    }
+    
     public Map<String, Object> sendFriendRequest(Long fromUserId, Long toUserId) {
         Map<String, Object> result = new HashMap<>();
         
@@ -33,29 +61,19 @@ public class FriendService {
             return result;
         }
         
-        try (Connection conn = dataSource.getConnection()) {
-            // Check if friendship already exists
-            String checkSql = "SELECT status FROM friendships WHERE (user_a = ? AND user_b = ?) OR (user_a = ? AND user_b = ?)";
-            try (PreparedStatement stmt = conn.prepareStatement(checkSql)) {
-                stmt.setLong(1, fromUserId);
-                stmt.setLong(2, toUserId);
-                stmt.setLong(3, toUserId);
-                stmt.setLong(4, fromUserId);
-                
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    int status = rs.getInt("status");
-                    if (status == 1) {
-                        result.put("success", false);
-                        result.put("message", "已经是好友了");
-                    } else {
-                        result.put("success", false);
-                        result.put("message", "好友请求已发送");
-                    }
-                    return result;
-                }
-            }
-            
+        // Check if friendship already exists
+        if (friendGraph.areFriends(fromUserId, toUserId)) {
+            result.put("success", false);
+            result.put("message", "已经是好友了");
+            return result;
+        }
+        if (friendGraph.hasPendingRequest(fromUserId, toUserId)) {
+            result.put("success", false);
+            result.put("message", "好友请求已发送");
+            return result;
+        }
+        
+        try (Connection conn = database.writer()) {
             // Insert friend request
             String insertSql = "INSERT INTO friendships (user_a, user_b, status) VALUES (?, ?, 0)";
             try (PreparedStatement stmt = conn.prepareStatement(insertSql)) {
@@ -64,6 +82,8 @@ public class FriendService {
                 
                 int affected = stmt.executeUpdate();
                 if (affected > 0) {
+                    friendGraph.addPendingRequest(fromUserId, toUserId);
+                    clusterRouter.broadcast(new ClusterMessage.FriendshipChanged(fromUserId, toUserId, ClusterMessage.FriendshipChanged.REQUESTED));
                     result.put("success", true);
                     result.put("message", "好友请求发送成功");
                 } else {
@@ -82,7 +102,7 @@ public class FriendService {
     public Map<String, Object> approveFriendRequest(Long currentUserId, Long fromUserId, boolean accept) {
         Map<String, Object> result = new HashMap<>();
         
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = database.writer()) {
             if (accept) {
                 // Update existing request to accepted
                 String updateSql = "UPDATE friendships SET status = 1 WHERE user_a = ? AND user_b = ? AND status = 0";
@@ -99,6 +119,8 @@ public class FriendService {
                             insertStmt.setLong(2, fromUserId);
                             insertStmt.executeUpdate();
                         }
+                        friendGraph.addFriendship(fromUserId, currentUserId);
+                        clusterRouter.broadcast(new ClusterMessage.FriendshipChanged(fromUserId, currentUserId, ClusterMessage.FriendshipChanged.ACCEPTED));
                         
                         result.put("success", true);
                         result.put("message", "已接受好友请求");
@@ -116,6 +138,8 @@ public class FriendService {
                     
                     int affected = stmt.executeUpdate();
                     if (affected > 0) {
+                        friendGraph.removePendingRequest(fromUserId, currentUserId);
+                        clusterRouter.broadcast(new ClusterMessage.FriendshipChanged(fromUserId, currentUserId, ClusterMessage.FriendshipChanged.REJECTED));
                         result.put("success", true);
                         result.put("message", "已拒绝好友请求");
                     } else {
@@ -132,90 +156,150 @@ public class FriendService {
         return result;
     }
     
+    public Map<String, Object> removeFriend(Long userId, Long friendId) {
+        Map<String, Object> result = new HashMap<>();
+        
+        if (!friendGraph.areFriends(userId, friendId)) {
+            result.put("success", false);
+            result.put("message", "好友关系不存在");
+            return result;
+        }
+        
+        try (Connection conn = database.writer()) {
+            // Both directions: accepting a request stores the reverse row too
+            String deleteSql = "DELETE FROM friendships WHERE ((user_a = ? AND user_b = ?) OR (user_a = ? AND user_b = ?)) AND status = 1";
+            try (PreparedStatement stmt = conn.prepareStatement(deleteSql)) {
+                stmt.setLong(1, userId);
+                stmt.setLong(2, friendId);
+                stmt.setLong(3, friendId);
+                stmt.setLong(4, userId);
+                stmt.executeUpdate();
+            }
+            friendGraph.removeFriendship(userId, friendId);
+            clusterRouter.broadcast(new ClusterMessage.FriendshipChanged(userId, friendId, ClusterMessage.FriendshipChanged.REMOVED));
+            result.put("success", true);
+            result.put("message", "已删除好友");
+        } catch (SQLException e) {
+            result.put("success", false);
+            result.put("message", "删除失败");
+        }
+        
+        return result;
+    }
+    
     public List<Map<String, Object>> getFriendRequests(Long userId) {
         List<Map<String, Object>> requests = new ArrayList<>();
+        List<long[]> pending = new ArrayList<>();
         
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "SELECT f.user_a, f.created_at, u.nickname, u.avatar FROM friendships f " +
-                        "JOIN users u ON f.user_a = u.id " +
-                        "WHERE f.user_b = ? AND f.status = 0";
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT user_a, created_at FROM friendships WHERE user_b = ? AND status = 0";
             
             try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                 stmt.setLong(1, userId);
                 ResultSet rs = stmt.executeQuery();
                 
                 while (rs.next()) {
-                    Map<String, Object> request = new HashMap<>();
-                    request.put("fromUserId", rs.getLong("user_a"));
-                    request.put("nickname", rs.getString("nickname"));
-                    request.put("avatar", rs.getString("avatar"));
-                    request.put("createdAt", rs.getLong("created_at"));
-                    requests.add(request);
+                    pending.add(new long[] {rs.getLong("user_a"), rs.getLong("created_at")});
                 }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
         
+        long[] fromUserIds = new long[pending.size()];
+        for (int i = 0; i < fromUserIds.length; i++) {
+            fromUserIds[i] = pending.get(i)[0];
+        }
+        Map<Long, User> users = userService.getUsersByIds(fromUserIds);
+        for (long[] request : pending) {
+            User user = users.get(request[0]);
+            if (user == null) {
+                continue;
+            }
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("fromUserId", request[0]);
+            entry.put("nickname", user.getNickname());
+            entry.put("avatar", user.getAvatar());
+            entry.put("createdAt", request[1]);
+            requests.add(entry);
+        }
+        
         return requests;
     }
     
+    // Friend ids come from the in-memory graph and profiles from the user cache
     public List<Map<String, Object>> getFriendsList(Long userId) {
-        List<Map<String, Object>> friends = new ArrayList<>();
+        return toFriendEntries(friendGraph.getFriendIds(userId));
+    }
+    
+    public String getFriendsListVersion(Long userId) {
+        return friendGraph.getListVersion(userId);
+    }
+    
+    /**
+     * The friend list for a client that already holds knownVersion (may be null): null if
+     * it is still current, otherwise the new version with the full list under "friends"
+     * or, if deltas are accepted, the changes under "added", "removed" (ids) and "changed".
+     * Presence is not part of it, since going online or offline does not change the version;
+     * see getFriendsPresence.
+     */
+    public Map<String, Object> getFriendsListSince(Long userId, String knownVersion, boolean deltas) {
+        FriendGraph.ListSync sync = friendGraph.syncList(userId, knownVersion, deltas);
+        if (!sync.modified()) {
+            return null;
+        }
         
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "SELECT CASE WHEN f.user_a = ? THEN u2.id ELSE u1.id END as friend_id, " +
-                        "CASE WHEN f.user_a = ? THEN u2.nickname ELSE u1.nickname END as nickname, " +
-                        "CASE WHEN f.user_a = ? THEN u2.avatar ELSE u1.avatar END as avatar, " +
-                        "CASE WHEN f.user_a = ? THEN u2.status ELSE u1.status END as status " +
-                        "FROM friendships f " +
-                        "LEFT JOIN users u1 ON f.user_a = u1.id " +
-                        "LEFT JOIN users u2 ON f.user_b = u2.id " +
-                        "WHERE (f.user_a = ? OR f.user_b = ?) AND f.status = 1";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId);
-                stmt.setLong(2, userId);
-                stmt.setLong(3, userId);
-                stmt.setLong(4, userId);
-                stmt.setLong(5, userId);
-                stmt.setLong(6, userId);
-                
-                ResultSet rs = stmt.executeQuery();
-                
-                while (rs.next()) {
-                    Map<String, Object> friend = new HashMap<>();
-                    friend.put("userId", rs.getLong("friend_id"));
-                    friend.put("nickname", rs.getString("nickname"));
-                    friend.put("avatar", rs.getString("avatar"));
-                    friend.put("status", rs.getInt("status"));
-                    friends.add(friend);
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        Map<String, Object> result = new HashMap<>();
+        result.put("version", sync.version());
+        if (sync.delta() == null) {
+            result.put("full", true);
+            result.put("friends", toFriendEntries(sync.friendIds()));
+        } else {
+            result.put("full", false);
+            result.put("added", toFriendEntries(sync.delta().added()));
+            result.put("removed", sync.delta().removed());
+            result.put("changed", toFriendEntries(sync.delta().changed()));
+        }
+        return result;
+    }
+    
+    private List<Map<String, Object>> toFriendEntries(long[] friendIds) {
+        List<Map<String, Object>> friends = new ArrayList<>(friendIds.length);
+        
+        for (User user : userService.getUsersByIds(friendIds).values()) {
+            Map<String, Object> friend = new HashMap<>();
+            friend.put("userId", user.getId());
+            friend.put("nickname", user.getNickname());
+            friend.put("avatar", user.getAvatar());
+            friends.add(friend);
         }
         
         return friends;
     }
     
-    public boolean areFriends(Long userId1, Long userId2) {
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "SELECT 1 FROM friendships WHERE " +
-                        "((user_a = ? AND user_b = ?) OR (user_a = ? AND user_b = ?)) AND status = 1";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId1);
-                stmt.setLong(2, userId2);
-                stmt.setLong(3, userId2);
-                stmt.setLong(4, userId1);
-                
-                ResultSet rs = stmt.executeQuery();
-                return rs.next();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * Current presence of every friend, in the same shape as the entries of a "presence"
+     * push: {"userId":id,"online":true,"since":ms}. Clients load it once after connecting
+     * and then follow the pushes.
+     */
+    public List<Map<String, Object>> getFriendsPresence(Long userId) {
+        long[] friendIds = friendGraph.getFriendIds(userId);
+        List<Map<String, Object>> presence = new ArrayList<>(friendIds.length);
+        for (long friendId : friendIds) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("userId", friendId);
+            entry.put("online", presenceRegistry.isOnline(friendId));
+            entry.put("since", presenceRegistry.getLastSeen(friendId));
+            presence.add(entry);
         }
-        return false;
+        return presence;
+    }
+    
+    public boolean areFriends(Long userId1, Long userId2) {
+        return friendGraph.areFriends(userId1, userId2);
+    }
+    
+    public long[] getFriendIds(Long userId) {
+        return friendGraph.getFriendIds(userId);
     }
 }
\ No newline at end of file
@@ -0,0 +1,401 @@
+package cn.nebula.service;
+
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.model.User;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Service
+public class GroupService {
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private FriendService friendService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Value("${chat.group.max-members:200}")
+    private int maxMembers;
+
+    @Value("${chat.group.roster-cache-size:10000}")
+    private int rosterCacheSize;
+
+    @Value("${chat.group.roster-ttl-ms:300000}")
+    private long rosterTtlMs;
+
+    // Sorted member ids per group; invalidated on every membership change, on every node.
+    // The TTL bounds how long a missed invalidation (e.g. a lost cluster frame) can last.
+    private final Map<Long, Roster> rosters = new ConcurrentHashMap<>();
+    // Bumped before every invalidation so a load that overlapped one does not cache its stale result
+    private final AtomicLong rosterWrites = new AtomicLong();
+
+    private record Roster(long[] memberIds, long loadedAt) {}
+
+    @PostConstruct
+    public void registerClusterListener() {
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.RosterChanged change) {
+                invalidateRoster(change.groupId());
+            }
+        });
+    }
+
+    public Map<String, Object> createGroup(Long ownerId, String name, List<Long> memberIds) {
+        Map<String, Object> result = new HashMap<>();
+
+        // Only the owner's friends can be added directly
+        Set<Long> members = new LinkedHashSet<>();
+        if (memberIds != null) {
+            for (Long memberId : memberIds) {
+                if (memberId != null && !memberId.equals(ownerId) && friendService.areFriends(ownerId, memberId)) {
+                    members.add(memberId);
+                }
+            }
+        }
+
+        if (members.size() + 1 > maxMembers) {
+            result.put("success", false);
+            result.put("message", "群成员不能超过" + maxMembers + "人");
+            return result;
+        }
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try {
+                long groupId;
+                String insertGroupSql = "INSERT INTO groups (name, owner, create_time) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertGroupSql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setString(1, name);
+                    stmt.setLong(2, ownerId);
+                    stmt.setLong(3, System.currentTimeMillis());
+                    stmt.executeUpdate();
+
+                    ResultSet keys = stmt.getGeneratedKeys();
+                    if (!keys.next()) {
+                        throw new SQLException("No group id generated");
+                    }
+                    groupId = keys.getLong(1);
+                }
+
+                String insertMemberSql = "INSERT INTO group_members (group_id, user_id, role) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertMemberSql)) {
+                    stmt.setLong(1, groupId);
+                    stmt.setLong(2, ownerId);
+                    stmt.setInt(3, 1);
+                    stmt.addBatch();
+                    for (Long memberId : members) {
+                        stmt.setLong(1, groupId);
+                        stmt.setLong(2, memberId);
+                        stmt.setInt(3, 0);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+
+                conn.commit();
+                rosterChanged(groupId);
+
+                result.put("success", true);
+                result.put("message", "群聊创建成功");
+                result.put("groupId", groupId);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            result.put("success", false);
+            result.put("message", "创建失败");
+        }
+
+        return result;
+    }
+
+    public Map<String, Object> inviteMember(Long operatorId, Long groupId, Long userId) {
+        Map<String, Object> result = new HashMap<>();
+
+        if (!isMember(groupId, operatorId)) {
+            result.put("success", false);
+            result.put("message", "您不是该群成员");
+            return result;
+        }
+        if (userService.getUserById(userId) == null) {
+            result.put("success", false);
+            result.put("message", "用户不存在");
+            return result;
+        }
+        // Same rule as createGroup: only the inviter's friends can be added
+        if (!friendService.areFriends(operatorId, userId)) {
+            result.put("success", false);
+            result.put("message", "只能邀请好友入群");
+            return result;
+        }
+        if (isMember(groupId, userId)) {
+            result.put("success", false);
+            result.put("message", "该用户已在群中");
+            return result;
+        }
+        if (getMemberIds(groupId).length >= maxMembers) {
+            result.put("success", false);
+            result.put("message", "群成员不能超过" + maxMembers + "人");
+            return result;
+        }
+
+        try (Connection conn = database.writer()) {
+            String sql = "INSERT INTO group_members (group_id, user_id, role) VALUES (?, ?, 0)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, groupId);
+                stmt.setLong(2, userId);
+                stmt.executeUpdate();
+            }
+            rosterChanged(groupId);
+
+            result.put("success", true);
+            result.put("message", "邀请成功");
+        } catch (SQLException e) {
+            result.put("success", false);
+            result.put("message", "邀请失败");
+        }
+
+        return result;
+    }
+
+    public Map<String, Object> leaveGroup(Long userId, Long groupId) {
+        Map<String, Object> result = new HashMap<>();
+
+        try (Connection conn = database.writer()) {
+            String sql = "DELETE FROM group_members WHERE group_id = ? AND user_id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, groupId);
+                stmt.setLong(2, userId);
+
+                int affected = stmt.executeUpdate();
+                rosterChanged(groupId);
+                if (affected > 0) {
+                    result.put("success", true);
+                    result.put("message", "已退出群聊");
+                } else {
+                    result.put("success", false);
+                    result.put("message", "您不是该群成员");
+                }
+            }
+        } catch (SQLException e) {
+            result.put("success", false);
+            result.put("message", "退出失败");
+        }
+
+        return result;
+    }
+
+    public Map<String, Object> dissolveGroup(Long userId, Long groupId) {
+        Map<String, Object> result = new HashMap<>();
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try {
+                String deleteGroupSql = "DELETE FROM groups WHERE id = ? AND owner = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteGroupSql)) {
+                    stmt.setLong(1, groupId);
+                    stmt.setLong(2, userId);
+                    if (stmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        result.put("success", false);
+                        result.put("message", "只有群主可以解散群聊");
+                        return result;
+                    }
+                }
+
+                String deleteMembersSql = "DELETE FROM group_members WHERE group_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteMembersSql)) {
+                    stmt.setLong(1, groupId);
+                    stmt.executeUpdate();
+                }
+
+                conn.commit();
+                rosterChanged(groupId);
+
+                result.put("success", true);
+                result.put("message", "群聊已解散");
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            result.put("success", false);
+            result.put("message", "解散失败");
+        }
+
+        return result;
+    }
+
+    public List<Map<String, Object>> getUserGroups(Long userId) {
+        List<Map<String, Object>> groups = new ArrayList<>();
+
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT g.id, g.name, g.owner, m.role, " +
+                        "(SELECT COUNT(*) FROM group_members c WHERE c.group_id = g.id) as member_count " +
+                        "FROM group_members m JOIN groups g ON m.group_id = g.id " +
+                        "WHERE m.user_id = ?";
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, userId);
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    Map<String, Object> group = new HashMap<>();
+                    group.put("id", rs.getLong("id"));
+                    group.put("name", rs.getString("name"));
+                    group.put("owner", rs.getLong("owner"));
+                    group.put("role", rs.getInt("role"));
+                    group.put("memberCount", rs.getInt("member_count"));
+                    groups.add(group);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return groups;
+    }
+
+    public List<Map<String, Object>> getMembers(Long groupId) {
+        List<Map<String, Object>> members = new ArrayList<>();
+        List<long[]> roles = new ArrayList<>();
+
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT user_id, role FROM group_members WHERE group_id = ?";
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, groupId);
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    roles.add(new long[] {rs.getLong("user_id"), rs.getInt("role")});
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        long[] userIds = new long[roles.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = roles.get(i)[0];
+        }
+        Map<Long, User> users = userService.getUsersByIds(userIds);
+        for (long[] role : roles) {
+            User user = users.get(role[0]);
+            if (user == null) {
+                continue;
+            }
+            Map<String, Object> member = new HashMap<>();
+            member.put("id", user.getId());
+            member.put("nickname", user.getNickname());
+            member.put("avatar", user.getAvatar());
+            member.put("role", (int) role[1]);
+            members.add(member);
+        }
+
+        return members;
+    }
+
+    public boolean isMember(Long groupId, Long userId) {
+        return Arrays.binarySearch(getMemberIds(groupId), userId) >= 0;
+    }
+
+    // Cached roster used by message fan-out; loaded from group_members on first use
+    public long[] getMemberIds(Long groupId) {
+        long now = System.currentTimeMillis();
+        Roster cached = rosters.get(groupId);
+        if (cached != null && now - cached.loadedAt() < rosterTtlMs) {
+            return cached.memberIds();
+        }
+
+        long stamp = rosterWrites.get();
+        long[] memberIds = loadMemberIds(groupId);
+        if (memberIds == null) {
+            return new long[0];
+        }
+        if (rosterWrites.get() == stamp) {
+            if (rosters.size() >= rosterCacheSize) {
+                evictRosters(now);
+            }
+            Roster roster = new Roster(memberIds, now);
+            rosters.put(groupId, roster);
+            // An invalidation that landed between the check and the put may have missed it
+            if (rosterWrites.get() != stamp) {
+                rosters.remove(groupId, roster);
+            }
+        }
+        return memberIds;
+    }
+
+    private void rosterChanged(Long groupId) {
+        invalidateRoster(groupId);
+        clusterRouter.broadcast(new ClusterMessage.RosterChanged(groupId));
+    }
+
+    private void invalidateRoster(long groupId) {
+        rosterWrites.incrementAndGet();
+        rosters.remove(groupId);
+    }
+
+    // Drops expired rosters, or every roster if none had expired; they reload on next use
+    private void evictRosters(long now) {
+        int before = rosters.size();
+        rosters.values().removeIf(roster -> now - roster.loadedAt() >= rosterTtlMs);
+        if (rosters.size() == before) {
+            rosters.clear();
+        }
+    }
+
+    private long[] loadMemberIds(Long groupId) {
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT user_id FROM group_members WHERE group_id = ? ORDER BY user_id";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, groupId);
+                ResultSet rs = stmt.executeQuery();
+
+                long[] ids = new long[16];
+                int count = 0;
+                while (rs.next()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = rs.getLong(1);
+                }
+                return Arrays.copyOf(ids, count);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
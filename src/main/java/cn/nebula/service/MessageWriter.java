@@ -0,0 +1,349 @@
+package cn.nebula.service;
+
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.model.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind pipeline for chat messages. A single writer thread drains a bounded
+ * queue and group-commits pending INSERTs in one transaction, flushing when the batch
+ * is full or the flush interval has elapsed, so SQLite syncs once per batch instead of
+ * once per message. Callers get a future that completes with the row id after commit.
+ * If a batch fails, its messages are retried one per transaction so that only the
+ * offending message fails.
+ */
+@Component
+public class MessageWriter {
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private ConversationStore conversationStore;
+
+    @Autowired
+    private UnreadCounters unreadCounters;
+
+    @Value("${chat.writer.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${chat.writer.batch-size:256}")
+    private int batchSize;
+
+    @Value("${chat.writer.flush-interval-ms:10}")
+    private long flushIntervalMs;
+
+    @Value("${chat.writer.offer-timeout-ms:100}")
+    private long offerTimeoutMs;
+
+    @Value("${chat.writer.callback-threads:2}")
+    private int callbackThreads;
+
+    private BlockingQueue<PendingMessage> queue;
+    private Thread writerThread;
+    private ExecutorService callbackExecutor;
+    private volatile boolean running;
+
+    // Stats for tuning queue capacity / batch size / flush interval
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicInteger maxBatchSize = new AtomicInteger();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger callbackIndex = new AtomicInteger();
+        callbackExecutor = Executors.newFixedThreadPool(callbackThreads, r -> {
+            Thread t = new Thread(r, "message-writer-callback-" + callbackIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        writerThread = new Thread(this::runWriter, "message-writer");
+        writerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        boolean writerExited = !writerThread.isAlive();
+
+        // An offer can land after the writer's last isEmpty() check; fail it rather than leave it hanging
+        List<PendingMessage> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        for (PendingMessage pending : leftover) {
+            rejected.increment();
+            pending.future.completeExceptionally(new RejectedExecutionException("Message writer stopped"));
+        }
+        // A writer still finishing its last batch hands the futures to this pool; flush
+        // completes them inline if the pool is gone, but there is no reason to make it
+        if (writerExited) {
+            callbackExecutor.shutdown();
+        }
+    }
+
+    public CompletableFuture<Long> submit(String tableName, Long sender, Long receiver, Integer type, String content, long timestamp) {
+        PendingMessage pending = new PendingMessage(tableName, sender, receiver, type, content, timestamp);
+        try {
+            if (running && queue.offer(pending, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                enqueued.increment();
+                return pending.future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        pending.future.completeExceptionally(new RejectedExecutionException("Message write queue is full"));
+        return pending.future;
+    }
+
+    private void runWriter() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Keep collecting until the batch is full or the flush interval expires
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                failAll(batch, e);
+                if (!running) {
+                    break;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                failAll(batch, e);
+            }
+        }
+    }
+
+    // A batch that did not reach flush's completion step must not leave its callers waiting
+    private void failAll(List<PendingMessage> batch, Exception cause) {
+        for (PendingMessage pending : batch) {
+            if (pending.future.completeExceptionally(cause)) {
+                failed.increment();
+            }
+        }
+        batch.clear();
+    }
+
+    private void flush(List<PendingMessage> batch) {
+        long start = System.nanoTime();
+        // Per message: the inserted row, or the error that kept it out
+        Message[] saved = new Message[batch.size()];
+        SQLException[] errors = new SQLException[batch.size()];
+
+        try {
+            write(batch, saved, 0);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (batch.size() == 1) {
+                errors[0] = e;
+            } else {
+                // One bad row must not fail its neighbours: retry them one transaction each
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        write(batch.subList(i, i + 1), saved, i);
+                    } catch (SQLException rowError) {
+                        errors[i] = rowError;
+                    }
+                }
+            }
+        }
+
+        int writtenCount = 0;
+        for (Message message : saved) {
+            if (message != null) {
+                writtenCount++;
+            }
+        }
+        recordBatch(batch.size(), writtenCount, System.nanoTime() - start);
+
+        // Complete futures off the writer thread so slow callbacks never stall the next batch
+        List<PendingMessage> completed = new ArrayList<>(batch);
+        Runnable completion = () -> {
+            for (int i = 0; i < completed.size(); i++) {
+                PendingMessage pending = completed.get(i);
+                if (saved[i] != null) {
+                    pending.future.complete(saved[i].getId());
+                } else {
+                    pending.future.completeExceptionally(errors[i]);
+                }
+            }
+        };
+        try {
+            callbackExecutor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            // The pool is shut down; completing inline is slower but loses nothing
+            completion.run();
+        }
+    }
+
+    /**
+     * Inserts the messages and their conversation summaries in one transaction and, once
+     * committed, stores the inserted rows into saved starting at offset and publishes them.
+     */
+    private void write(List<PendingMessage> batch, Message[] saved, int offset) throws SQLException {
+        long[] ids = new long[batch.size()];
+        List<Message> inserted;
+        List<ConversationStore.Summary> summaries;
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            Map<String, PreparedStatement> statements = new HashMap<>();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingMessage pending = batch.get(i);
+                    PreparedStatement stmt = statements.get(pending.tableName);
+                    if (stmt == null) {
+                        String sql = String.format("INSERT INTO %s (sender, receiver, type, content, status, timestamp) VALUES (?, ?, ?, ?, 0, ?)", pending.tableName);
+                        stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                        statements.put(pending.tableName, stmt);
+                    }
+                    stmt.setLong(1, pending.sender);
+                    stmt.setLong(2, pending.receiver);
+                    stmt.setInt(3, pending.type);
+                    stmt.setString(4, pending.content);
+                    stmt.setLong(5, pending.timestamp);
+                    stmt.executeUpdate();
+
+                    try (ResultSet keys = stmt.getGeneratedKeys()) {
+                        ids[i] = keys.next() ? keys.getLong(1) : -1L;
+                    }
+                }
+
+                // Conversation summaries commit atomically with the messages they describe
+                inserted = toMessages(batch, ids);
+                summaries = conversationStore.persist(conn, inserted);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                for (PreparedStatement stmt : statements.values()) {
+                    stmt.close();
+                }
+                conn.setAutoCommit(true);
+            }
+        }
+
+        for (int i = 0; i < inserted.size(); i++) {
+            saved[offset + i] = inserted.get(i);
+        }
+        conversationStore.publish(summaries);
+        unreadCounters.recordSaved(inserted);
+    }
+
+    private static List<Message> toMessages(List<PendingMessage> batch, long[] ids) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage pending = batch.get(i);
+            Message message = new Message(pending.sender, pending.receiver, pending.type, pending.content);
+            message.setId(ids[i]);
+            message.setTimestamp(pending.timestamp);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private void recordBatch(int size, int writtenCount, long elapsedNanos) {
+        written.add(writtenCount);
+        failed.add(size - writtenCount);
+        batches.incrementAndGet();
+        lastBatchSize.set(size);
+        maxBatchSize.accumulateAndGet(size, Math::max);
+        lastFlushNanos.set(elapsedNanos);
+        totalFlushNanos.addAndGet(elapsedNanos);
+    }
+
+    public Map<String, Object> getStats() {
+        long batchCount = batches.get();
+        long writtenCount = written.sum();
+        long failedCount = failed.sum();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", queue.size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("enqueued", enqueued.sum());
+        stats.put("written", writtenCount);
+        stats.put("failed", failedCount);
+        stats.put("rejected", rejected.sum());
+        stats.put("batches", batchCount);
+        stats.put("avgBatchSize", batchCount == 0 ? 0.0 : (double) (writtenCount + failedCount) / batchCount);
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("maxBatchSize", maxBatchSize.get());
+        stats.put("lastFlushMillis", lastFlushNanos.get() / 1_000_000.0);
+        stats.put("avgFlushMillis", batchCount == 0 ? 0.0 : totalFlushNanos.get() / 1_000_000.0 / batchCount);
+        return stats;
+    }
+
+    private static class PendingMessage {
+        final String tableName;
+        final Long sender;
+        final Long receiver;
+        final Integer type;
+        final String content;
+        final long timestamp;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        PendingMessage(String tableName, Long sender, Long receiver, Integer type, String content, long timestamp) {
+            this.tableName = tableName;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.type = type;
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package cn.nebula.service;
+
+import cn.nebula.config.DatabaseConfig;
+import cn.nebula.db.SqliteDatabase;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Owns the monthly messages_YYYYMM partitions. The next month's table is created ahead
+ * of time, so rollover never waits on DDL, and the active partition is swapped in one
+ * volatile write when the clock crosses into it. The existing partitions are cached as a
+ * sorted list so readers can pick only the months that overlap a time range without
+ * querying sqlite_master.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class PartitionManager {
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Value("${chat.partitions.months-ahead:1}")
+    private int monthsAhead;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    // Current month's partition; replaced as a whole at rollover
+    private volatile Partition active;
+
+    // Existing partitions, newest first; replaced as a whole whenever one is created
+    private volatile List<Partition> partitions = List.of();
+
+    @PostConstruct
+    public void init() throws SQLException {
+        refresh();
+        maintain();
+    }
+
+    // Keeps the current and upcoming months created and rolls the active partition over
+    @Scheduled(fixedDelayString = "${chat.partitions.check-interval-ms:60000}")
+    public void maintain() {
+        YearMonth current = YearMonth.now(zone);
+        try {
+            for (int i = 0; i <= monthsAhead; i++) {
+                ensurePartition(current.plusMonths(i));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        rollOver(System.currentTimeMillis());
+    }
+
+    // Table for a message written at the given time
+    public String getTable(long timestamp) {
+        Partition current = active;
+        if (current != null && current.contains(timestamp)) {
+            return current.table();
+        }
+        if (current == null || timestamp >= current.endMillis()) {
+            return rollOver(timestamp).table();
+        }
+        return tableName(monthOf(timestamp));
+    }
+
+    public String getActiveTable() {
+        return getTable(System.currentTimeMillis());
+    }
+
+    // All existing partitions, newest first
+    public List<String> getTables() {
+        List<String> tables = new ArrayList<>();
+        for (Partition partition : partitions) {
+            tables.add(partition.table());
+        }
+        return tables;
+    }
+
+    // Partitions overlapping [fromTimestamp, toTimestamp], newest first
+    public List<String> getTables(long fromTimestamp, long toTimestamp) {
+        List<String> tables = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (partition.startMillis() <= toTimestamp && partition.endMillis() > fromTimestamp) {
+                tables.add(partition.table());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Partitions that can hold messages with an id above afterId, oldest first. Ids are
+     * seeded per month, so the id itself names the first month worth reading; ids from
+     * before seeding (or 0) select every partition.
+     */
+    public List<String> getTablesAfterId(long afterId) {
+        long idMonth = afterId / DatabaseConfig.MESSAGE_ID_MONTH_FACTOR;
+        List<String> tables = new ArrayList<>();
+        for (Partition partition : partitions) {
+            long month = partition.month().getYear() * 100L + partition.month().getMonthValue();
+            if (month >= idMonth) {
+                tables.add(0, partition.table());
+            }
+        }
+        return tables;
+    }
+
+    private synchronized Partition rollOver(long now) {
+        Partition current = active;
+        YearMonth month = monthOf(now);
+        if (current != null && !month.isAfter(current.month())) {
+            return current;
+        }
+        // Normally pre-created; this covers a missed maintenance run
+        try {
+            ensurePartition(month);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        current = partition(month);
+        active = current;
+        return current;
+    }
+
+    private synchronized void ensurePartition(YearMonth month) throws SQLException {
+        for (Partition partition : partitions) {
+            if (partition.month().equals(month)) {
+                return;
+            }
+        }
+
+        try (Connection conn = database.writer()) {
+            DatabaseConfig.createMessagePartition(conn, month.format(MONTH_FORMAT));
+        }
+        List<Partition> updated = new ArrayList<>(partitions);
+        updated.add(partition(month));
+        updated.sort(Comparator.comparing(Partition::month).reversed());
+        partitions = List.copyOf(updated);
+    }
+
+    private void refresh() throws SQLException {
+        List<Partition> found = new ArrayList<>();
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB 'messages_[0-9][0-9][0-9][0-9][0-9][0-9]'";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    String month = rs.getString(1).substring("messages_".length());
+                    found.add(partition(YearMonth.parse(month, MONTH_FORMAT)));
+                }
+            }
+        }
+        found.sort(Comparator.comparing(Partition::month).reversed());
+        partitions = List.copyOf(found);
+    }
+
+    private Partition partition(YearMonth month) {
+        long start = month.atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = month.plusMonths(1).atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new Partition(tableName(month), month, start, end);
+    }
+
+    private YearMonth monthOf(long timestamp) {
+        return YearMonth.from(Instant.ofEpochMilli(timestamp).atZone(zone));
+    }
+
+    private static String tableName(YearMonth month) {
+        return "messages_" + month.format(MONTH_FORMAT);
+    }
+
+    private record Partition(String table, YearMonth month, long startMillis, long endMillis) {
+        boolean contains(long timestamp) {
+            return timestamp >= startMillis && timestamp < endMillis;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package cn.nebula.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online, fed by WebSocket connects and disconnects (including heartbeat
+ * timeouts) rather than by login and logout. Reads are served from memory. Changes are
+ * remembered twice: in a dirty set that is written to users.status in periodic batches,
+ * and in a change set that the presence notifier drains to tell friends, so a user who
+ * flaps several times between two drains produces at most one notification. Offline users
+ * are forgotten once their change has been both flushed and drained; a missing entry
+ * reads as offline.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class PresenceRegistry {
+
+    public static final int STATUS_OFFLINE = 0;
+    public static final int STATUS_ONLINE = 1;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${cluster.enabled:false}")
+    private boolean clustered;
+
+    private final Map<Long, Presence> presence = new ConcurrentHashMap<>();
+
+    // Users whose status changed since the last flush / the last drain
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final Set<Long> changed = ConcurrentHashMap.newKeySet();
+
+    // Last state the notifier published per user, so a flap that ends where it started is dropped
+    private final Map<Long, Boolean> published = new ConcurrentHashMap<>();
+
+    // Nobody is connected at startup, whatever the column says after a crash. In a cluster the
+    // other nodes' users share the column and are still online, so it is left alone.
+    @PostConstruct
+    public void reset() throws SQLException {
+        if (clustered) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE users SET status = " + STATUS_OFFLINE + " WHERE status != " + STATUS_OFFLINE);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    public void online(long userId) {
+        update(userId, true);
+    }
+
+    public void offline(long userId) {
+        update(userId, false);
+    }
+
+    public boolean isOnline(long userId) {
+        Presence current = presence.get(userId);
+        return current != null && current.online();
+    }
+
+    public int statusOf(long userId) {
+        return isOnline(userId) ? STATUS_ONLINE : STATUS_OFFLINE;
+    }
+
+    // When the user last connected or disconnected, or 0 if they are offline and already forgotten
+    public long getLastSeen(long userId) {
+        Presence current = presence.get(userId);
+        return current == null ? 0L : current.since();
+    }
+
+    /**
+     * Takes the users whose presence changed since the last call and returns those whose
+     * current state differs from what was last published, with that state.
+     */
+    public List<Change> drainChanges() {
+        List<Change> result = new ArrayList<>();
+        Iterator<Long> it = changed.iterator();
+        while (it.hasNext()) {
+            long userId = it.next();
+            it.remove();
+            Presence current = presence.get(userId);
+            boolean online = current != null && current.online();
+            Boolean previous = published.put(userId, online);
+            if (previous == null ? online : previous != online) {
+                result.add(new Change(userId, online, current == null ? 0L : current.since()));
+            }
+            if (!online) {
+                published.remove(userId);
+                forgetIfSettled(userId);
+            }
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.presence.flush-interval-ms:5000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<Long> userIds = new ArrayList<>();
+        Iterator<Long> it = dirty.iterator();
+        while (it.hasNext()) {
+            userIds.add(it.next());
+            // A change after this point re-marks the user, so it is picked up by the next flush
+            it.remove();
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            String sql = "UPDATE users SET status = ? WHERE id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (long userId : userIds) {
+                    stmt.setInt(1, statusOf(userId));
+                    stmt.setLong(2, userId);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // Retry on the next flush
+            dirty.addAll(userIds);
+            return;
+        }
+        for (long userId : userIds) {
+            forgetIfSettled(userId);
+        }
+    }
+
+    // Drops an offline user's entry once nothing is waiting to be flushed or published for them
+    private void forgetIfSettled(long userId) {
+        presence.computeIfPresent(userId, (id, current) ->
+                current.online() || dirty.contains(id) || changed.contains(id) ? current : null);
+    }
+
+    private void update(long userId, boolean online) {
+        Presence previous = presence.put(userId, new Presence(online, System.currentTimeMillis()));
+        if (previous == null || previous.online() != online) {
+            dirty.add(userId);
+            changed.add(userId);
+        }
+    }
+
+    private record Presence(boolean online, long since) {}
+
+    public record Change(long userId, boolean online, long since) {}
+}
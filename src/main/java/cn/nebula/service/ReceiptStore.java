@@ -0,0 +1,274 @@
+package cn.nebula.service;
+
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery and read receipts for private chats, kept as two watermarks per (owner, peer):
+ * every message from peer to owner with an id at or below delivered_up_to / read_up_to is
+ * delivered / read. Acks only ever move a watermark forward, so they are cheap, idempotent
+ * and can arrive out of order. Changed watermarks are coalesced and flushed to the receipts
+ * table in the background instead of rewriting message rows. In a cluster each node that
+ * moves a watermark sends the new values to the others, which apply them in memory only;
+ * the database row is written by the node that took the ack.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class ReceiptStore {
+
+    public static final int STATUS_SENT = 0;
+    public static final int STATUS_DELIVERED = 1;
+    public static final int STATUS_READ = 2;
+
+    private static final String UPSERT_SQL = """
+        INSERT INTO receipts (owner_id, peer_id, delivered_up_to, read_up_to)
+        VALUES (?, ?, ?, ?)
+        ON CONFLICT(owner_id, peer_id) DO UPDATE SET
+            delivered_up_to = max(delivered_up_to, excluded.delivered_up_to),
+            read_up_to = max(read_up_to, excluded.read_up_to)
+        """;
+
+    private static final String REPLAY_CURSOR_SQL = """
+        INSERT INTO replay_cursors (user_id, replayed_up_to) VALUES (?, ?)
+        ON CONFLICT(user_id) DO UPDATE SET replayed_up_to = max(replayed_up_to, excluded.replayed_up_to)
+        """;
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    private final Map<Key, Watermark> watermarks = new ConcurrentHashMap<>();
+
+    // Watermarks changed since the last flush
+    private final Set<Key> dirty = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void load() throws SQLException {
+        // Watermarks moved on another node; advancing is idempotent, so order does not matter
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.ReceiptChanged change) {
+                Watermark watermark = watermark(new Key(change.ownerId(), change.peerId()));
+                advance(watermark.deliveredUpTo, change.deliveredUpTo());
+                advance(watermark.readUpTo, change.readUpTo());
+            }
+        });
+
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT owner_id, peer_id, delivered_up_to, read_up_to FROM receipts";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    // Merged rather than put, in case a newer value already arrived from another node
+                    Watermark watermark = watermark(new Key(rs.getLong("owner_id"), rs.getLong("peer_id")));
+                    advance(watermark.deliveredUpTo, rs.getLong("delivered_up_to"));
+                    advance(watermark.readUpTo, rs.getLong("read_up_to"));
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    // Returns true if the delivered watermark moved
+    public boolean markDelivered(long ownerId, long peerId, long upToId) {
+        Key key = new Key(ownerId, peerId);
+        Watermark watermark = watermark(key);
+        boolean advanced = advance(watermark.deliveredUpTo, upToId);
+        if (advanced) {
+            dirty.add(key);
+            broadcast(key, watermark);
+        }
+        return advanced;
+    }
+
+    // Reading a message implies it was delivered; returns true if either watermark moved
+    public boolean markRead(long ownerId, long peerId, long upToId) {
+        Key key = new Key(ownerId, peerId);
+        Watermark watermark = watermark(key);
+        boolean advanced = advance(watermark.readUpTo, upToId);
+        advanced |= advance(watermark.deliveredUpTo, upToId);
+        if (advanced) {
+            dirty.add(key);
+            broadcast(key, watermark);
+        }
+        return advanced;
+    }
+
+    public long getDeliveredUpTo(long ownerId, long peerId) {
+        Watermark watermark = watermarks.get(new Key(ownerId, peerId));
+        return watermark == null ? 0L : watermark.deliveredUpTo.get();
+    }
+
+    public long getReadUpTo(long ownerId, long peerId) {
+        Watermark watermark = watermarks.get(new Key(ownerId, peerId));
+        return watermark == null ? 0L : watermark.readUpTo.get();
+    }
+
+    // Status of a message from sender to receiver, derived from the receiver's watermarks
+    public int statusOf(long receiverId, long senderId, long messageId) {
+        Watermark watermark = watermarks.get(new Key(receiverId, senderId));
+        if (watermark == null) {
+            return STATUS_SENT;
+        }
+        if (messageId <= watermark.readUpTo.get()) {
+            return STATUS_READ;
+        }
+        return messageId <= watermark.deliveredUpTo.get() ? STATUS_DELIVERED : STATUS_SENT;
+    }
+
+    // Highest message id an offline replay to this user has had acked, or 0
+    public long getReplayCursor(long userId) {
+        try (Connection conn = database.reader()) {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT replayed_up_to FROM replay_cursors WHERE user_id = ?")) {
+                stmt.setLong(1, userId);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0L;
+    }
+
+    /**
+     * Records an acked replay batch: advances the delivered watermark for every sender in
+     * the batch and writes those watermarks together with the user's replay cursor in one
+     * transaction, rather than leaving them to the background flush. Returns the senders
+     * whose watermark moved.
+     */
+    public List<Long> markReplayed(long ownerId, Map<Long, Long> deliveredUpToBySender, long replayCursor) {
+        List<Long> advanced = new ArrayList<>();
+        List<Key> keys = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : deliveredUpToBySender.entrySet()) {
+            Key key = new Key(ownerId, entry.getKey());
+            Watermark watermark = watermark(key);
+            if (advance(watermark.deliveredUpTo, entry.getValue())) {
+                advanced.add(entry.getKey());
+                keys.add(key);
+                broadcast(key, watermark);
+            }
+        }
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement receipts = conn.prepareStatement(UPSERT_SQL);
+                 PreparedStatement cursor = conn.prepareStatement(REPLAY_CURSOR_SQL)) {
+                for (Key key : keys) {
+                    Watermark watermark = watermarks.get(key);
+                    receipts.setLong(1, key.ownerId());
+                    receipts.setLong(2, key.peerId());
+                    receipts.setLong(3, watermark.deliveredUpTo.get());
+                    receipts.setLong(4, watermark.readUpTo.get());
+                    receipts.addBatch();
+                }
+                receipts.executeBatch();
+                cursor.setLong(1, ownerId);
+                cursor.setLong(2, replayCursor);
+                cursor.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // The watermarks are already advanced in memory; let the background flush persist them
+            dirty.addAll(keys);
+        }
+        return advanced;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.receipts.flush-interval-ms:1000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<Key> keys = new ArrayList<>();
+        Iterator<Key> it = dirty.iterator();
+        while (it.hasNext()) {
+            keys.add(it.next());
+            it.remove();
+        }
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(UPSERT_SQL)) {
+                for (Key key : keys) {
+                    Watermark watermark = watermarks.get(key);
+                    stmt.setLong(1, key.ownerId());
+                    stmt.setLong(2, key.peerId());
+                    stmt.setLong(3, watermark.deliveredUpTo.get());
+                    stmt.setLong(4, watermark.readUpTo.get());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // Retry on the next flush
+            dirty.addAll(keys);
+        }
+    }
+
+    private void broadcast(Key key, Watermark watermark) {
+        clusterRouter.broadcast(new ClusterMessage.ReceiptChanged(key.ownerId(), key.peerId(),
+                watermark.deliveredUpTo.get(), watermark.readUpTo.get()));
+    }
+
+    private Watermark watermark(Key key) {
+        return watermarks.computeIfAbsent(key, k -> new Watermark());
+    }
+
+    private static boolean advance(AtomicLong mark, long upToId) {
+        long current = mark.get();
+        while (upToId > current) {
+            if (mark.compareAndSet(current, upToId)) {
+                return true;
+            }
+            current = mark.get();
+        }
+        return false;
+    }
+
+    private static class Watermark {
+        final AtomicLong deliveredUpTo = new AtomicLong();
+        final AtomicLong readUpTo = new AtomicLong();
+    }
+
+    private record Key(long ownerId, long peerId) {}
+}
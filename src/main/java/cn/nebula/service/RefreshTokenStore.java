@@ -0,0 +1,250 @@
+package cn.nebula.service;
+
+import cn.nebula.db.SqliteDatabase;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opaque refresh tokens, stored only as their SHA-256 so a copy of the database cannot be
+ * replayed. Every refresh spends the presented token and issues its successor in the same
+ * family (the chain that started at one login). Presenting a token that was already spent
+ * means it leaked or was replayed, so the whole family is revoked and both holders have
+ * to log in again. The one exception is the family's newest spent token presented again
+ * within reuseGraceMs: that is usually a second tab of the same browser that raced the
+ * first one to refresh, so it is refused as SUPERSEDED without revoking anything and the
+ * client picks up the successor its other tab stored. Renewing a session is a hash and
+ * two indexed writes; BCrypt is only needed for the login itself.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class RefreshTokenStore {
+
+    public enum Status { OK, INVALID, EXPIRED, REUSED, SUPERSEDED }
+
+    public record Rotation(Status status, long userId, String token) {}
+
+    private static final int TOKEN_BYTES = 32;
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Value("${jwt.refresh-expiration:2592000000}")
+    private long refreshExpirationMs;
+
+    @Value("${jwt.refresh-reuse-grace-ms:10000}")
+    private long reuseGraceMs;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder rotated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder reuseDetected = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder familiesRevoked = new LongAdder();
+
+    // Starts a new family for a fresh login
+    public String issue(long userId) throws SQLException {
+        try (Connection conn = database.writer()) {
+            String token = insert(conn, userId, newId(16));
+            issued.increment();
+            return token;
+        }
+    }
+
+    public Rotation rotate(String token) {
+        if (token == null || token.isEmpty()) {
+            rejected.increment();
+            return new Rotation(Status.INVALID, 0L, null);
+        }
+
+        String hash = hash(token);
+        // The single writer connection serializes rotations, so a token is spent only once
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try {
+                Rotation rotation = rotate(conn, hash);
+                conn.commit();
+                return rotation;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            rejected.increment();
+            return new Rotation(Status.INVALID, 0L, null);
+        }
+    }
+
+    // Ends the login the token belongs to, e.g. on logout
+    public boolean revokeFamily(String token) {
+        if (token == null || token.isEmpty()) {
+            return false;
+        }
+        try (Connection conn = database.writer()) {
+            String sql = "UPDATE refresh_tokens SET revoked = 1 WHERE family_id = " +
+                    "(SELECT family_id FROM refresh_tokens WHERE token_hash = ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, hash(token));
+                if (stmt.executeUpdate() > 0) {
+                    familiesRevoked.increment();
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Ends every login of the user, e.g. on a logout that did not say which one
+    public boolean revokeAll(long userId) {
+        try (Connection conn = database.writer()) {
+            String sql = "UPDATE refresh_tokens SET revoked = 1 WHERE user_id = ? AND revoked = 0";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, userId);
+                if (stmt.executeUpdate() > 0) {
+                    familiesRevoked.increment();
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Spent and revoked tokens are kept until they expire so that reuse is still recognized
+    @Scheduled(fixedDelayString = "${jwt.refresh-purge-interval-ms:3600000}")
+    public void purgeExpired() {
+        try (Connection conn = database.writer()) {
+            try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM refresh_tokens WHERE expires_at < ?")) {
+                stmt.setLong(1, System.currentTimeMillis());
+                stmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("issued", issued.sum());
+        stats.put("rotated", rotated.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("reuseDetected", reuseDetected.sum());
+        stats.put("superseded", superseded.sum());
+        stats.put("familiesRevoked", familiesRevoked.sum());
+        return stats;
+    }
+
+    private Rotation rotate(Connection conn, String hash) throws SQLException {
+        long userId;
+        String familyId;
+        long expiresAt;
+        long usedAt;
+        boolean revoked;
+        String sql = "SELECT user_id, family_id, expires_at, used, revoked FROM refresh_tokens WHERE token_hash = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, hash);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                rejected.increment();
+                return new Rotation(Status.INVALID, 0L, null);
+            }
+            userId = rs.getLong("user_id");
+            familyId = rs.getString("family_id");
+            expiresAt = rs.getLong("expires_at");
+            usedAt = rs.getLong("used");
+            revoked = rs.getInt("revoked") != 0;
+        }
+
+        if (revoked) {
+            rejected.increment();
+            return new Rotation(Status.INVALID, userId, null);
+        }
+        if (usedAt != 0 && isNewestSpent(conn, familyId, usedAt) && System.currentTimeMillis() - usedAt < reuseGraceMs) {
+            superseded.increment();
+            return new Rotation(Status.SUPERSEDED, userId, null);
+        }
+        if (usedAt != 0) {
+            try (PreparedStatement stmt = conn.prepareStatement("UPDATE refresh_tokens SET revoked = 1 WHERE family_id = ?")) {
+                stmt.setString(1, familyId);
+                stmt.executeUpdate();
+            }
+            reuseDetected.increment();
+            familiesRevoked.increment();
+            return new Rotation(Status.REUSED, userId, null);
+        }
+        if (expiresAt < System.currentTimeMillis()) {
+            rejected.increment();
+            return new Rotation(Status.EXPIRED, userId, null);
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE refresh_tokens SET used = ? WHERE token_hash = ?")) {
+            stmt.setLong(1, Math.max(1L, System.currentTimeMillis()));
+            stmt.setString(2, hash);
+            stmt.executeUpdate();
+        }
+        String next = insert(conn, userId, familyId);
+        rotated.increment();
+        return new Rotation(Status.OK, userId, next);
+    }
+
+    // Whether no token of the family was spent after this one, i.e. its successor is still live
+    private boolean isNewestSpent(Connection conn, String familyId, long usedAt) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM refresh_tokens WHERE family_id = ? AND used > ? LIMIT 1")) {
+            stmt.setString(1, familyId);
+            stmt.setLong(2, usedAt);
+            return !stmt.executeQuery().next();
+        }
+    }
+
+    private String insert(Connection conn, long userId, String familyId) throws SQLException {
+        String token = newId(TOKEN_BYTES);
+        String sql = "INSERT INTO refresh_tokens (token_hash, user_id, family_id, expires_at) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, hash(token));
+            stmt.setLong(2, userId);
+            stmt.setString(3, familyId);
+            stmt.setLong(4, System.currentTimeMillis() + refreshExpirationMs);
+            stmt.executeUpdate();
+        }
+        return token;
+    }
+
+    private String newId(int bytes) {
+        byte[] value = new byte[bytes];
+        random.nextBytes(value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value);
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package cn.nebula.service;
+
+import cn.nebula.db.SqliteDatabase;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fills the per-partition full-text indexes (messages_YYYYMM_fts) behind the message
+ * writer. Each run reads the rows above the partition's indexed_up_to watermark in id
+ * order and inserts them into the index in batches, one short writer transaction per
+ * batch that also advances the watermark, so a restart resumes exactly where it stopped
+ * and the write path never waits on indexing for more than one batch. Messages become
+ * searchable within about one indexInterval of being saved.
+ */
+@Component
+@DependsOn("initializeDatabase")
+public class SearchIndexer {
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private PartitionManager partitionManager;
+
+    @Value("${chat.search.index-interval-ms:1000}")
+    private long indexIntervalMs;
+
+    @Value("${chat.search.index-batch-size:500}")
+    private int batchSize;
+
+    private ScheduledExecutorService executor;
+
+    // Highest indexed message id per partition, mirrored from search_index_progress
+    private final Map<String, Long> indexedUpTo = new ConcurrentHashMap<>();
+
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong lastRunNanos = new AtomicLong();
+
+    @PostConstruct
+    public void start() throws SQLException {
+        try (Connection conn = database.reader()) {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT table_name, indexed_up_to FROM search_index_progress")) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    indexedUpTo.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "search-indexer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::run, indexIntervalMs, indexIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    // Highest message id of the partition that searches can see
+    public long getIndexedUpTo(String table) {
+        return indexedUpTo.getOrDefault(table, 0L);
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        try {
+            List<String> tables = partitionManager.getTables();
+            // Oldest first, so a backlog after upgrading fills in history order
+            for (int i = tables.size() - 1; i >= 0; i--) {
+                while (indexBatch(tables.get(i)) == batchSize) {
+                    // A full batch means more rows are waiting
+                }
+            }
+        } catch (SQLException e) {
+            failures.increment();
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Keep the scheduled task alive
+            failures.increment();
+            e.printStackTrace();
+        }
+        lastRunNanos.set(System.nanoTime() - start);
+    }
+
+    // Indexes the next batch of the partition; returns the number of rows indexed
+    private int indexBatch(String table) throws SQLException {
+        long after = getIndexedUpTo(table);
+        long[] ids = new long[batchSize];
+        String[] texts = new String[batchSize];
+        int count = 0;
+
+        // Read on a reader connection so the writer is held only for the inserts
+        try (Connection conn = database.reader()) {
+            String sql = String.format("SELECT id, content FROM %s WHERE id > ? ORDER BY id LIMIT ?", table);
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setLong(1, after);
+                stmt.setInt(2, batchSize);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    ids[count] = rs.getLong(1);
+                    texts[count++] = SearchText.segment(rs.getString(2));
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long last = ids[count - 1];
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            try {
+                // Another node sharing the database may have indexed these rows already
+                long stored = readProgress(conn, table);
+                if (stored > after) {
+                    conn.rollback();
+                    indexedUpTo.put(table, stored);
+                    return batchSize;
+                }
+                String sql = String.format("INSERT INTO %s_fts (rowid, content) VALUES (?, ?)", table);
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < count; i++) {
+                        stmt.setLong(1, ids[i]);
+                        stmt.setString(2, texts[i]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                String progressSql = "INSERT INTO search_index_progress (table_name, indexed_up_to) VALUES (?, ?) " +
+                        "ON CONFLICT(table_name) DO UPDATE SET indexed_up_to = excluded.indexed_up_to";
+                try (PreparedStatement stmt = conn.prepareStatement(progressSql)) {
+                    stmt.setString(1, table);
+                    stmt.setLong(2, last);
+                    stmt.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        indexedUpTo.put(table, last);
+        indexed.add(count);
+        batches.increment();
+        return count;
+    }
+
+    private static long readProgress(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT indexed_up_to FROM search_index_progress WHERE table_name = ?")) {
+            stmt.setString(1, table);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("indexed", indexed.sum());
+        stats.put("batches", batches.sum());
+        stats.put("failures", failures.sum());
+        stats.put("lastRunMillis", lastRunNanos.get() / 1_000_000.0);
+        stats.put("indexedUpTo", new LinkedHashMap<>(indexedUpTo));
+        return stats;
+    }
+}
@@ -0,0 +1,220 @@
+package cn.nebula.service;
+
+import cn.nebula.db.SqliteDatabase;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full-text search over the caller's own conversations: private chats they sent or
+ * received and the groups they are a member of, optionally narrowed to one contact or
+ * group. Every term must match. Results come newest first: partitions in reverse month
+ * order and, within one, by descending message id; each carries its bm25 score. The
+ * cursor is the (partition, id) of the last result. Ranking by bm25 would make a poor
+ * cursor, because the scores of existing rows shift whenever the indexer adds rows to the
+ * same partition, so a (rank, id) keyset could skip or repeat results between pages.
+ * Only reads the indexes, never the write path.
+ */
+@Service
+public class SearchService {
+
+    private static final int SNIPPET_LENGTH = 60;
+    private static final int SNIPPET_LEAD = 15;
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private PartitionManager partitionManager;
+
+    @Autowired
+    private GroupService groupService;
+
+    /**
+     * One page of results for the query. contactId and groupId are optional and mutually
+     * exclusive. Throws IllegalArgumentException for a query without searchable terms or
+     * a cursor that was not returned by a previous page.
+     */
+    public Map<String, Object> search(Long userId, String query, Long contactId, Long groupId, int limit, String cursor) {
+        List<String> terms = SearchText.terms(query);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Empty search query");
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        List<Map<String, Object>> messages = new ArrayList<>();
+        result.put("messages", messages);
+        result.put("nextCursor", null);
+
+        if (groupId != null && !groupService.isMember(groupId, userId)) {
+            return result;
+        }
+
+        List<String> tables = partitionManager.getTables();
+        Position position = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor, tables);
+        String match = SearchText.toMatchQuery(terms);
+        // One row past the page tells whether there is a next page
+        int wanted = limit + 1;
+        String lastTable = null;
+
+        try (Connection conn = database.reader()) {
+            boolean reached = position == null;
+            for (String tableName : tables) {
+                if (!reached && !tableName.equals(position.table())) {
+                    continue;
+                }
+                boolean keyset = !reached;
+                reached = true;
+
+                String sql = String.format("""
+                    SELECT m.id, m.sender, m.receiver, m.type, m.content, m.timestamp, f.rank AS score
+                    FROM %s_fts f JOIN %s m ON m.id = f.rowid
+                    WHERE f.content MATCH ? AND %s %s
+                    ORDER BY m.id DESC
+                    LIMIT ?
+                    """, tableName, tableName, scope(contactId, groupId), keyset ? "AND m.id < ?" : "");
+
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    int index = 1;
+                    stmt.setString(index++, match);
+                    if (contactId != null) {
+                        stmt.setLong(index++, Math.min(userId, contactId));
+                        stmt.setLong(index++, Math.max(userId, contactId));
+                    } else if (groupId != null) {
+                        stmt.setLong(index++, groupId);
+                    } else {
+                        stmt.setLong(index++, userId);
+                        stmt.setLong(index++, userId);
+                        stmt.setLong(index++, userId);
+                    }
+                    if (keyset) {
+                        stmt.setLong(index++, position.id());
+                    }
+                    stmt.setInt(index, wanted - messages.size());
+
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        boolean isGroup = rs.getInt("type") == 1;
+                        long sender = rs.getLong("sender");
+                        long receiver = rs.getLong("receiver");
+                        Map<String, Object> message = new HashMap<>();
+                        message.put("id", rs.getLong("id"));
+                        message.put("sender", sender);
+                        message.put("receiver", receiver);
+                        message.put("isGroup", isGroup);
+                        // The conversation the hit belongs to, as the caller sees it
+                        message.put("contactId", isGroup || sender == userId ? receiver : sender);
+                        message.put("timestamp", rs.getLong("timestamp"));
+                        message.put("score", rs.getDouble("score"));
+                        addSnippet(message, rs.getString("content"), terms);
+                        messages.add(message);
+                        if (messages.size() <= limit) {
+                            lastTable = tableName;
+                        }
+                    }
+                }
+
+                if (messages.size() >= wanted) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        if (messages.size() > limit) {
+            messages.subList(limit, messages.size()).clear();
+            result.put("nextCursor", encodeCursor(lastTable, (Long) messages.get(limit - 1).get("id")));
+        }
+        return result;
+    }
+
+    private static String scope(Long contactId, Long groupId) {
+        if (contactId != null) {
+            return "m.type = 0 AND min(m.sender, m.receiver) = ? AND max(m.sender, m.receiver) = ?";
+        }
+        if (groupId != null) {
+            return "m.type = 1 AND m.receiver = ?";
+        }
+        return "((m.type = 0 AND (m.sender = ? OR m.receiver = ?)) " +
+                "OR (m.type = 1 AND m.receiver IN (SELECT group_id FROM group_members WHERE user_id = ?)))";
+    }
+
+    /**
+     * Puts a window of the content around the first match as "snippet", with "…" where it
+     * was cut, and the [start, end) offsets of every term occurrence in it as "highlights".
+     * Offsets instead of markup, so clients never have to trust message text as HTML.
+     */
+    private static void addSnippet(Map<String, Object> message, String content, List<String> terms) {
+        int first = -1;
+        for (String term : terms) {
+            int at = indexOfIgnoreCase(content, term, 0);
+            if (at >= 0 && (first < 0 || at < first)) {
+                first = at;
+            }
+        }
+        int start = first <= SNIPPET_LEAD ? 0 : first - SNIPPET_LEAD;
+        if (start > 0 && Character.isLowSurrogate(content.charAt(start))) {
+            start--;
+        }
+        int end = Math.min(content.length(), start + SNIPPET_LENGTH);
+        if (end < content.length() && Character.isLowSurrogate(content.charAt(end))) {
+            end++;
+        }
+
+        String prefix = start > 0 ? "…" : "";
+        int shift = prefix.length() - start;
+        List<int[]> highlights = new ArrayList<>();
+        for (String term : terms) {
+            int at = indexOfIgnoreCase(content, term, start);
+            while (at >= 0 && at < end) {
+                highlights.add(new int[] {at + shift, Math.min(at + term.length(), end) + shift});
+                at = indexOfIgnoreCase(content, term, at + term.length());
+            }
+        }
+        highlights.sort(Comparator.comparingInt(range -> range[0]));
+
+        message.put("snippet", prefix + content.substring(start, end) + (end < content.length() ? "…" : ""));
+        message.put("highlights", highlights);
+    }
+
+    private static int indexOfIgnoreCase(String text, String term, int from) {
+        for (int i = from; i <= text.length() - term.length(); i++) {
+            if (text.regionMatches(true, i, term, 0, term.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String encodeCursor(String table, long id) {
+        String raw = table + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Position decodeCursor(String cursor, List<String> tables) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            // The table name ends up in SQL, so it must be one of ours
+            if (parts.length != 2 || !tables.contains(parts[0])) {
+                throw new IllegalArgumentException("Unknown search partition");
+            }
+            return new Position(parts[0], Long.parseLong(parts[1]));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid search cursor", e);
+        }
+    }
+
+    private record Position(String table, long id) {}
+}
@@ -0,0 +1,71 @@
+package cn.nebula.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text preparation shared by the search indexer and queries. The FTS5 unicode61 tokenizer
+ * splits on spaces and punctuation only, which would turn a whole Chinese sentence into
+ * one token, so every CJK character is surrounded by spaces before indexing and a query
+ * term becomes a phrase of its characters: "火锅" is searched as the phrase "火 锅".
+ * Latin words stay whole tokens and are matched by prefix.
+ */
+final class SearchText {
+
+    static final int MAX_TERMS = 8;
+
+    private SearchText() {}
+
+    // Text as it is stored in the index
+    static String segment(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                out.append(' ').appendCodePoint(codePoint).append(' ');
+            } else {
+                out.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return out.toString();
+    }
+
+    // Whitespace-separated terms that contain at least one letter or digit, at most MAX_TERMS
+    static List<String> terms(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null) {
+            return terms;
+        }
+        for (String term : query.trim().split("\\s+")) {
+            if (terms.size() < MAX_TERMS && term.codePoints().anyMatch(Character::isLetterOrDigit)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    // FTS5 MATCH expression requiring every term; user input only ever appears inside quoted strings
+    static String toMatchQuery(List<String> terms) {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            if (match.length() > 0) {
+                match.append(" AND ");
+            }
+            match.append('"').append(segment(term).trim().replace("\"", "\"\"")).append('"');
+            int last = term.codePointBefore(term.length());
+            if (Character.isLetterOrDigit(last) && !isCjk(last)) {
+                match.append(" *");
+            }
+        }
+        return match.toString();
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,235 @@
+package cn.nebula.service;
+
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.model.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory unread counters per (receiver, peer), where the peer is the sending user for
+ * private chats or the group for group chats. Saved messages increment them, mark-as-read
+ * resets or recounts them. The changes, not the counts, are written back to
+ * conversations.unread_count in the background: increments as deltas and resets or
+ * recounts as absolute values, so nodes sharing the database add up their increments for
+ * a receiver instead of overwriting each other's. On restart the counters are rebuilt from
+ * that column. Counters that drop to zero are removed; every change to one receiver's
+ * counters runs inside compute on that receiver so a removal never loses an increment.
+ * In a cluster each change is also sent to the other nodes, which apply it to their
+ * counters without writing it back; the node that made the change writes it.
+ */
+@Component
+@DependsOn({"initializeDatabase", "conversationStore"})
+public class UnreadCounters {
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private GroupService groupService;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    // receiver -> peer -> unread count; only non-zero counts are held
+    private final Map<Long, Map<Peer, Integer>> counters = new ConcurrentHashMap<>();
+
+    // Changes not yet written back, per counter
+    private final Map<Key, Pending> dirty = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void load() throws SQLException {
+        try (Connection conn = database.reader()) {
+            String sql = "SELECT owner_id, peer_id, peer_type, unread_count FROM conversations WHERE unread_count > 0";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    counters.computeIfAbsent(rs.getLong("owner_id"), id -> new ConcurrentHashMap<>())
+                            .put(new Peer(rs.getLong("peer_id"), rs.getInt("peer_type")), rs.getInt("unread_count"));
+                }
+            }
+        }
+
+        // Changes made on another node, already written back there
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.UnreadIncremented saved) {
+                countSaved(saved.senderId(), saved.receiverId(), saved.messageType(), false);
+            } else if (message instanceof ClusterMessage.UnreadSet change) {
+                set(change.receiverId(), change.peerId(), change.peerType(), change.count(), false);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    // Called by the message writer once a batch is committed
+    public void recordSaved(List<Message> messages) {
+        for (Message message : messages) {
+            countSaved(message.getSender(), message.getReceiver(), message.getType(), true);
+            clusterRouter.broadcast(new ClusterMessage.UnreadIncremented(
+                    message.getSender(), message.getReceiver(), message.getType()));
+        }
+    }
+
+    private void countSaved(long senderId, long receiverId, int messageType, boolean writeBack) {
+        if (messageType == ConversationStore.PEER_GROUP) {
+            for (long member : groupService.getMemberIds(receiverId)) {
+                if (member != senderId) {
+                    increment(member, receiverId, ConversationStore.PEER_GROUP, writeBack);
+                }
+            }
+        } else {
+            increment(receiverId, senderId, ConversationStore.PEER_USER, writeBack);
+        }
+    }
+
+    private void increment(long receiverId, long peerId, int peerType, boolean writeBack) {
+        Peer peer = new Peer(peerId, peerType);
+        counters.compute(receiverId, (id, peers) -> {
+            if (peers == null) {
+                peers = new ConcurrentHashMap<>();
+            }
+            peers.merge(peer, 1, Integer::sum);
+            if (writeBack) {
+                dirty.merge(new Key(receiverId, peer), Pending.INCREMENT, Pending::then);
+            }
+            return peers;
+        });
+    }
+
+    public void reset(long receiverId, long peerId, int peerType) {
+        set(receiverId, peerId, peerType, 0);
+    }
+
+    // Replaces a counter with a recount, e.g. after the receiver read part of a conversation
+    public void set(long receiverId, long peerId, int peerType, int count) {
+        set(receiverId, peerId, peerType, count, true);
+        clusterRouter.broadcast(new ClusterMessage.UnreadSet(receiverId, peerId, peerType, count));
+    }
+
+    private void set(long receiverId, long peerId, int peerType, int count, boolean writeBack) {
+        Peer peer = new Peer(peerId, peerType);
+        counters.compute(receiverId, (id, peers) -> {
+            if (writeBack) {
+                // Written even if unchanged here: another node may have counted messages for this receiver
+                dirty.merge(new Key(receiverId, peer), new Pending(count, 0), Pending::then);
+            }
+            if (peers == null) {
+                if (count == 0) {
+                    return null;
+                }
+                peers = new ConcurrentHashMap<>();
+            }
+            if (count == 0) {
+                peers.remove(peer);
+            } else {
+                peers.put(peer, count);
+            }
+            return peers.isEmpty() ? null : peers;
+        });
+    }
+
+    public int get(long receiverId, long peerId, int peerType) {
+        Map<Peer, Integer> peers = counters.get(receiverId);
+        if (peers == null) {
+            return 0;
+        }
+        Integer count = peers.get(new Peer(peerId, peerType));
+        return count == null ? 0 : count;
+    }
+
+    // All non-zero counters for one receiver
+    public List<Unread> getAll(long receiverId) {
+        List<Unread> result = new ArrayList<>();
+        Map<Peer, Integer> peers = counters.get(receiverId);
+        if (peers != null) {
+            for (Map.Entry<Peer, Integer> entry : peers.entrySet()) {
+                result.add(new Unread(entry.getKey().peerId(), entry.getKey().peerType(), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelayString = "${chat.unread.flush-interval-ms:1000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        Map<Key, Pending> changes = new HashMap<>();
+        for (Key key : dirty.keySet()) {
+            // A change after this point starts a new pending entry, picked up by the next flush
+            Pending pending = dirty.remove(key);
+            if (pending != null) {
+                changes.put(key, pending);
+            }
+        }
+
+        try (Connection conn = database.writer()) {
+            conn.setAutoCommit(false);
+            String sql = "UPDATE conversations SET unread_count = max(0, coalesce(?, unread_count) + ?) " +
+                    "WHERE owner_id = ? AND peer_type = ? AND peer_id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (Map.Entry<Key, Pending> change : changes.entrySet()) {
+                    Key key = change.getKey();
+                    Pending pending = change.getValue();
+                    if (pending.base() == null) {
+                        stmt.setNull(1, Types.INTEGER);
+                    } else {
+                        stmt.setInt(1, pending.base());
+                    }
+                    stmt.setInt(2, pending.delta());
+                    stmt.setLong(3, key.receiverId());
+                    stmt.setInt(4, key.peer().peerType());
+                    stmt.setLong(5, key.peer().peerId());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // Retry on the next flush, ahead of anything that changed since
+            changes.forEach((key, pending) -> dirty.merge(key, pending, (newer, failed) -> failed.then(newer)));
+        }
+    }
+
+    private record Peer(long peerId, int peerType) {}
+
+    private record Key(long receiverId, Peer peer) {}
+
+    // An absolute value to store first (null to keep the column's), then a delta to add
+    private record Pending(Integer base, int delta) {
+        static final Pending INCREMENT = new Pending(null, 1);
+
+        Pending then(Pending later) {
+            return later.base() != null ? later : new Pending(base, delta + later.delta());
+        }
+    }
+
+    public record Unread(long peerId, int peerType, int count) {}
+}
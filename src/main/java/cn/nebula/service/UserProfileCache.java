@@ -0,0 +1,151 @@
+package cn.nebula.service;
+
+import cn.nebula.model.User;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded map of user profiles (never the password hash) with a time to live, plus a
+ * phone -> id index for the entries it holds. Callers get their own copy of the cached
+ * User. A load that overlaps a write must not put the pre-write row back, so loaders take
+ * a stamp before reading and the put is dropped if any write happened since.
+ */
+final class UserProfileCache {
+
+    private final int capacity;
+    private final long ttlMs;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Long> phoneIndex = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    UserProfileCache(int capacity, long ttlMs) {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+    }
+
+    User get(long userId, long now) {
+        Entry entry = entries.get(userId);
+        if (entry != null) {
+            if (now - entry.loadedAt() < ttlMs) {
+                hits.increment();
+                return copy(entry.user());
+            }
+            remove(userId, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Id of a cached user with this phone, or null
+    Long idForPhone(String phone) {
+        return phoneIndex.get(phone);
+    }
+
+    long stamp() {
+        return writes.get();
+    }
+
+    // Caches a freshly loaded row unless a write happened after the loader took its stamp
+    void putLoaded(User user, long stamp, long now) {
+        if (writes.get() != stamp) {
+            return;
+        }
+        put(user, now);
+    }
+
+    // Write-through: replaces a cached profile after the database was updated
+    void update(long userId, String nickname, String avatar, long now) {
+        writes.incrementAndGet();
+        Entry entry = entries.get(userId);
+        if (entry != null) {
+            User user = copy(entry.user());
+            user.setNickname(nickname);
+            user.setAvatar(avatar);
+            put(user, now);
+        }
+    }
+
+    void invalidate(long userId) {
+        writes.incrementAndGet();
+        Entry entry = entries.get(userId);
+        if (entry != null) {
+            remove(userId, entry);
+        }
+    }
+
+    Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", entries.size());
+        stats.put("capacity", capacity);
+        stats.put("ttlMs", ttlMs);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+
+    private void put(User user, long now) {
+        if (entries.size() >= capacity && !entries.containsKey(user.getId())) {
+            evict(now);
+        }
+        entries.put(user.getId(), new Entry(copy(user), now));
+        if (user.getPhone() != null) {
+            phoneIndex.put(user.getPhone(), user.getId());
+        }
+    }
+
+    private void remove(long userId, Entry entry) {
+        if (entries.remove(userId, entry) && entry.user().getPhone() != null) {
+            phoneIndex.remove(entry.user().getPhone(), userId);
+        }
+    }
+
+    // Drop expired entries first; if that frees nothing, drop an arbitrary tenth of the cache
+    private void evict(long now) {
+        int removed = 0;
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Entry> next = it.next();
+            if (now - next.getValue().loadedAt() >= ttlMs) {
+                remove(next.getKey(), next.getValue());
+                removed++;
+            }
+        }
+
+        int target = Math.max(1, capacity / 10);
+        it = entries.entrySet().iterator();
+        while (removed < target && it.hasNext()) {
+            Map.Entry<Long, Entry> next = it.next();
+            remove(next.getKey(), next.getValue());
+            removed++;
+        }
+        evictions.add(removed);
+    }
+
+    private static User copy(User user) {
+        User copy = new User();
+        copy.setId(user.getId());
+        copy.setPhone(user.getPhone());
+        copy.setNickname(user.getNickname());
+        copy.setAvatar(user.getAvatar());
+        copy.setStatus(user.getStatus());
+        copy.setCreatedAt(user.getCreatedAt());
+        return copy;
+    }
+
+    private record Entry(User user, long loadedAt) {}
+}
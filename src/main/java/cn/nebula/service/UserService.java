@@ -1,185 +1,370 @@
 package cn.nebula.service;
 
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.db.SqliteDatabase;
 import cn.nebula.model.User;
 import cn.nebula.utils.JwtUtil;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class UserService {
     
     @Autowired
-    private DataSource dataSource;
+    private SqliteDatabase database;
     
     @Autowired
     private JwtUtil jwtUtil;
     
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+    
+    @Autowired
+    private ClusterRouter clusterRouter;
+    
+    @Autowired
+    private FriendGraph friendGraph;
+    
+    @Autowired
+    private AuthExecutor authExecutor;
+    
+    @Autowired
+    private RefreshTokenStore refreshTokens;
+    
+    @Value("${chat.users.cache-size:10000}")
+    private int cacheSize;
+    
+    @Value("${chat.users.cache-ttl-ms:300000}")
+    private long cacheTtlMs;
+    
+    private static final int BATCH_LOAD_SIZE = 500;
+
+    // IN lists come in these lengths only, so the statement cache sees four SQL strings
+    private static final int[] IN_LIST_SIZES = {1, 10, 50, BATCH_LOAD_SIZE};
+    private static final String[] LOAD_USERS_SQL = new String[IN_LIST_SIZES.length];
+
+    static {
+        for (int i = 0; i < IN_LIST_SIZES.length; i++) {
+            LOAD_USERS_SQL[i] = "SELECT id, phone, nickname, avatar, created_at FROM users WHERE id IN (" +
+                    String.join(", ", Collections.nCopies(IN_LIST_SIZES[i], "?")) + ")";
+        }
+    }
+    
     private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
     
-    public Map<String, Object> register(String phone, String password, String nickname) {
+    private UserProfileCache profiles;
+    
+    // Profile edits made on other nodes
+    @PostConstruct
+    public void init() {
+        profiles = new UserProfileCache(cacheSize, cacheTtlMs);
+        clusterRouter.addListener((fromNode, message) -> {
+            if (message instanceof ClusterMessage.ProfileChanged change) {
+                profiles.invalidate(change.userId());
+                friendGraph.profileChanged(change.userId());
+            }
+        });
+    }
+    
+    /**
+     * Registers the user. The password is hashed on the auth executor and the row written
+     * on its session pool; the future fails with RejectedExecutionException if the auth
+     * executor is saturated.
+     */
+    public CompletableFuture<Map<String, Object>> register(String phone, String password, String nickname) {
         Map<String, Object> result = new HashMap<>();
         
-        try (Connection conn = dataSource.getConnection()) {
-            // Check if phone already exists
-            String checkSql = "SELECT id FROM users WHERE phone = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(checkSql)) {
-                stmt.setString(1, phone);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    result.put("success", false);
-                    result.put("message", "手机号已注册");
-                    return result;
+        // Refuse a taken phone before spending a hash on it
+        if (getUserByPhone(phone) != null) {
+            result.put("success", false);
+            result.put("message", "手机号已注册");
+            return CompletableFuture.completedFuture(result);
+        }
+        
+        return authExecutor.submit(() -> passwordEncoder.encode(password), hash -> {
+            try (Connection conn = database.writer()) {
+                // Check if phone already exists
+                String checkSql = "SELECT id FROM users WHERE phone = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(checkSql)) {
+                    stmt.setString(1, phone);
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next()) {
+                        result.put("success", false);
+                        result.put("message", "手机号已注册");
+                        return result;
+                    }
                 }
-            }
-            
-            // Insert new user
-            String insertSql = "INSERT INTO users (phone, password, nickname) VALUES (?, ?, ?)";
-            try (PreparedStatement stmt = conn.prepareStatement(insertSql)) {
-                stmt.setString(1, phone);
-                stmt.setString(2, passwordEncoder.encode(password));
-                stmt.setString(3, nickname != null ? nickname : "用户");
                 
-                int affected = stmt.executeUpdate();
-                if (affected > 0) {
-                    result.put("success", true);
-                    result.put("message", "注册成功");
-                } else {
-                    result.put("success", false);
-                    result.put("message", "注册失败");
+                // Insert new user
+                String insertSql = "INSERT INTO users (phone, password, nickname) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertSql)) {
+                    stmt.setString(1, phone);
+                    stmt.setString(2, hash);
+                    stmt.setString(3, nickname != null ? nickname : "用户");
+                    
+                    int affected = stmt.executeUpdate();
+                    if (affected > 0) {
+                        result.put("success", true);
+                        result.put("message", "注册成功");
+                    } else {
+                        result.put("success", false);
+                        result.put("message", "注册失败");
+                    }
                 }
+            } catch (SQLException e) {
+                result.put("success", false);
+                result.put("message", "数据库错误");
             }
-        } catch (SQLException e) {
-            result.put("success", false);
-            result.put("message", "数据库错误");
-        }
-        
-        return result;
+            return result;
+        });
     }
     
-    public Map<String, Object> login(String phone, String password) {
+    /**
+     * Checks the password on the auth executor and, if it matches, starts a session: a
+     * short-lived access token plus the first refresh token of a new family. The future
+     * fails with RejectedExecutionException if the auth executor is saturated.
+     */
+    public CompletableFuture<Map<String, Object>> login(String phone, String password) {
         Map<String, Object> result = new HashMap<>();
+        long userId;
+        String storedPassword;
+        String nickname;
         
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = database.reader()) {
             String sql = "SELECT id, password, nickname FROM users WHERE phone = ?";
             try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                 stmt.setString(1, phone);
                 ResultSet rs = stmt.executeQuery();
                 
-                if (rs.next()) {
-                    String storedPassword = rs.getString("password");
-                    if (passwordEncoder.matches(password, storedPassword)) {
-                        Long userId = rs.getLong("id");
-                        String nickname = rs.getString("nickname");
-                        
-                        // Update user status to online
-                        updateUserStatus(userId, 1);
-                        
-                        String token = jwtUtil.generateToken(userId, phone);
-                        
-                        result.put("success", true);
-                        result.put("token", token);
-                        result.put("userId", userId);
-                        result.put("nickname", nickname);
-                    } else {
-                        result.put("success", false);
-                        result.put("message", "密码错误");
-                    }
-                } else {
+                if (!rs.next()) {
                     result.put("success", false);
                     result.put("message", "用户不存在");
+                    return CompletableFuture.completedFuture(result);
                 }
+                userId = rs.getLong("id");
+                storedPassword = rs.getString("password");
+                nickname = rs.getString("nickname");
             }
         } catch (SQLException e) {
             result.put("success", false);
             result.put("message", "登录失败");
+            return CompletableFuture.completedFuture(result);
         }
         
+        return authExecutor.submit(() -> passwordEncoder.matches(password, storedPassword), matches -> {
+            if (!matches) {
+                result.put("success", false);
+                result.put("message", "密码错误");
+                return result;
+            }
+            try {
+                putSession(result, userId, phone, refreshTokens.issue(userId));
+                result.put("nickname", nickname);
+            } catch (SQLException e) {
+                result.put("success", false);
+                result.put("message", "登录失败");
+            }
+            return result;
+        });
+    }
+    
+    /**
+     * Trades a refresh token for a new access token and the next refresh token. No
+     * password check, so this is what clients should do when the access token expires.
+     */
+    public Map<String, Object> refresh(String refreshToken) {
+        Map<String, Object> result = new HashMap<>();
+        
+        RefreshTokenStore.Rotation rotation = refreshTokens.rotate(refreshToken);
+        User user = rotation.status() == RefreshTokenStore.Status.OK ? getUserById(rotation.userId()) : null;
+        if (user == null) {
+            result.put("success", false);
+            result.put("message", switch (rotation.status()) {
+                case REUSED -> "登录状态已失效，请重新登录";
+                case SUPERSEDED -> "刷新令牌已被更新";
+                default -> "刷新令牌无效或已过期";
+            });
+            result.put("superseded", rotation.status() == RefreshTokenStore.Status.SUPERSEDED);
+            return result;
+        }
+        
+        putSession(result, user.getId(), user.getPhone(), rotation.token());
         return result;
     }
     
+    /**
+     * Ends the session the refresh token belongs to. Without a token, every session of
+     * userId ends instead, since there is no telling which one is logging out.
+     */
+    public boolean logout(Long userId, String refreshToken) {
+        if (refreshToken != null && !refreshToken.isEmpty()) {
+            return refreshTokens.revokeFamily(refreshToken);
+        }
+        return userId != null && refreshTokens.revokeAll(userId);
+    }
+    
+    private void putSession(Map<String, Object> result, long userId, String phone, String refreshToken) {
+        result.put("success", true);
+        result.put("token", jwtUtil.generateToken(userId, phone));
+        result.put("expiresIn", jwtUtil.getExpiration());
+        result.put("refreshToken", refreshToken);
+        result.put("userId", userId);
+    }
+    
+    /**
+     * The user's profile, from the cache or loaded on a miss; null if there is no such
+     * user. The status is the live presence, not the column.
+     */
     public User getUserById(Long userId) {
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "SELECT * FROM users WHERE id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setLong(1, userId);
-                ResultSet rs = stmt.executeQuery();
-                
-                if (rs.next()) {
-                    User user = new User();
-                    user.setId(rs.getLong("id"));
-                    user.setPhone(rs.getString("phone"));
-                    user.setNickname(rs.getString("nickname"));
-                    user.setAvatar(rs.getString("avatar"));
-                    user.setStatus(rs.getInt("status"));
-                    user.setCreatedAt(rs.getLong("created_at"));
-                    return user;
-                }
+        long now = System.currentTimeMillis();
+        User user = profiles.get(userId, now);
+        if (user == null) {
+            long stamp = profiles.stamp();
+            user = loadUser("SELECT id, phone, nickname, avatar, created_at FROM users WHERE id = ?", userId);
+            if (user == null) {
+                return null;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            profiles.putLoaded(user, stamp, now);
         }
-        return null;
+        user.setStatus(presenceRegistry.statusOf(user.getId()));
+        return user;
     }
     
     public User getUserByPhone(String phone) {
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "SELECT * FROM users WHERE phone = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setString(1, phone);
-                ResultSet rs = stmt.executeQuery();
-                
-                if (rs.next()) {
-                    User user = new User();
-                    user.setId(rs.getLong("id"));
-                    user.setPhone(rs.getString("phone"));
-                    user.setNickname(rs.getString("nickname"));
-                    user.setAvatar(rs.getString("avatar"));
-                    user.setStatus(rs.getInt("status"));
-                    user.setCreatedAt(rs.getLong("created_at"));
-                    return user;
-                }
+        Long userId = profiles.idForPhone(phone);
+        if (userId != null) {
+            User user = getUserById(userId);
+            if (user != null && phone.equals(user.getPhone())) {
+                return user;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return null;
+        long stamp = profiles.stamp();
+        User user = loadUser("SELECT id, phone, nickname, avatar, created_at FROM users WHERE phone = ?", phone);
+        if (user == null) {
+            return null;
+        }
+        profiles.putLoaded(user, stamp, System.currentTimeMillis());
+        user.setStatus(presenceRegistry.statusOf(user.getId()));
+        return user;
     }
     
-    public boolean updateUserStatus(Long userId, Integer status) {
-        try (Connection conn = dataSource.getConnection()) {
-            String sql = "UPDATE users SET status = ? WHERE id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setInt(1, status);
-                stmt.setLong(2, userId);
-                return stmt.executeUpdate() > 0;
+    /**
+     * Profiles of the given users keyed by id, in the order asked for. Everything not
+     * cached is loaded with one IN query per 500 ids; ids without a user are left out.
+     * Each IN list is padded to the next of IN_LIST_SIZES by repeating its last id.
+     */
+    public Map<Long, User> getUsersByIds(long[] userIds) {
+        long now = System.currentTimeMillis();
+        Map<Long, User> users = new LinkedHashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (long userId : userIds) {
+            if (users.containsKey(userId)) {
+                continue;
+            }
+            User user = profiles.get(userId, now);
+            users.put(userId, user);
+            if (user == null) {
+                missing.add(userId);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return false;
+
+        if (!missing.isEmpty()) {
+            long stamp = profiles.stamp();
+            try (Connection conn = database.reader()) {
+                for (int from = 0; from < missing.size(); from += BATCH_LOAD_SIZE) {
+                    List<Long> chunk = missing.subList(from, Math.min(missing.size(), from + BATCH_LOAD_SIZE));
+                    int size = 0;
+                    while (IN_LIST_SIZES[size] < chunk.size()) {
+                        size++;
+                    }
+                    try (PreparedStatement stmt = conn.prepareStatement(LOAD_USERS_SQL[size])) {
+                        for (int i = 0; i < IN_LIST_SIZES[size]; i++) {
+                            stmt.setLong(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+                        }
+                        ResultSet rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            User user = readUser(rs);
+                            profiles.putLoaded(user, stamp, now);
+                            users.put(user.getId(), user);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        users.values().removeIf(Objects::isNull);
+        for (User user : users.values()) {
+            user.setStatus(presenceRegistry.statusOf(user.getId()));
+        }
+        return users;
     }
     
     public boolean updateUserProfile(Long userId, String nickname, String avatar) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = database.writer()) {
             String sql = "UPDATE users SET nickname = ?, avatar = ? WHERE id = ?";
             try (PreparedStatement stmt = conn.prepareStatement(sql)) {
                 stmt.setString(1, nickname);
                 stmt.setString(2, avatar);
                 stmt.setLong(3, userId);
-                return stmt.executeUpdate() > 0;
+                if (stmt.executeUpdate() > 0) {
+                    profiles.update(userId, nickname, avatar, System.currentTimeMillis());
+                    friendGraph.profileChanged(userId);
+                    clusterRouter.broadcast(new ClusterMessage.ProfileChanged(userId));
+                    return true;
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return false;
     }
-}
\ No newline at end of file
+    
+    public Map<String, Object> getCacheStats() {
+        return profiles.getStats();
+    }
+    
+    private User loadUser(String sql, Object key) {
+        try (Connection conn = database.reader()) {
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setObject(1, key);
+                ResultSet rs = stmt.executeQuery();
+                
+                if (rs.next()) {
+                    return readUser(rs);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    private static User readUser(ResultSet rs) throws SQLException {
+        User user = new User();
+        user.setId(rs.getLong("id"));
+        user.setPhone(rs.getString("phone"));
+        user.setNickname(rs.getString("nickname"));
+        user.setAvatar(rs.getString("avatar"));
+        user.setCreatedAt(rs.getLong("created_at"));
+        return user;
+    }
+}
@@ -0,0 +1,27 @@
+package cn.nebula.utils;
+
+// Verified identity carried by an access token
+public class JwtPrincipal {
+    
+    public static final String REQUEST_ATTRIBUTE = "jwtPrincipal";
+    
+    private final Long userId;
+    private final String phone;
+    private final long expiresAt;
+    
+    public JwtPrincipal(Long userId, String phone, long expiresAt) {
+        this.userId = userId;
+        this.phone = phone;
+        this.expiresAt = expiresAt;
+    }
+    
+    public Long getUserId() { return userId; }
+    
+    public String getPhone() { return phone; }
+    
+    public long getExpiresAt() { return expiresAt; }
+    
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+}
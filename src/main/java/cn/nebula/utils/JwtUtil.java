@@ -2,11 +2,18 @@ package cn.nebula.utils;
 
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 @Component
 public class JwtUtil {
@@ -17,66 +24,151 @@ public class JwtUtil {
     @Value("${jwt.expiration}")
     private Long expiration;
     
-    private SecretKey getSigningKey() {
-        return Keys.hmacShaKeyFor(secret.getBytes());
+    @Value("${jwt.cache-size:10000}")
+    private int cacheSize;
+    
+    // Built once; both are immutable and thread-safe
+    private SecretKey signingKey;
+    private JwtParser parser;
+    
+    // Tokens that already passed signature verification, keyed by the raw token string
+    private final Map<String, JwtPrincipal> verifiedTokens = new ConcurrentHashMap<>();
+    
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder verifyFailures = new LongAdder();
+    
+    @PostConstruct
+    public void init() {
+        signingKey = Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
+        parser = Jwts.parser().verifyWith(signingKey).build();
     }
     
     public String generateToken(Long userId, String phone) {
         Date now = new Date();
         Date expiryDate = new Date(now.getTime() + expiration);
         
-        return Jwts.builder()
-                .setSubject(userId.toString())
+        String token = Jwts.builder()
+                .subject(userId.toString())
                 .claim("phone", phone)
-                .setIssuedAt(now)
-                .setExpiration(expiryDate)
-                .signWith(getSigningKey())
+                .issuedAt(now)
+                .expiration(expiryDate)
+                .signWith(signingKey)
                 .compact();
+        
+        // A token we just signed is known-good; skip verifying it on first use
+        cache(token, new JwtPrincipal(userId, phone, expiryDate.getTime()));
+        return token;
     }
     
-    public Long getUserIdFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(getSigningKey())
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
+    /**
+     * Verifies the token once and returns its principal, or null if the token is
+     * malformed, forged or expired. Repeat calls with the same token are served from
+     * a bounded cache until the token expires.
+     */
+    public JwtPrincipal verify(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        
+        long now = System.currentTimeMillis();
+        JwtPrincipal cached = verifiedTokens.get(token);
+        if (cached != null) {
+            if (!cached.isExpired(now)) {
+                cacheHits.increment();
+                return cached;
+            }
+            verifiedTokens.remove(token, cached);
+        }
+        cacheMisses.increment();
         
-        return Long.parseLong(claims.getSubject());
+        JwtPrincipal principal;
+        try {
+            Claims claims = parser.parseSignedClaims(token).getPayload();
+            principal = new JwtPrincipal(
+                    Long.parseLong(claims.getSubject()),
+                    claims.get("phone", String.class),
+                    claims.getExpiration().getTime());
+        } catch (JwtException | IllegalArgumentException e) {
+            verifyFailures.increment();
+            return null;
+        }
+        
+        cache(token, principal);
+        return principal;
+    }
+    
+    // Access token lifetime in milliseconds
+    public long getExpiration() {
+        return expiration;
+    }
+    
+    public Long getUserIdFromToken(String token) {
+        JwtPrincipal principal = verify(token);
+        if (principal == null) {
+            throw new JwtException("Invalid token");
+        }
+        return principal.getUserId();
     }
     
     public String getPhoneFromToken(String token) {
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(getSigningKey())
-                .build()
-                .parseClaimsJws(token)
-                .getBody();
-        
-        return claims.get("phone", String.class);
+        JwtPrincipal principal = verify(token);
+        if (principal == null) {
+            throw new JwtException("Invalid token");
+        }
+        return principal.getPhone();
     }
     
     public boolean validateToken(String token) {
-        try {
-            Jwts.parserBuilder()
-                .setSigningKey(getSigningKey())
-                .build()
-                .parseClaimsJws(token);
-            return true;
-        } catch (JwtException | IllegalArgumentException e) {
-            return false;
-        }
+        return verify(token) != null;
     }
     
     public boolean isTokenExpired(String token) {
-        try {
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(getSigningKey())
-                    .build()
-                    .parseClaimsJws(token)
-                    .getBody();
-            
-            return claims.getExpiration().before(new Date());
-        } catch (JwtException | IllegalArgumentException e) {
-            return true;
+        JwtPrincipal principal = verify(token);
+        return principal == null || principal.isExpired(System.currentTimeMillis());
+    }
+    
+    public Map<String, Object> getCacheStats() {
+        long hits = cacheHits.sum();
+        long misses = cacheMisses.sum();
+        
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", verifiedTokens.size());
+        stats.put("capacity", cacheSize);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("evictions", cacheEvictions.sum());
+        stats.put("verifyFailures", verifyFailures.sum());
+        return stats;
+    }
+    
+    private void cache(String token, JwtPrincipal principal) {
+        if (verifiedTokens.size() >= cacheSize) {
+            evict(System.currentTimeMillis());
+        }
+        verifiedTokens.put(token, principal);
+    }
+    
+    // Drop expired entries first; if that frees nothing, drop an arbitrary tenth of the cache
+    private void evict(long now) {
+        int removed = 0;
+        Iterator<JwtPrincipal> it = verifiedTokens.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+                removed++;
+            }
+        }
+        
+        int target = Math.max(1, cacheSize / 10);
+        it = verifiedTokens.values().iterator();
+        while (removed < target && it.hasNext()) {
+            it.next();
+            it.remove();
+            removed++;
         }
+        cacheEvictions.add(removed);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,14 @@
+package cn.nebula.utils;
+
+final class LongHashing {
+
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private LongHashing() {}
+
+    // Spread sequential ids (autoincrement keys) across the table
+    static int mix(long key) {
+        long h = key * PHI;
+        return (int) (h ^ (h >>> 32));
+    }
+}
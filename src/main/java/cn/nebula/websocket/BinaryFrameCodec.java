@@ -0,0 +1,241 @@
+package cn.nebula.websocket;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compact binary protocol for clients that connect with ?protocol=binary.
+ *
+ * Each frame is one opcode byte followed by its fields in a fixed order. Integers are
+ * unsigned LEB128 varints (ids, timestamps, counts; 0 means "absent" where a field is
+ * optional), strings are a varint byte length plus UTF-8, with the empty string meaning
+ * absent.
+ *
+ * Client to server:
+ *   0x01 CHAT          type (empty = "text"), to, messageType (1 byte), clientMsgId, content
+ *   0x02 HISTORY       with, limit (0 = default), cursor
+ *   0x03 ACK           count, then count x (from, delivered, read)
+ *   0x04 REPLAY_ACK    cursor
+ *   0x7F JSON          a UTF-8 JSON frame, for anything else
+ *
+ * Server to client:
+ *   0x11 MESSAGE       type, id, from, to, timestamp, content
+ *   0x12 GROUP_MESSAGE type, id, from, groupId, timestamp, content
+ *   0x13 CONFIRMATION  messageId, timestamp, clientMsgId
+ *   0x14 ERROR         timestamp, clientMsgId, message
+ *   0x15 RECEIPT       from, deliveredUpTo, readUpTo, timestamp
+ *   0x7F JSON          a UTF-8 JSON frame, for everything without its own opcode
+ *
+ * A numeric JSON clientMsgId is echoed back as its decimal string.
+ */
+class BinaryFrameCodec implements FrameCodec {
+
+    static final String NAME = "binary";
+    static final BinaryFrameCodec INSTANCE = new BinaryFrameCodec();
+
+    static final byte CHAT = 0x01;
+    static final byte HISTORY = 0x02;
+    static final byte ACK = 0x03;
+    static final byte REPLAY_ACK = 0x04;
+    static final byte MESSAGE = 0x11;
+    static final byte GROUP_MESSAGE = 0x12;
+    static final byte CONFIRMATION = 0x13;
+    static final byte ERROR = 0x14;
+    static final byte RECEIPT = 0x15;
+    static final byte JSON = 0x7F;
+
+    private static final int MAX_ACKS = 1024;
+    private static final ThreadLocal<FrameWriter> WRITERS = ThreadLocal.withInitial(FrameWriter::new);
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public ChatFrame decode(WebSocketMessage<?> message) throws IOException {
+        // Read from a duplicate so the message's own buffer position is left alone
+        ByteBuffer in = ((BinaryMessage) message).getPayload().duplicate();
+        try {
+            byte opcode = in.get();
+            ChatFrame frame = new ChatFrame();
+            switch (opcode) {
+                case CHAT -> {
+                    frame.type = readString(in);
+                    frame.to = readVarLong(in);
+                    frame.messageType = in.get();
+                    frame.clientMsgId = readString(in);
+                    frame.content = readString(in);
+                    if (frame.type == null) {
+                        frame.type = "text";
+                    }
+                }
+                case HISTORY -> {
+                    frame.type = ChatFrame.TYPE_HISTORY;
+                    frame.with = readVarLong(in);
+                    long limit = readVarLong(in);
+                    frame.limit = limit == 0 ? null : (int) Math.min(limit, Integer.MAX_VALUE);
+                    frame.cursor = readString(in);
+                }
+                case ACK -> {
+                    frame.type = ChatFrame.TYPE_ACK;
+                    long count = readVarLong(in);
+                    if (count > MAX_ACKS) {
+                        throw new IOException("Too many acks in one frame: " + count);
+                    }
+                    frame.acks = new ArrayList<>((int) count);
+                    for (int i = 0; i < count; i++) {
+                        long from = readVarLong(in);
+                        long delivered = readVarLong(in);
+                        long read = readVarLong(in);
+                        frame.acks.add(new ChatFrame.Ack(from, delivered == 0 ? null : delivered, read == 0 ? null : read));
+                    }
+                }
+                case REPLAY_ACK -> {
+                    frame.type = ChatFrame.TYPE_REPLAY_ACK;
+                    frame.cursor = Long.toString(readVarLong(in));
+                }
+                case JSON -> {
+                    return JsonFrameCodec.INSTANCE.decode(StandardCharsets.UTF_8.decode(in).toString());
+                }
+                default -> throw new IOException("Unknown frame opcode " + opcode);
+            }
+            return frame;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary frame", e);
+        }
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeMessage(String type, long id, long from, long to, boolean group, String content, long timestamp) {
+        FrameWriter out = WRITERS.get().start(group ? GROUP_MESSAGE : MESSAGE);
+        out.writeString(type);
+        out.writeVarLong(id);
+        out.writeVarLong(from);
+        out.writeVarLong(to);
+        out.writeVarLong(timestamp);
+        out.writeString(content);
+        return out.toMessage();
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeConfirmation(long messageId, long timestamp, Object clientMsgId) {
+        FrameWriter out = WRITERS.get().start(CONFIRMATION);
+        out.writeVarLong(messageId);
+        out.writeVarLong(timestamp);
+        out.writeString(clientMsgId == null ? null : clientMsgId.toString());
+        return out.toMessage();
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeError(String message, long timestamp, Object clientMsgId) {
+        FrameWriter out = WRITERS.get().start(ERROR);
+        out.writeVarLong(timestamp);
+        out.writeString(clientMsgId == null ? null : clientMsgId.toString());
+        out.writeString(message);
+        return out.toMessage();
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeReceipt(long from, long deliveredUpTo, long readUpTo, long timestamp) {
+        FrameWriter out = WRITERS.get().start(RECEIPT);
+        out.writeVarLong(from);
+        out.writeVarLong(deliveredUpTo);
+        out.writeVarLong(readUpTo);
+        out.writeVarLong(timestamp);
+        return out.toMessage();
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(Map<String, Object> frame) {
+        byte[] json = JsonFrameCodec.toJson(frame).getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[json.length + 1];
+        bytes[0] = JSON;
+        System.arraycopy(json, 0, bytes, 1, json.length);
+        return new BinaryMessage(bytes);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("String length " + length + " exceeds the frame");
+        }
+        ByteBuffer slice = in.slice(in.position(), (int) length);
+        in.position(in.position() + (int) length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    // Growable scratch buffer reused by every frame written on a thread
+    private static class FrameWriter {
+        private static final int INITIAL_CAPACITY = 256;
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int length;
+
+        FrameWriter start(byte opcode) {
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
+            }
+            length = 0;
+            ensure(1);
+            bytes[length++] = opcode;
+            return this;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null || value.isEmpty()) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        // The frame is queued per recipient, so it gets its own exact-size copy
+        BinaryMessage toMessage() {
+            return new BinaryMessage(Arrays.copyOf(bytes, length));
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
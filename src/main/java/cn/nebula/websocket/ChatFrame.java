@@ -0,0 +1,35 @@
+package cn.nebula.websocket;
+
+import java.util.List;
+
+/**
+ * One decoded inbound frame. Which fields are set depends on the type: chat frames carry
+ * to/content/messageType/clientMsgId, history requests with/limit/cursor, acks a list
+ * of (from, delivered, read) watermarks and replay acks the batch cursor. Absent numbers
+ * are null.
+ */
+class ChatFrame {
+
+    static final String TYPE_HISTORY = "history";
+    static final String TYPE_ACK = "ack";
+    static final String TYPE_REPLAY_ACK = "replay_ack";
+
+    String type;
+
+    // Chat message
+    Long to;
+    String content;
+    int messageType;        // 0=private, 1=group
+    Object clientMsgId;     // Long or String, echoed back unchanged
+
+    // History request; cursor is also the batch cursor of a replay ack
+    Long with;
+    Integer limit;
+    String cursor;
+
+    // Receipt acks; a single ack frame is decoded as a list of one
+    List<Ack> acks;
+
+    record Ack(Long from, Long delivered, Long read) {
+    }
+}
@@ -1,37 +1,105 @@
 package cn.nebula.websocket;
 
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.metrics.Counter;
+import cn.nebula.metrics.Histogram;
+import cn.nebula.metrics.Metrics;
 import cn.nebula.service.ChatService;
+import cn.nebula.service.PresenceRegistry;
+import cn.nebula.service.ReceiptStore;
+import cn.nebula.utils.JwtPrincipal;
 import cn.nebula.utils.JwtUtil;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class ChatWebSocketHandler implements WebSocketHandler {
 
+    private static final Logger log = LoggerFactory.getLogger(ChatWebSocketHandler.class);
+
     @Autowired
     private ChatService chatService;
 
     @Autowired
     private JwtUtil jwtUtil;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
-    // Store active WebSocket sessions by user ID
-    private final Map<Long, WebSocketSession> userSessions = new ConcurrentHashMap<>();
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private GroupFanout groupFanout;
+
+    @Autowired
+    private ReceiptStore receiptStore;
+
+    @Autowired
+    private InboundDispatcher inboundDispatcher;
+
+    @Autowired
+    private OfflineReplay offlineReplay;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private HeartbeatMonitor heartbeatMonitor;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private Metrics metrics;
+
+    private Counter textFramesIn;
+    private Counter binaryFramesIn;
+    private Histogram handleLatency;
+    private Histogram privateForwardLatency;
+    private Histogram groupForwardLatency;
+    private Counter authErrors;
+    private Counter decodeErrors;
+    private Counter handlerErrors;
+    private Counter forwardErrors;
+    private Counter transportErrors;
+
+    @PostConstruct
+    public void registerMetrics() {
+        metrics.gauge("nebula_websocket_sessions", "Open WebSocket sessions", sessionRegistry::size);
+        metrics.gauge("nebula_websocket_users", "Users with at least one open WebSocket session", sessionRegistry::userCount);
+        textFramesIn = metrics.counter("nebula_websocket_frames_in_total", "WebSocket frames received", "format", "text");
+        binaryFramesIn = metrics.counter("nebula_websocket_frames_in_total", "WebSocket frames received", "format", "binary");
+        handleLatency = metrics.histogram("nebula_websocket_handle_seconds", "Time in handleMessage per inbound frame");
+        privateForwardLatency = metrics.histogram("nebula_message_forward_seconds",
+                "Time to queue a saved message for its recipients", "kind", "private");
+        groupForwardLatency = metrics.histogram("nebula_message_forward_seconds",
+                "Time to queue a saved message for its recipients", "kind", "group");
+        authErrors = metrics.errors("auth");
+        decodeErrors = metrics.errors("decode");
+        handlerErrors = metrics.errors("handler");
+        forwardErrors = metrics.errors("forward");
+        transportErrors = metrics.errors("transport");
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        // Extract token from query parameters
+        // Extract token, wire protocol and replay cursor from query parameters
         URI uri = session.getUri();
         String query = uri.getQuery();
         String token = null;
+        String protocol = null;
+        Long replayFrom = null;
         
         if (query != null) {
             String[] params = query.split("&");
@@ -39,18 +107,34 @@ public class ChatWebSocketHandler implements WebSocketHandler {
                 String[] keyValue = param.split("=");
                 if (keyValue.length == 2 && "token".equals(keyValue[0])) {
                     token = keyValue[1];
-                    break;
+                } else if (keyValue.length == 2 && "protocol".equals(keyValue[0])) {
+                    protocol = keyValue[1];
+                } else if (keyValue.length == 2 && "replayFrom".equals(keyValue[0])) {
+                    try {
+                        replayFrom = Long.parseLong(keyValue[1]);
+                    } catch (NumberFormatException e) {
+                        // Ignored: resume from the stored cursor instead
+                    }
                 }
             }
         }
         
-        if (token != null && jwtUtil.validateToken(token)) {
-            Long userId = jwtUtil.getUserIdFromToken(token);
+        JwtPrincipal principal = jwtUtil.verify(token);
+        if (principal != null) {
+            Long userId = principal.getUserId();
             session.getAttributes().put("userId", userId);
-            userSessions.put(userId, session);
-            
-            System.out.println("User " + userId + " connected to WebSocket");
+            session.getAttributes().put(FrameCodec.SESSION_ATTRIBUTE, FrameCodec.forProtocol(protocol));
+            outboundQueues.register(session);
+            inboundDispatcher.register(session);
+            sessionRegistry.register(userId, session, () -> {
+                clusterRouter.userConnected(userId);
+                presenceRegistry.online(userId);
+            });
+            heartbeatMonitor.touch(session);
+            // Push what arrived while the user was offline
+            offlineReplay.start(session, userId, replayFrom);
         } else {
+            authErrors.increment();
             session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Invalid token"));
         }
     }
@@ -61,75 +145,205 @@ public class ChatWebSocketHandler implements WebSocketHandler {
         if (userId == null) {
             return;
         }
+        long start = System.nanoTime();
+        (message instanceof BinaryMessage ? binaryFramesIn : textFramesIn).increment();
+        heartbeatMonitor.touch(session);
 
         try {
-            String payload = message.getPayload().toString();
-            Map<String, Object> messageData = objectMapper.readValue(payload, Map.class);
+            // Decoded here, while the container still owns the payload buffer
+            ChatFrame frame;
+            try {
+                frame = decode(message);
+            } catch (IOException | RuntimeException e) {
+                decodeErrors.increment();
+                e.printStackTrace();
+                return;
+            }
+            if (frame == null) {
+                return;
+            }
+
+            // Inline on the container thread, or on the session's virtual thread in virtual mode
+            if (!inboundDispatcher.dispatch(session, () -> processFrame(session, userId, frame))) {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Too many pending messages"));
+            }
+        } finally {
+            handleLatency.recordSince(start);
+        }
+    }
+
+    // Text frames are always JSON, binary frames always the binary protocol
+    private ChatFrame decode(WebSocketMessage<?> message) throws IOException {
+        if (message instanceof TextMessage) {
+            return JsonFrameCodec.INSTANCE.decode(message);
+        }
+        if (message instanceof BinaryMessage) {
+            return BinaryFrameCodec.INSTANCE.decode(message);
+        }
+        return null;
+    }
+
+    private void processFrame(WebSocketSession session, Long userId, ChatFrame frame) {
+        try {
+            if (ChatFrame.TYPE_HISTORY.equals(frame.type)) {
+                handleHistoryRequest(session, userId, frame);
+                return;
+            }
+            if (ChatFrame.TYPE_ACK.equals(frame.type)) {
+                handleAck(userId, frame);
+                return;
+            }
+            if (ChatFrame.TYPE_REPLAY_ACK.equals(frame.type)) {
+                handleReplayAck(session, userId, frame);
+                return;
+            }
+            if (frame.to == null) {
+                return;
+            }
             
-            String type = (String) messageData.get("type");
-            Long receiverId = Long.parseLong(messageData.get("to").toString());
-            String content = (String) messageData.get("content");
-            Integer messageType = (Integer) messageData.getOrDefault("messageType", 0); // 0=private, 1=group
+            Long receiverId = frame.to;
+            String type = frame.type;
+            String content = frame.content;
+            int messageType = frame.messageType; // 0=private, 1=group
+            Object clientMsgId = frame.clientMsgId; // echoed back so clients can match confirmations
             
-            // Save message to database
-            boolean saved = chatService.saveMessage(userId, receiverId, messageType, content);
+            // Queue the message for group commit; reply once it is durable
+            chatService.saveMessageAsync(userId, receiverId, messageType, content)
+                    .whenComplete((messageId, error) -> {
+                        if (error != null) {
+                            // Counted by ChatService as a save error
+                            error.printStackTrace();
+                        }
+                        onMessageSaved(session, userId, receiverId, messageType, type, content, clientMsgId, error == null ? messageId : null);
+                    });
+        } catch (Exception e) {
+            handlerErrors.increment();
+            e.printStackTrace();
+        }
+    }
+
+    private void handleHistoryRequest(WebSocketSession session, Long userId, ChatFrame request) {
+        if (request.with == null) {
+            return;
+        }
+        Long otherUserId = request.with;
+        int limit = request.limit == null ? 50 : Math.max(1, Math.min(request.limit, 100));
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("type", "history");
+        response.put("with", otherUserId);
+        try {
+            response.putAll(chatService.getChatHistory(userId, otherUserId, limit, request.cursor));
+        } catch (IllegalArgumentException e) {
+            response.put("type", "error");
+            response.put("message", "Invalid history cursor");
+        }
+        
+        outboundQueues.send(session, FrameCodec.of(session).encode(response));
+    }
+
+    /**
+     * Receipt acks move the receiver's watermarks forward; a frame may carry a single ack
+     * ({from, delivered, read}) or a batch under "acks". Each sender whose watermark moved
+     * gets one receipt frame.
+     */
+    private void handleAck(Long userId, ChatFrame request) {
+        if (request.acks == null) {
+            return;
+        }
+        for (ChatFrame.Ack ack : request.acks) {
+            if (chatService.acknowledge(userId, ack.from(), ack.delivered(), ack.read())) {
+                sendReceipt(userId, ack.from());
+            }
+        }
+    }
+
+    // A replay batch reached the client: its senders get a receipt if their watermark moved
+    private void handleReplayAck(WebSocketSession session, Long userId, ChatFrame request) {
+        if (request.cursor == null) {
+            return;
+        }
+        long cursor;
+        try {
+            cursor = Long.parseLong(request.cursor);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        for (Long senderId : offlineReplay.acknowledge(session, cursor)) {
+            sendReceipt(userId, senderId);
+        }
+    }
+
+    // Tells the sender, on each of their devices, how far the receiver has received and read their messages
+    public boolean sendReceipt(Long receiverId, Long senderId) {
+        long deliveredUpTo = receiptStore.getDeliveredUpTo(receiverId, senderId);
+        long readUpTo = receiptStore.getReadUpTo(receiverId, senderId);
+        long timestamp = System.currentTimeMillis();
+        SharedFrame receipt = new SharedFrame(codec -> codec.encodeReceipt(receiverId, deliveredUpTo, readUpTo, timestamp));
+        int remoteNodes = clusterRouter.sendToUser(senderId,
+                new ClusterMessage.Receipt(senderId, receiverId, deliveredUpTo, readUpTo, timestamp));
+        return outboundQueues.send(sessionRegistry.getSessions(senderId), receipt) > 0 || remoteNodes > 0;
+    }
+
+    private void onMessageSaved(WebSocketSession session, Long userId, Long receiverId, int messageType,
+                                String type, String content, Object clientMsgId, Long messageId) {
+        long start = System.nanoTime();
+        try {
+            FrameCodec codec = FrameCodec.of(session);
+            long timestamp = System.currentTimeMillis();
+            if (messageId == null) {
+                outboundQueues.send(session, codec.encodeError("Failed to save message", timestamp, clientMsgId));
+                return;
+            }
             
-            if (saved) {
-                // Forward message to receiver if online
-                WebSocketSession receiverSession = userSessions.get(receiverId);
-                if (receiverSession != null && receiverSession.isOpen()) {
-                    Map<String, Object> forwardMessage = Map.of(
-                        "type", type,
-                        "from", userId,
-                        "to", receiverId,
-                        "content", content,
-                        "timestamp", System.currentTimeMillis()
-                    );
-                    
-                    String forwardPayload = objectMapper.writeValueAsString(forwardMessage);
-                    receiverSession.sendMessage(new TextMessage(forwardPayload));
-                    
-                    // Update message status to delivered
-                    chatService.updateMessageStatus(userId, receiverId, 1);
-                }
-                
-                // Send delivery confirmation back to sender
-                Map<String, Object> confirmation = Map.of(
-                    "type", "delivery_confirmation",
-                    "success", true,
-                    "timestamp", System.currentTimeMillis()
-                );
-                
-                String confirmationPayload = objectMapper.writeValueAsString(confirmation);
-                session.sendMessage(new TextMessage(confirmationPayload));
+            if (messageType == 1) {
+                // Serialize once per wire format and broadcast the same frame to every online member
+                groupFanout.fanOut(receiverId, userId,
+                        memberCodec -> memberCodec.encodeMessage(type, messageId, userId, receiverId, true, content, timestamp));
+                // Every other node fans out to the members connected there
+                clusterRouter.broadcast(new ClusterMessage.GroupMessage(receiverId, type, messageId, userId, content, timestamp));
             } else {
-                // Send error message
-                Map<String, Object> error = Map.of(
-                    "type", "error",
-                    "message", "Failed to save message",
-                    "timestamp", System.currentTimeMillis()
-                );
+                // Forward message to every device the receiver has online
+                SharedFrame forward = new SharedFrame(
+                        receiverCodec -> receiverCodec.encodeMessage(type, messageId, userId, receiverId, false, content, timestamp));
                 
-                String errorPayload = objectMapper.writeValueAsString(error);
-                session.sendMessage(new TextMessage(errorPayload));
+                // Not marked delivered here: a queued frame is lost if the session closes before it is
+                // written. The receiving client acks it, which moves the delivered watermark.
+                outboundQueues.send(sessionRegistry.getSessions(receiverId), forward);
+                // Devices on other nodes
+                clusterRouter.sendToUser(receiverId,
+                        new ClusterMessage.PrivateMessage(receiverId, type, messageId, userId, content, timestamp));
             }
             
+            // Send delivery confirmation back to sender
+            outboundQueues.send(session, codec.encodeConfirmation(messageId, timestamp, clientMsgId));
+            (messageType == 1 ? groupForwardLatency : privateForwardLatency).recordSince(start);
         } catch (Exception e) {
+            forwardErrors.increment();
             e.printStackTrace();
         }
     }
 
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
-        System.err.println("WebSocket transport error: " + exception.getMessage());
+        // Mostly clients dropping off; counted, and only logged when debugging
+        transportErrors.increment();
+        log.debug("WebSocket transport error on session {}: {}", session.getId(), exception.getMessage());
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
         Long userId = (Long) session.getAttributes().get("userId");
+        outboundQueues.unregister(session);
+        offlineReplay.cancel(session);
         if (userId != null) {
-            userSessions.remove(userId);
-            System.out.println("User " + userId + " disconnected from WebSocket");
+            // Another connection of the same user may still be open, here or on another node
+            sessionRegistry.unregister(userId, session, () -> {
+                clusterRouter.userDisconnected(userId);
+                if (!clusterRouter.isConnectedElsewhere(userId)) {
+                    presenceRegistry.offline(userId);
+                }
+            });
         }
     }
 
@@ -140,22 +354,13 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     
     // Method to send message to specific user (used by other services)
     public boolean sendMessageToUser(Long userId, Map<String, Object> message) {
-        WebSocketSession session = userSessions.get(userId);
-        if (session != null && session.isOpen()) {
-            try {
-                String payload = objectMapper.writeValueAsString(message);
-                session.sendMessage(new TextMessage(payload));
-                return true;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return false;
+        int remoteNodes = clusterRouter.sendToUser(userId, new ClusterMessage.UserFrame(userId, message));
+        return outboundQueues.send(sessionRegistry.getSessions(userId), new SharedFrame(codec -> codec.encode(message))) > 0
+                || remoteNodes > 0;
     }
     
     // Method to check if user is online
     public boolean isUserOnline(Long userId) {
-        WebSocketSession session = userSessions.get(userId);
-        return session != null && session.isOpen();
+        return sessionRegistry.isOnline(userId) || clusterRouter.isConnectedElsewhere(userId);
     }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package cn.nebula.websocket;
+
+import cn.nebula.cluster.ClusterListener;
+import cn.nebula.cluster.ClusterMessage;
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.service.PresenceRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Delivers what other nodes route here to the sessions on this node, and keeps local
+ * presence in step with users connected elsewhere in the cluster.
+ */
+@Component
+public class ClusterDelivery implements ClusterListener {
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Autowired
+    private GroupFanout groupFanout;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @PostConstruct
+    public void register() {
+        clusterRouter.addListener(this);
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        if (message instanceof ClusterMessage.PrivateMessage m) {
+            SharedFrame forward = new SharedFrame(
+                    codec -> codec.encodeMessage(m.type(), m.id(), m.from(), m.receiverId(), false, m.content(), m.timestamp()));
+            // Marked delivered when the receiving client acks it, as for local deliveries
+            outboundQueues.send(sessionRegistry.getSessions(m.receiverId()), forward);
+        } else if (message instanceof ClusterMessage.GroupMessage m) {
+            // Only the members connected to this node; every node gets its own copy
+            groupFanout.fanOut(m.groupId(), m.from(),
+                    codec -> codec.encodeMessage(m.type(), m.id(), m.from(), m.groupId(), true, m.content(), m.timestamp()));
+        } else if (message instanceof ClusterMessage.Receipt m) {
+            outboundQueues.send(sessionRegistry.getSessions(m.userId()), new SharedFrame(
+                    codec -> codec.encodeReceipt(m.receiverId(), m.deliveredUpTo(), m.readUpTo(), m.timestamp())));
+        } else if (message instanceof ClusterMessage.UserFrame m) {
+            outboundQueues.send(sessionRegistry.getSessions(m.userId()), new SharedFrame(codec -> codec.encode(m.frame())));
+        }
+    }
+
+    @Override
+    public void onRemotePresence(long userId, boolean connectedElsewhere) {
+        if (connectedElsewhere) {
+            presenceRegistry.online(userId);
+        } else {
+            sessionRegistry.ifNoSessions(userId, () -> presenceRegistry.offline(userId));
+        }
+    }
+}
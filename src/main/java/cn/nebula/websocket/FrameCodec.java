@@ -0,0 +1,43 @@
+package cn.nebula.websocket;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Wire format of one WebSocket session, chosen when the client connects: JSON text frames
+ * by default, or the compact binary format with ?protocol=binary. The hot frames (chat
+ * messages, confirmations, errors, receipts) have dedicated encoders; anything else goes
+ * through encode(Map). Inbound frames are decoded by their own frame type, so a binary
+ * client may still send the occasional JSON text frame.
+ */
+public interface FrameCodec {
+
+    String SESSION_ATTRIBUTE = "frameCodec";
+
+    static FrameCodec forProtocol(String protocol) {
+        return BinaryFrameCodec.NAME.equals(protocol) ? BinaryFrameCodec.INSTANCE : JsonFrameCodec.INSTANCE;
+    }
+
+    static FrameCodec of(WebSocketSession session) {
+        FrameCodec codec = (FrameCodec) session.getAttributes().get(SESSION_ATTRIBUTE);
+        return codec != null ? codec : JsonFrameCodec.INSTANCE;
+    }
+
+    String name();
+
+    ChatFrame decode(WebSocketMessage<?> message) throws IOException;
+
+    // A private or group chat message as seen by its recipient; for groups "to" is the group id
+    WebSocketMessage<?> encodeMessage(String type, long id, long from, long to, boolean group, String content, long timestamp);
+
+    WebSocketMessage<?> encodeConfirmation(long messageId, long timestamp, Object clientMsgId);
+
+    WebSocketMessage<?> encodeError(String message, long timestamp, Object clientMsgId);
+
+    WebSocketMessage<?> encodeReceipt(long from, long deliveredUpTo, long readUpTo, long timestamp);
+
+    WebSocketMessage<?> encode(Map<String, Object> frame);
+}
@@ -0,0 +1,188 @@
+package cn.nebula.websocket;
+
+import cn.nebula.service.GroupService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Delivers one group message to every online member. The frame is serialized at most
+ * once per wire format (JSON or binary), on first use, and the same immutable message
+ * object is handed to every member's outbound queue that speaks that format.
+ * The roster is split into chunks that are enqueued in parallel on the fan-out pool,
+ * so the sender's thread only pays for scheduling the first task.
+ */
+@Component
+public class GroupFanout {
+
+    // Groups with their own stats; past this the quietest one makes room for a new group
+    private static final int MAX_TRACKED_GROUPS = 1000;
+
+    @Autowired
+    private GroupService groupService;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Value("${chat.group.fanout-chunk-size:50}")
+    private int chunkSize;
+
+    @Value("${chat.group.fanout-threads:0}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    private final Map<Long, FanoutStats> statsByGroup = new ConcurrentHashMap<>();
+    private final FanoutStats totals = new FanoutStats();
+
+    @PostConstruct
+    public void start() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "group-fanout-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    public void fanOut(Long groupId, Long senderId, Function<FrameCodec, WebSocketMessage<?>> encoder) {
+        long start = System.nanoTime();
+        SharedFrame frame = new SharedFrame(encoder);
+        executor.execute(() -> {
+            long[] members = groupService.getMemberIds(groupId);
+            int chunks = Math.max(1, (members.length + chunkSize - 1) / chunkSize);
+            AtomicInteger remaining = new AtomicInteger(chunks);
+            AtomicInteger recipients = new AtomicInteger();
+
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int from = chunk * chunkSize;
+                int to = Math.min(members.length, from + chunkSize);
+                Runnable task = () -> {
+                    recipients.addAndGet(deliver(members, from, to, senderId, frame));
+                    if (remaining.decrementAndGet() == 0) {
+                        record(groupId, recipients.get(), System.nanoTime() - start);
+                    }
+                };
+                // Run the last chunk on this thread rather than queueing it
+                if (chunk == chunks - 1) {
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            }
+        });
+    }
+
+    private int deliver(long[] members, int from, int to, Long senderId, SharedFrame frame) {
+        int delivered = 0;
+        for (int i = from; i < to; i++) {
+            long memberId = members[i];
+            if (memberId == senderId) {
+                continue;
+            }
+            // Every connected device of the member
+            delivered += outboundQueues.send(sessionRegistry.getSessions(memberId), frame);
+        }
+        return delivered;
+    }
+
+    private void record(Long groupId, int recipients, long elapsedNanos) {
+        FanoutStats stats = statsByGroup.get(groupId);
+        if (stats == null) {
+            if (statsByGroup.size() >= MAX_TRACKED_GROUPS) {
+                evictQuietestGroup();
+            }
+            stats = statsByGroup.computeIfAbsent(groupId, id -> new FanoutStats());
+        }
+        stats.record(recipients, elapsedNanos);
+        totals.record(recipients, elapsedNanos);
+    }
+
+    private void evictQuietestGroup() {
+        Long quietest = null;
+        long fewest = Long.MAX_VALUE;
+        for (Map.Entry<Long, FanoutStats> entry : statsByGroup.entrySet()) {
+            long fanouts = entry.getValue().fanouts.sum();
+            if (fanouts < fewest) {
+                fewest = fanouts;
+                quietest = entry.getKey();
+            }
+        }
+        if (quietest != null) {
+            statsByGroup.remove(quietest);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        List<Map.Entry<Long, FanoutStats>> groups = new ArrayList<>(statsByGroup.entrySet());
+        groups.sort(Comparator.comparingLong((Map.Entry<Long, FanoutStats> e) -> e.getValue().fanouts.sum()).reversed());
+
+        List<Map<String, Object>> perGroup = new ArrayList<>();
+        for (Map.Entry<Long, FanoutStats> entry : groups.subList(0, Math.min(groups.size(), 100))) {
+            Map<String, Object> group = entry.getValue().toMap();
+            group.put("groupId", entry.getKey());
+            perGroup.add(group);
+        }
+
+        Map<String, Object> stats = totals.toMap();
+        stats.put("perGroup", perGroup);
+        return stats;
+    }
+
+    private static class FanoutStats {
+        final LongAdder fanouts = new LongAdder();
+        final LongAdder recipients = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong lastNanos = new AtomicLong();
+
+        void record(int delivered, long elapsedNanos) {
+            fanouts.increment();
+            recipients.add(delivered);
+            totalNanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+            lastNanos.set(elapsedNanos);
+        }
+
+        Map<String, Object> toMap() {
+            long count = fanouts.sum();
+            long nanos = totalNanos.sum();
+            long delivered = recipients.sum();
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("fanouts", count);
+            map.put("recipients", delivered);
+            map.put("avgLatencyMillis", count == 0 ? 0.0 : nanos / 1_000_000.0 / count);
+            map.put("maxLatencyMillis", maxNanos.get() / 1_000_000.0);
+            map.put("lastLatencyMillis", lastNanos.get() / 1_000_000.0);
+            // Delivery throughput while fanning out, not wall-clock rate
+            map.put("recipientsPerSecond", nanos == 0 ? 0.0 : delivered * 1_000_000_000.0 / nanos);
+            return map;
+        }
+    }
+}
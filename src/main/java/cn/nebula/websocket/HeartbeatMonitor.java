@@ -0,0 +1,54 @@
+package cn.nebula.websocket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Detects dead connections that never sent a close frame. Every session is pinged each
+ * interval through its outbound queue; any inbound frame, including the pong a browser
+ * sends back automatically, counts as a sign of life. A session silent for longer than
+ * the timeout is closed, which takes the user offline like a normal disconnect.
+ */
+@Component
+public class HeartbeatMonitor {
+
+    private static final String LAST_SEEN_ATTRIBUTE = "lastSeenAt";
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Value("${chat.presence.heartbeat-timeout-ms:45000}")
+    private long timeoutMs;
+
+    public void touch(WebSocketSession session) {
+        session.getAttributes().put(LAST_SEEN_ATTRIBUTE, System.currentTimeMillis());
+    }
+
+    @Scheduled(fixedDelayString = "${chat.presence.ping-interval-ms:15000}")
+    public void ping() {
+        long now = System.currentTimeMillis();
+        sessionRegistry.forEachSession(session -> {
+            Long lastSeen = (Long) session.getAttributes().get(LAST_SEEN_ATTRIBUTE);
+            if (lastSeen != null && now - lastSeen > timeoutMs) {
+                try {
+                    session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Heartbeat timeout"));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            outboundQueues.send(session, new PingMessage(ByteBuffer.allocate(0)));
+        });
+    }
+}
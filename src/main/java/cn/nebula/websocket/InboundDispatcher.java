@@ -0,0 +1,134 @@
+package cn.nebula.websocket;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs inbound WebSocket frames either inline on the container thread (platform mode) or
+ * on virtual threads (virtual mode, enabled together with Tomcat's by
+ * spring.threads.virtual.enabled). In virtual mode each session gets a small inbox that
+ * is drained by one virtual thread at a time, so frames from one client are still
+ * handled in order while a blocking DB call never holds a container thread.
+ */
+@Component
+public class InboundDispatcher {
+
+    private static final String INBOX_ATTRIBUTE = "inboundInbox";
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${chat.inbound.max-pending:256}")
+    private int maxPending;
+
+    private ExecutorService executor;
+
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger activeDrains = new AtomicInteger();
+
+    @PostConstruct
+    public void start() {
+        if (virtualThreads) {
+            executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ws-inbound-", 0).factory());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public void register(WebSocketSession session) {
+        if (virtualThreads) {
+            session.getAttributes().put(INBOX_ATTRIBUTE, new Inbox());
+        }
+    }
+
+    /**
+     * Runs the task for this session, inline or on the session's virtual-thread inbox.
+     * Returns false if the session already has too many frames waiting.
+     */
+    public boolean dispatch(WebSocketSession session, Runnable task) {
+        dispatched.increment();
+        Inbox inbox = virtualThreads ? (Inbox) session.getAttributes().get(INBOX_ATTRIBUTE) : null;
+        if (inbox == null) {
+            task.run();
+            return true;
+        }
+        if (!inbox.offer(task)) {
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", virtualThreads ? "virtual" : "platform");
+        stats.put("dispatched", dispatched.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("activeDrains", activeDrains.get());
+        stats.put("maxPending", maxPending);
+        return stats;
+    }
+
+    private class Inbox {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        boolean offer(Runnable task) {
+            if (depth.incrementAndGet() > maxPending) {
+                depth.decrementAndGet();
+                return false;
+            }
+            tasks.add(task);
+            scheduleDrain();
+            return true;
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                activeDrains.incrementAndGet();
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    depth.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                activeDrains.decrementAndGet();
+                draining.set(false);
+                // A frame queued after the last poll but before the flag was cleared
+                if (!tasks.isEmpty()) {
+                    scheduleDrain();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package cn.nebula.websocket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSON text protocol, read and written with Jackson's streaming API: inbound frames
+ * are decoded field by field straight into a ChatFrame, and the hot outbound frames are
+ * generated into a per-thread reusable buffer instead of going through a Map and
+ * databind.
+ */
+class JsonFrameCodec implements FrameCodec {
+
+    static final String NAME = "json";
+    static final JsonFrameCodec INSTANCE = new JsonFrameCodec();
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper(FACTORY);
+    private static final ThreadLocal<FrameBuffer> BUFFERS = ThreadLocal.withInitial(FrameBuffer::new);
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public ChatFrame decode(WebSocketMessage<?> message) throws IOException {
+        return decode(((TextMessage) message).getPayload());
+    }
+
+    ChatFrame decode(String payload) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Frame must be a JSON object");
+            }
+
+            ChatFrame frame = new ChatFrame();
+            Long from = null;
+            Long delivered = null;
+            Long read = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "type" -> frame.type = parser.getValueAsString();
+                    case "to" -> frame.to = readLong(parser);
+                    case "content" -> frame.content = parser.getValueAsString();
+                    case "messageType" -> frame.messageType = parser.getValueAsInt(0);
+                    case "clientMsgId" -> frame.clientMsgId = readId(parser);
+                    case "with" -> frame.with = readLong(parser);
+                    case "limit" -> {
+                        Long limit = readLong(parser);
+                        frame.limit = limit == null ? null : limit.intValue();
+                    }
+                    case "cursor" -> frame.cursor = parser.getValueAsString();
+                    case "from" -> from = readLong(parser);
+                    case "delivered" -> delivered = readLong(parser);
+                    case "read" -> read = readLong(parser);
+                    case "acks" -> frame.acks = readAcks(parser);
+                    default -> parser.skipChildren();
+                }
+            }
+
+            if (frame.acks == null && from != null) {
+                frame.acks = List.of(new ChatFrame.Ack(from, delivered, read));
+            }
+            return frame;
+        }
+    }
+
+    private static List<ChatFrame.Ack> readAcks(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        List<ChatFrame.Ack> acks = new ArrayList<>();
+        for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            Long from = null;
+            Long delivered = null;
+            Long read = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "from" -> from = readLong(parser);
+                    case "delivered" -> delivered = readLong(parser);
+                    case "read" -> read = readLong(parser);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (from != null) {
+                acks.add(new ChatFrame.Ack(from, delivered, read));
+            }
+        }
+        return acks;
+    }
+
+    // Numbers may arrive as JSON numbers or numeric strings
+    private static Long readLong(JsonParser parser) throws IOException {
+        return switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT -> parser.getLongValue();
+            case VALUE_STRING -> Long.parseLong(parser.getText().trim());
+            case VALUE_NULL -> null;
+            default -> throw new JsonParseException(parser, "Expected a number for " + parser.currentName());
+        };
+    }
+
+    private static Object readId(JsonParser parser) throws IOException {
+        return switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT -> parser.getLongValue();
+            case VALUE_STRING -> parser.getText();
+            default -> {
+                parser.skipChildren();
+                yield null;
+            }
+        };
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeMessage(String type, long id, long from, long to, boolean group, String content, long timestamp) {
+        return write(generator -> {
+            generator.writeStringField("type", type);
+            generator.writeNumberField("id", id);
+            generator.writeNumberField("from", from);
+            generator.writeNumberField(group ? "groupId" : "to", to);
+            generator.writeStringField("content", content);
+            generator.writeNumberField("timestamp", timestamp);
+        });
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeConfirmation(long messageId, long timestamp, Object clientMsgId) {
+        return write(generator -> {
+            generator.writeStringField("type", "delivery_confirmation");
+            generator.writeBooleanField("success", true);
+            generator.writeNumberField("messageId", messageId);
+            generator.writeNumberField("timestamp", timestamp);
+            writeId(generator, clientMsgId);
+        });
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeError(String message, long timestamp, Object clientMsgId) {
+        return write(generator -> {
+            generator.writeStringField("type", "error");
+            generator.writeStringField("message", message);
+            generator.writeNumberField("timestamp", timestamp);
+            writeId(generator, clientMsgId);
+        });
+    }
+
+    @Override
+    public WebSocketMessage<?> encodeReceipt(long from, long deliveredUpTo, long readUpTo, long timestamp) {
+        return write(generator -> {
+            generator.writeStringField("type", "receipt");
+            generator.writeNumberField("from", from);
+            generator.writeNumberField("deliveredUpTo", deliveredUpTo);
+            generator.writeNumberField("readUpTo", readUpTo);
+            generator.writeNumberField("timestamp", timestamp);
+        });
+    }
+
+    @Override
+    public WebSocketMessage<?> encode(Map<String, Object> frame) {
+        return new TextMessage(toJson(frame));
+    }
+
+    static String toJson(Map<String, Object> frame) {
+        try {
+            return MAPPER.writeValueAsString(frame);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeId(JsonGenerator generator, Object clientMsgId) throws IOException {
+        if (clientMsgId instanceof Long id) {
+            generator.writeNumberField("clientMsgId", id);
+        } else if (clientMsgId != null) {
+            generator.writeStringField("clientMsgId", clientMsgId.toString());
+        }
+    }
+
+    private interface FrameBody {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private static TextMessage write(FrameBody body) {
+        FrameBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        try (JsonGenerator generator = FACTORY.createGenerator(buffer)) {
+            generator.writeStartObject();
+            body.write(generator);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new TextMessage(buffer.toString());
+    }
+
+    // A StringBuilder-backed writer that is reset between frames rather than reallocated
+    private static class FrameBuffer extends Writer {
+        private static final int INITIAL_CAPACITY = 256;
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+        private StringBuilder builder = new StringBuilder(INITIAL_CAPACITY);
+
+        void reset() {
+            if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+                builder = new StringBuilder(INITIAL_CAPACITY);
+            } else {
+                builder.setLength(0);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            builder.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            builder.append(text, offset, offset + length);
+        }
+
+        @Override
+        public void write(int c) {
+            builder.append((char) c);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package cn.nebula.websocket;
+
+import cn.nebula.service.ChatService;
+import cn.nebula.service.ReceiptStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the private messages a user missed while offline when they connect. The replay
+ * covers every message after the user's replay cursor up to the newest id at connect time
+ * (anything newer is forwarded live), across partitions in id order, as "replay" frames of
+ * at most batchSize messages:
+ *
+ *   {"type":"replay","messages":[...],"cursor":id,"done":false}
+ *
+ * Only one batch is in flight per session. The client acks it with
+ * {"type":"replay_ack","cursor":id}, which marks the whole batch delivered in one write
+ * and releases the next batch. The acked cursor is stored per user, so a later connect
+ * resumes after it; a client can also pass its own cursor as ?replayFrom=id. A batch not
+ * acked within ackTimeoutMs ends the replay until the next connect. Only the cursor decides
+ * what is replayed, never the per-sender delivered watermarks: those move with live
+ * deliveries and may already be past older messages that were not delivered. A message
+ * that arrived live after the last acked batch is therefore sent again on the next
+ * connect, and clients drop repeats by message id.
+ */
+@Component
+public class OfflineReplay {
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private ReceiptStore receiptStore;
+
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Value("${chat.replay.enabled:true}")
+    private boolean enabled;
+
+    @Value("${chat.replay.batch-size:200}")
+    private int batchSize;
+
+    @Value("${chat.replay.max-age-days:30}")
+    private int maxAgeDays;
+
+    @Value("${chat.replay.ack-timeout-ms:30000}")
+    private long ackTimeoutMs;
+
+    @Value("${chat.replay.threads:2}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    // Replays in progress by session id
+    private final Map<String, Replay> replays = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "offline-replay-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * Starts replaying to a session that has just been registered for live delivery.
+     * clientCursor is the last message id the client already has, or null to resume from
+     * the stored cursor.
+     */
+    public void start(WebSocketSession session, Long userId, Long clientCursor) {
+        if (!enabled) {
+            return;
+        }
+        Replay replay = new Replay(session, userId);
+        replays.put(session.getId(), replay);
+        executor.execute(() -> {
+            synchronized (replay) {
+                replay.cursor = clientCursor != null ? clientCursor : receiptStore.getReplayCursor(userId);
+                // Taken after registration, so every newer message reaches the live session
+                replay.upToId = chatService.getLatestMessageId();
+                sendNext(replay);
+            }
+        });
+    }
+
+    /**
+     * Client ack for the batch ending at cursor. Returns the senders whose delivered
+     * watermark moved, so the caller can send them receipts; stale or unknown acks are
+     * ignored.
+     */
+    public List<Long> acknowledge(WebSocketSession session, long cursor) {
+        Replay replay = replays.get(session.getId());
+        if (replay == null) {
+            return List.of();
+        }
+        synchronized (replay) {
+            if (replay.pending == null || replay.pending.cursor() != cursor) {
+                return List.of();
+            }
+            Batch batch = replay.pending;
+            replay.pending = null;
+            replay.cursor = batch.cursor();
+            List<Long> senders = receiptStore.markReplayed(replay.userId, batch.deliveredUpToBySender(), batch.cursor());
+            if (batch.done()) {
+                replays.remove(session.getId(), replay);
+            } else {
+                executor.execute(() -> {
+                    synchronized (replay) {
+                        sendNext(replay);
+                    }
+                });
+            }
+            return senders;
+        }
+    }
+
+    public void cancel(WebSocketSession session) {
+        replays.remove(session.getId());
+    }
+
+    // Drops replays whose client stopped acking; they resume from the stored cursor next time
+    @Scheduled(fixedDelayString = "${chat.replay.ack-timeout-ms:30000}")
+    public void expire() {
+        long now = System.currentTimeMillis();
+        replays.values().removeIf(replay -> {
+            Batch pending = replay.pending;
+            return pending != null && now - pending.sentAt() > ackTimeoutMs;
+        });
+    }
+
+    // Called with the replay's lock held
+    private void sendNext(Replay replay) {
+        if (replays.get(replay.session.getId()) != replay || !replay.session.isOpen()) {
+            return;
+        }
+        try {
+            long since = System.currentTimeMillis() - maxAgeDays * 24L * 60 * 60 * 1000;
+            Map<String, Object> result = chatService.getUndeliveredMessages(replay.userId, replay.cursor, replay.upToId,
+                    since, batchSize);
+
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> messages = (List<Map<String, Object>>) result.get("messages");
+            long cursor = (Long) result.get("cursor");
+            boolean done = (Boolean) result.get("done");
+
+            Map<Long, Long> deliveredUpToBySender = new HashMap<>();
+            for (Map<String, Object> message : messages) {
+                message.put("type", "text");
+                deliveredUpToBySender.merge((Long) message.get("from"), (Long) message.get("id"), Math::max);
+            }
+
+            Map<String, Object> frame = new HashMap<>();
+            frame.put("type", "replay");
+            frame.put("messages", messages);
+            frame.put("cursor", cursor);
+            frame.put("done", done);
+
+            if (messages.isEmpty()) {
+                // Nothing left to ack: the final frame only tells the client the replay is over
+                replays.remove(replay.session.getId(), replay);
+                if (cursor > replay.cursor) {
+                    receiptStore.markReplayed(replay.userId, Map.of(), cursor);
+                }
+                outboundQueues.send(replay.session, FrameCodec.of(replay.session).encode(frame));
+                return;
+            }
+
+            replay.pending = new Batch(cursor, done, deliveredUpToBySender, System.currentTimeMillis());
+            if (!outboundQueues.send(replay.session, FrameCodec.of(replay.session).encode(frame))) {
+                replays.remove(replay.session.getId(), replay);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            replays.remove(replay.session.getId(), replay);
+        }
+    }
+
+    private static class Replay {
+        final WebSocketSession session;
+        final Long userId;
+        long cursor;
+        long upToId;
+        volatile Batch pending;
+
+        Replay(WebSocketSession session, Long userId) {
+            this.session = session;
+            this.userId = userId;
+        }
+    }
+
+    private record Batch(long cursor, boolean done, Map<Long, Long> deliveredUpToBySender, long sentAt) {}
+}
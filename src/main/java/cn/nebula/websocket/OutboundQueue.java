@@ -0,0 +1,206 @@
+package cn.nebula.websocket;
+
+import cn.nebula.metrics.Counter;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound buffer for one WebSocket session. Producers only enqueue; a single
+ * drain task at a time writes to the session on the shared outbound executor, so a slow
+ * receiver never blocks the producing thread and sends to one session never overlap.
+ * A receiver that stops reading is closed once one frame has been in flight for longer
+ * than the send time limit, checked on every offer and by the manager's periodic sweep.
+ */
+class OutboundQueue {
+
+    // Frames written per drain task before yielding the executor thread to other sessions
+    private static final int DRAIN_QUANTUM = 64;
+
+    private final WebSocketSession session;
+    private final Executor executor;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimitNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final Counters counters;
+
+    private final Queue<WebSocketMessage<?>> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile long sendStartNanos;
+    private volatile boolean closed;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    OutboundQueue(WebSocketSession session, Executor executor, int bufferSizeLimit, long sendTimeLimitMs,
+                  OverflowPolicy overflowPolicy, Counters counters) {
+        this.session = session;
+        this.executor = executor;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMs);
+        this.overflowPolicy = overflowPolicy;
+        this.counters = counters;
+    }
+
+    /**
+     * Queues a frame for delivery. Returns false if the frame was not accepted, either
+     * because the session is gone or because the overflow policy refused it.
+     */
+    boolean offer(WebSocketMessage<?> message) {
+        if (closed || !session.isOpen()) {
+            return false;
+        }
+
+        if (checkSendTime()) {
+            return false;
+        }
+
+        int size = message.getPayloadLength();
+        if (bufferedBytes.get() + size > bufferSizeLimit) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST -> {
+                    while (bufferedBytes.get() + size > bufferSizeLimit && poll() != null) {
+                        dropped();
+                    }
+                }
+                case DISCONNECT -> {
+                    dropped();
+                    counters.bufferLimitCloses().increment();
+                    close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Buffer size limit exceeded"));
+                    return false;
+                }
+            }
+        }
+
+        frames.add(message);
+        depth.incrementAndGet();
+        bufferedBytes.addAndGet(size);
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Closes the session if the writer has been stuck on one frame for too long, i.e. the
+     * receiver is not reading. Returns true if the session is closed now. The periodic
+     * sweep calls this too, so a stalled receiver does not hold a drain thread until the
+     * next frame happens to be offered to it.
+     */
+    boolean checkSendTime() {
+        long started = sendStartNanos;
+        if (closed || started == 0 || System.nanoTime() - started <= sendTimeLimitNanos) {
+            return closed;
+        }
+        counters.sendTimeLimitCloses().increment();
+        close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Send time limit exceeded"));
+        return true;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        int written = 0;
+        try {
+            WebSocketMessage<?> message;
+            while (written < DRAIN_QUANTUM && (message = poll()) != null) {
+                sendStartNanos = System.nanoTime();
+                try {
+                    session.sendMessage(message);
+                    sent.incrementAndGet();
+                    counters.framesOut().increment();
+                } finally {
+                    sendStartNanos = 0;
+                }
+                written++;
+            }
+        } catch (IOException | RuntimeException e) {
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        } finally {
+            draining.set(false);
+        }
+
+        // Re-check after releasing the flag so a frame added during the last poll is not stranded
+        if (!closed && !frames.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private WebSocketMessage<?> poll() {
+        WebSocketMessage<?> message = frames.poll();
+        if (message != null) {
+            depth.decrementAndGet();
+            bufferedBytes.addAndGet(-message.getPayloadLength());
+        }
+        return message;
+    }
+
+    void close(CloseStatus status) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (poll() != null) {
+            dropped();
+        }
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            // Session is already broken; nothing more to do
+        }
+    }
+
+    private void dropped() {
+        dropped.incrementAndGet();
+        counters.framesDropped().increment();
+    }
+
+    void discard() {
+        closed = true;
+        frames.clear();
+        depth.set(0);
+        bufferedBytes.set(0);
+    }
+
+    int getDepth() {
+        return depth.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessionId", session.getId());
+        stats.put("userId", session.getAttributes().get("userId"));
+        stats.put("depth", depth.get());
+        stats.put("bufferedBytes", bufferedBytes.get());
+        stats.put("sent", sent.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+
+    // Shared by every queue; the per-session figures stay in getStats to keep the metrics' cardinality fixed
+    record Counters(Counter framesOut, Counter framesDropped, Counter bufferLimitCloses, Counter sendTimeLimitCloses) {}
+}
@@ -0,0 +1,141 @@
+package cn.nebula.websocket;
+
+import cn.nebula.metrics.Metrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+public class OutboundQueueManager {
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value("${chat.outbound.buffer-size-limit:524288}")
+    private int bufferSizeLimit;
+
+    @Value("${chat.outbound.send-time-limit-ms:10000}")
+    private long sendTimeLimitMs;
+
+    @Value("${chat.outbound.overflow-policy:DISCONNECT}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${chat.outbound.threads:0}")
+    private int threads;
+
+    private ExecutorService executor;
+    private OutboundQueue.Counters counters;
+
+    private final Map<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        String closed = "nebula_websocket_outbound_closed_total";
+        String closedHelp = "Sessions closed by their outbound queue, by reason";
+        counters = new OutboundQueue.Counters(
+                metrics.counter("nebula_websocket_frames_out_total", "WebSocket frames written to sessions"),
+                metrics.counter("nebula_websocket_frames_dropped_total", "Queued WebSocket frames discarded before they were written"),
+                metrics.counter(closed, closedHelp, "reason", "buffer_size_limit"),
+                metrics.counter(closed, closedHelp, "reason", "send_time_limit"));
+        metrics.gauge("nebula_websocket_outbound_depth", "Frames queued across all sessions", () -> {
+            long total = 0;
+            for (OutboundQueue queue : queues.values()) {
+                total += queue.getDepth();
+            }
+            return total;
+        });
+        metrics.gauge("nebula_websocket_outbound_max_depth", "Frames queued on the deepest session", () -> {
+            long max = 0;
+            for (OutboundQueue queue : queues.values()) {
+                max = Math.max(max, queue.getDepth());
+            }
+            return max;
+        });
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors() * 2;
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "ws-outbound-" + index.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    public void register(WebSocketSession session) {
+        queues.put(session.getId(), new OutboundQueue(session, executor, bufferSizeLimit, sendTimeLimitMs, overflowPolicy, counters));
+    }
+
+    public void unregister(WebSocketSession session) {
+        OutboundQueue queue = queues.remove(session.getId());
+        if (queue != null) {
+            queue.discard();
+        }
+    }
+
+    // Closes sessions whose writer is stuck, even if nothing more is being sent to them
+    @Scheduled(fixedDelayString = "${chat.outbound.sweep-interval-ms:1000}")
+    public void sweep() {
+        for (OutboundQueue queue : queues.values()) {
+            queue.checkSendTime();
+        }
+    }
+
+    // Non-blocking; returns false if the session is unknown/closed or the frame was refused
+    public boolean send(WebSocketSession session, WebSocketMessage<?> message) {
+        OutboundQueue queue = queues.get(session.getId());
+        return queue != null && queue.offer(message);
+    }
+
+    // Queues the frame on each open session, e.g. every device of one user; returns how many accepted it
+    int send(WebSocketSession[] sessions, SharedFrame frame) {
+        int accepted = 0;
+        for (WebSocketSession session : sessions) {
+            if (session.isOpen() && send(session, frame.forSession(session))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    public Map<String, Object> getStats() {
+        long totalDepth = 0;
+        long totalDropped = 0;
+        List<Map<String, Object>> sessions = new ArrayList<>();
+        for (OutboundQueue queue : queues.values()) {
+            totalDepth += queue.getDepth();
+            totalDropped += queue.getDropped();
+            sessions.add(queue.getStats());
+        }
+        // Deepest queues first; those are the slow consumers worth looking at
+        sessions.sort(Comparator.comparingInt((Map<String, Object> s) -> (Integer) s.get("depth")).reversed());
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", queues.size());
+        stats.put("bufferSizeLimit", bufferSizeLimit);
+        stats.put("sendTimeLimitMs", sendTimeLimitMs);
+        stats.put("overflowPolicy", overflowPolicy);
+        stats.put("totalDepth", totalDepth);
+        stats.put("totalDropped", totalDropped);
+        stats.put("perSession", sessions.subList(0, Math.min(sessions.size(), 100)));
+        return stats;
+    }
+}
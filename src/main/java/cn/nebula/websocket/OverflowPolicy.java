@@ -0,0 +1,15 @@
+package cn.nebula.websocket;
+
+/**
+ * What a session's outbound queue does when its buffer limit is reached. There is no
+ * policy that refuses the frame and keeps the session: nothing would redeliver it while
+ * the session stays open, offline replay only covers private messages, and another
+ * device's replay can move the user's cursor past it.
+ */
+public enum OverflowPolicy {
+    // Discard the oldest queued frames to make room for the new one. Chat frames and send
+    // confirmations are lost with them, so only for clients that resync on their own
+    DROP_OLDEST,
+    // Close the slow session; the client reconnects and catches up from storage (default)
+    DISCONNECT
+}
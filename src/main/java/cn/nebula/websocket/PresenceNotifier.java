@@ -0,0 +1,62 @@
+package cn.nebula.websocket;
+
+import cn.nebula.service.FriendGraph;
+import cn.nebula.service.PresenceRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pushes presence changes to online friends once per coalescing window. All changes seen
+ * by one friend in a window go out as a single frame:
+ *
+ *   {"type":"presence","changes":[{"userId":id,"online":true,"since":ms}, ...]}
+ */
+@Component
+public class PresenceNotifier {
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private FriendGraph friendGraph;
+
+    @Autowired
+    private SessionRegistry sessionRegistry;
+
+    @Autowired
+    private OutboundQueueManager outboundQueues;
+
+    @Scheduled(fixedDelayString = "${chat.presence.coalesce-ms:2000}")
+    public void publish() {
+        List<PresenceRegistry.Change> changes = presenceRegistry.drainChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Map<Long, List<Map<String, Object>>> byRecipient = new HashMap<>();
+        for (PresenceRegistry.Change change : changes) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("userId", change.userId());
+            entry.put("online", change.online());
+            entry.put("since", change.since());
+            for (long friendId : friendGraph.getFriendIds(change.userId())) {
+                if (presenceRegistry.isOnline(friendId)) {
+                    byRecipient.computeIfAbsent(friendId, id -> new ArrayList<>()).add(entry);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<Map<String, Object>>> recipient : byRecipient.entrySet()) {
+            Map<String, Object> frame = new HashMap<>();
+            frame.put("type", "presence");
+            frame.put("changes", recipient.getValue());
+            outboundQueues.send(sessionRegistry.getSessions(recipient.getKey()), new SharedFrame(codec -> codec.encode(frame)));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package cn.nebula.websocket;
+
+import cn.nebula.utils.LongObjectHashMap;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Active WebSocket sessions by user ID, shared by the handler and the delivery paths. A
+ * user may be connected from several devices at once, so each user maps to an immutable
+ * array of sessions that is replaced (copy-on-write) when a device connects or leaves;
+ * delivery paths iterate the array they got without holding any lock.
+ * The arrays live in primitive long-keyed maps split into stripes by user id, so a lookup
+ * never boxes the id and connects/disconnects only lock one stripe. A user's first connect
+ * and last disconnect run their callback under that stripe's lock, so presence updates for
+ * one user are applied in the same order as the registry changes that caused them.
+ */
+@Component
+public class SessionRegistry {
+
+    private static final WebSocketSession[] NO_SESSIONS = new WebSocketSession[0];
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicInteger userCount = new AtomicInteger();
+
+    public SessionRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // onFirstSession runs, under the stripe lock, if the user had no session registered before
+    public void register(long userId, WebSocketSession session, Runnable onFirstSession) {
+        Stripe stripe = stripe(userId);
+        long stamp = stripe.lock.writeLock();
+        try {
+            WebSocketSession[] current = stripe.sessions.get(userId);
+            if (current == null) {
+                stripe.sessions.put(userId, new WebSocketSession[] {session});
+                userCount.incrementAndGet();
+                onFirstSession.run();
+            } else {
+                WebSocketSession[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = session;
+                stripe.sessions.put(userId, updated);
+            }
+            sessionCount.incrementAndGet();
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Only removes the given session; the user's other devices stay registered. Returns true
+     * if it was the user's last session, after running onLastSession under the stripe lock.
+     */
+    public boolean unregister(long userId, WebSocketSession session, Runnable onLastSession) {
+        Stripe stripe = stripe(userId);
+        long stamp = stripe.lock.writeLock();
+        try {
+            WebSocketSession[] current = stripe.sessions.get(userId);
+            if (current == null) {
+                return false;
+            }
+            int index = indexOf(current, session);
+            if (index < 0) {
+                return false;
+            }
+            sessionCount.decrementAndGet();
+            if (current.length == 1) {
+                stripe.sessions.remove(userId);
+                userCount.decrementAndGet();
+                onLastSession.run();
+                return true;
+            } else {
+                WebSocketSession[] updated = new WebSocketSession[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+                stripe.sessions.put(userId, updated);
+                return false;
+            }
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    // Runs the action, under the stripe lock, only if the user has no session registered here
+    public void ifNoSessions(long userId, Runnable action) {
+        Stripe stripe = stripe(userId);
+        long stamp = stripe.lock.readLock();
+        try {
+            if (stripe.sessions.get(userId) == null) {
+                action.run();
+            }
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Every registered session of the user, possibly including one that is closing; callers
+     * skip sessions that are no longer open. The array is shared and must not be modified.
+     */
+    public WebSocketSession[] getSessions(long userId) {
+        Stripe stripe = stripe(userId);
+        long stamp = stripe.lock.readLock();
+        try {
+            WebSocketSession[] sessions = stripe.sessions.get(userId);
+            return sessions == null ? NO_SESSIONS : sessions;
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean isOnline(long userId) {
+        for (WebSocketSession session : getSessions(userId)) {
+            if (session.isOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Visits every registered session; the action runs outside the registry's locks
+    public void forEachSession(Consumer<WebSocketSession> action) {
+        List<WebSocketSession[]> snapshot = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            snapshot.clear();
+            long stamp = stripe.lock.readLock();
+            try {
+                stripe.sessions.forEachValue(snapshot::add);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+            for (WebSocketSession[] sessions : snapshot) {
+                for (WebSocketSession session : sessions) {
+                    action.accept(session);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return sessionCount.get();
+    }
+
+    public int userCount() {
+        return userCount.get();
+    }
+
+    private Stripe stripe(long userId) {
+        return stripes[(int) (userId & (STRIPES - 1))];
+    }
+
+    private static int indexOf(WebSocketSession[] sessions, WebSocketSession session) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Stripe {
+        final StampedLock lock = new StampedLock();
+        final LongObjectHashMap<WebSocketSession[]> sessions = new LongObjectHashMap<>(64);
+    }
+}
@@ -0,0 +1,23 @@
+package cn.nebula.websocket;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// One frame for many sessions, encoded at most once per codec by whichever session needs it first
+class SharedFrame {
+
+    private final Function<FrameCodec, WebSocketMessage<?>> encoder;
+    private final Map<FrameCodec, WebSocketMessage<?>> encoded = new ConcurrentHashMap<>(4);
+
+    SharedFrame(Function<FrameCodec, WebSocketMessage<?>> encoder) {
+        this.encoder = encoder;
+    }
+
+    WebSocketMessage<?> forSession(WebSocketSession session) {
+        return encoded.computeIfAbsent(FrameCodec.of(session), encoder);
+    }
+}
@@ -0,0 +1,89 @@
+package cn.nebula.service;
+
+import cn.nebula.metrics.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Admission on a single auth thread with room for one waiting hash: the thread is held on
+ * a latch so the queue can be filled deterministically.
+ */
+class AuthExecutorTest {
+
+    private AuthExecutor executor;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    void startExecutor() {
+        executor = new AuthExecutor();
+        ReflectionTestUtils.setField(executor, "metrics", new Metrics());
+        ReflectionTestUtils.setField(executor, "threads", 1);
+        ReflectionTestUtils.setField(executor, "queueCapacity", 1);
+        ReflectionTestUtils.setField(executor, "maxWaitMs", 50L);
+        ReflectionTestUtils.setField(executor, "sessionThreads", 1);
+        executor.start();
+    }
+
+    @AfterEach
+    void stopExecutor() {
+        release.countDown();
+        executor.stop();
+    }
+
+    @Test
+    void fullQueueFailsTheFutureAtOnce() throws InterruptedException {
+        CompletableFuture<String> running = executor.submit(this::blockingHash);
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        // Takes the one free queue slot
+        CompletableFuture<String> queued = executor.submit(() -> "queued");
+        assertThat(queued.isDone()).isFalse();
+
+        CompletableFuture<String> refused = executor.submit(() -> "refused");
+        assertThat(refused).isCompletedExceptionally();
+        assertThatThrownBy(refused::join)
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+        assertThat(running.orTimeout(10, TimeUnit.SECONDS).join()).isEqualTo("hashed");
+    }
+
+    @Test
+    void hashThatWaitedTooLongIsDroppedUnstarted() throws InterruptedException {
+        CompletableFuture<String> running = executor.submit(this::blockingHash);
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<String> stale = executor.submit(() -> "stale");
+
+        // Longer than maxWaitMs before the auth thread gets to it
+        Thread.sleep(200);
+        release.countDown();
+
+        assertThat(running.orTimeout(10, TimeUnit.SECONDS).join()).isEqualTo("hashed");
+        assertThatThrownBy(() -> stale.orTimeout(10, TimeUnit.SECONDS).join())
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    private String blockingHash() {
+        started.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "hashed";
+    }
+}
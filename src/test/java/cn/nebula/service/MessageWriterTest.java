@@ -0,0 +1,71 @@
+package cn.nebula.service;
+
+import cn.nebula.cluster.ClusterRouter;
+import cn.nebula.config.DatabaseConfig;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.metrics.Metrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * The write-behind batch against a real SQLite file: a row the database refuses fails only
+ * its own future, and the rest of the batch it was committed with still gets its ids.
+ */
+@SpringJUnitConfig(classes = {Metrics.class, SqliteDatabase.class, DatabaseConfig.class, ClusterRouter.class,
+        ConversationStore.class, UnreadCounters.class, MessageWriter.class})
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:sqlite:target/message-writer-test.db",
+        // Long enough that everything submitted below lands in one batch
+        "chat.writer.flush-interval-ms=500"
+})
+class MessageWriterTest {
+
+    private static final String MONTH = "202001";
+    private static final String TABLE = "messages_" + MONTH;
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private MessageWriter messageWriter;
+
+    @MockBean
+    private GroupService groupService;
+
+    @BeforeEach
+    void createPartition() throws SQLException {
+        try (Connection conn = database.writer()) {
+            DatabaseConfig.createMessagePartition(conn, MONTH);
+        }
+    }
+
+    @Test
+    void badRowFailsOnlyItsOwnFuture() {
+        long now = System.currentTimeMillis();
+        CompletableFuture<Long> first = messageWriter.submit(TABLE, 1L, 2L, 0, "first", now);
+        // content is NOT NULL, so this row is refused inside the batch transaction
+        CompletableFuture<Long> bad = messageWriter.submit(TABLE, 1L, 2L, 0, null, now);
+        CompletableFuture<Long> last = messageWriter.submit(TABLE, 2L, 1L, 0, "last", now);
+
+        Long firstId = first.orTimeout(10, TimeUnit.SECONDS).join();
+        Long lastId = last.orTimeout(10, TimeUnit.SECONDS).join();
+        assertThat(firstId).isPositive();
+        assertThat(lastId).isGreaterThan(firstId);
+        assertThatThrownBy(() -> bad.orTimeout(10, TimeUnit.SECONDS).join())
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(SQLException.class);
+    }
+}
@@ -0,0 +1,83 @@
+package cn.nebula.service;
+
+import cn.nebula.config.DatabaseConfig;
+import cn.nebula.db.SqliteDatabase;
+import cn.nebula.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Rotation against a real SQLite file. Each test uses its own user id, so rows left by the
+ * others do not matter; the clock is moved by rewriting the stored timestamps instead of
+ * sleeping.
+ */
+@SpringJUnitConfig(classes = {Metrics.class, SqliteDatabase.class, DatabaseConfig.class, RefreshTokenStore.class})
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:sqlite:target/refresh-token-store-test.db",
+        "jwt.refresh-reuse-grace-ms=10000"
+})
+class RefreshTokenStoreTest {
+
+    @Autowired
+    private SqliteDatabase database;
+
+    @Autowired
+    private RefreshTokenStore store;
+
+    @Test
+    void reuseAfterGraceWindowRevokesFamily() throws SQLException {
+        long userId = 1001L;
+        String first = store.issue(userId);
+        RefreshTokenStore.Rotation rotation = store.rotate(first);
+        assertThat(rotation.status()).isEqualTo(RefreshTokenStore.Status.OK);
+
+        // The first token was spent a minute ago, well outside the grace window
+        update("UPDATE refresh_tokens SET used = used - 60000 WHERE user_id = ? AND used > 0", userId);
+
+        assertThat(store.rotate(first).status()).isEqualTo(RefreshTokenStore.Status.REUSED);
+        // The successor belonged to the same family, so it is revoked with it
+        assertThat(store.rotate(rotation.token()).status()).isEqualTo(RefreshTokenStore.Status.INVALID);
+    }
+
+    @Test
+    void secondRefreshWithinGraceWindowIsSupersededWithoutRevoking() throws SQLException {
+        long userId = 1002L;
+        String first = store.issue(userId);
+        RefreshTokenStore.Rotation rotation = store.rotate(first);
+        assertThat(rotation.status()).isEqualTo(RefreshTokenStore.Status.OK);
+
+        // Another tab presenting the same token right after
+        RefreshTokenStore.Rotation raced = store.rotate(first);
+        assertThat(raced.status()).isEqualTo(RefreshTokenStore.Status.SUPERSEDED);
+        assertThat(raced.token()).isNull();
+
+        // The successor the first tab received still works
+        assertThat(store.rotate(rotation.token()).status()).isEqualTo(RefreshTokenStore.Status.OK);
+    }
+
+    @Test
+    void expiredTokenIsRefused() throws SQLException {
+        long userId = 1003L;
+        String token = store.issue(userId);
+        update("UPDATE refresh_tokens SET expires_at = 1 WHERE user_id = ?", userId);
+
+        RefreshTokenStore.Rotation rotation = store.rotate(token);
+        assertThat(rotation.status()).isEqualTo(RefreshTokenStore.Status.EXPIRED);
+        assertThat(rotation.token()).isNull();
+    }
+
+    private void update(String sql, long userId) throws SQLException {
+        try (Connection conn = database.writer(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, userId);
+            stmt.executeUpdate();
+        }
+    }
+}
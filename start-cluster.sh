@@ -0,0 +1,46 @@
+#!/bin/bash
+
+# Starts several Nebula nodes on this machine as one cluster.
+# Usage: ./start-cluster.sh [nodes=3]
+# Node i listens on HTTP port 8080+i and cluster port 9100+i; all nodes share nebula.db.
+# Each node keeps conversation lists, unread counts and receipt watermarks in memory and
+# tells the other nodes about its changes over the cluster links. A change made while a
+# link is down is not resent, so a node that lost a peer can serve stale counts until it
+# is restarted and reloads them from nebula.db.
+
+NODES=${1:-3}
+
+echo "=== Nebula 本机集群启动脚本（$NODES 个节点）==="
+
+echo "📦 正在打包..."
+mvn -q clean package -DskipTests
+if [ $? -ne 0 ]; then
+    echo "❌ 打包失败"
+    exit 1
+fi
+JAR=$(ls target/nebula-core-*-exec.jar | head -1)
+
+mkdir -p logs
+PIDS=()
+for ((i = 0; i < NODES; i++)); do
+    PEERS=""
+    for ((j = 0; j < NODES; j++)); do
+        if [ $j -ne $i ]; then
+            PEERS="$PEERS${PEERS:+,}node-$j@127.0.0.1:$((9100 + j))"
+        fi
+    done
+    java -jar "$JAR" \
+        --server.port=$((8080 + i)) \
+        --cluster.enabled=true \
+        --cluster.node-id=node-$i \
+        --cluster.tcp.port=$((9100 + i)) \
+        --cluster.peers="$PEERS" \
+        > logs/node-$i.log 2>&1 &
+    PIDS+=($!)
+    echo "🚀 node-$i: http://localhost:$((8080 + i))  日志: logs/node-$i.log"
+done
+
+trap 'echo "正在停止..."; kill "${PIDS[@]}" 2>/dev/null; wait; exit 0' INT TERM
+echo ""
+echo "按 Ctrl+C 停止全部节点"
+wait
@@ -1,6 +1,7 @@
 // 全局变量
 let currentUser = null;
 let authToken = null;
+let refreshToken = null;
 let wsConnection = null;
 let currentChatId = null;
 
@@ -84,8 +85,8 @@ function showNotification(message, type = 'info') {
     }, 3000);
 }
 
-// API 请求函数
-async function apiRequest(url, options = {}) {
+// API 请求函数；访问令牌过期（401）时用刷新令牌换新后重试一次
+async function apiRequest(url, options = {}, retried = false) {
     const config = {
         headers: {
             'Content-Type': 'application/json',
@@ -100,6 +101,13 @@ async function apiRequest(url, options = {}) {
     
     try {
         const response = await fetch(`${API_BASE}${url}`, config);
+        
+        if (response.status === 401 && !retried && refreshToken && url !== '/user/refresh') {
+            if (await refreshSession()) {
+                return apiRequest(url, options, true);
+            }
+        }
+        
         const data = await response.json();
         
         if (!response.ok) {
@@ -113,6 +121,88 @@ async function apiRequest(url, options = {}) {
     }
 }
 
+// 保存登录或刷新返回的令牌
+function saveSession(data) {
+    authToken = data.token;
+    refreshToken = data.refreshToken;
+    localStorage.setItem('authToken', authToken);
+    localStorage.setItem('refreshToken', refreshToken);
+}
+
+function clearSession() {
+    localStorage.removeItem('authToken');
+    localStorage.removeItem('refreshToken');
+    localStorage.removeItem('currentUser');
+    authToken = null;
+    refreshToken = null;
+    currentUser = null;
+}
+
+// 并发的 401 共用同一次刷新：刷新令牌只能使用一次
+let refreshing = null;
+
+// 其他标签页可能已经轮换过令牌，以 localStorage 中的为准
+function adoptStoredSession() {
+    const storedRefresh = localStorage.getItem('refreshToken');
+    const storedToken = localStorage.getItem('authToken');
+    if (!storedRefresh || storedRefresh === refreshToken) {
+        return false;
+    }
+    refreshToken = storedRefresh;
+    authToken = storedToken;
+    return true;
+}
+
+async function refreshSession() {
+    if (!refreshing) {
+        refreshing = (async () => {
+            try {
+                adoptStoredSession();
+                const sent = refreshToken;
+                const response = await fetch(`${API_BASE}/user/refresh`, {
+                    method: 'POST',
+                    headers: { 'Content-Type': 'application/json' },
+                    body: JSON.stringify({ refreshToken: sent })
+                });
+                const data = await response.json();
+                if (response.ok && data.success) {
+                    saveSession(data);
+                    return true;
+                }
+                // 另一个标签页抢先刷新了：改用它存下的新令牌（它可能还没来得及写入，稍等再看一次）
+                if (data.superseded) {
+                    if (!adoptStoredSession()) {
+                        await new Promise(resolve => setTimeout(resolve, 1000));
+                    }
+                    if (refreshToken !== sent || adoptStoredSession()) {
+                        return true;
+                    }
+                }
+                clearSession();
+                showNotification('登录已过期，请重新登录', 'warning');
+                showPage(loginPage);
+                return false;
+            } catch (error) {
+                console.error('Refresh error:', error);
+                return false;
+            } finally {
+                refreshing = null;
+            }
+        })();
+    }
+    return refreshing;
+}
+
+// 访问令牌是否将在一分钟内过期
+function tokenExpiresSoon() {
+    try {
+        const payload = JSON.parse(atob(authToken.split('.')[1].replace(/-/g, '+').replace(/_/g, '/')));
+        return payload.exp * 1000 < Date.now() + 60000;
+    } catch (error) {
+        return true;
+    }
+}
+
 // 标签切换
 function initTabs() {
     const navItems = document.querySelectorAll('.nav-item');
@@ -185,8 +275,11 @@ function connectWebSocket() {
     
     wsConnection.onclose = () => {
         console.log('WebSocket disconnected');
-        // 尝试重新连接
-        setTimeout(() => {
+        // 尝试重新连接，握手前先换掉将过期的访问令牌
+        setTimeout(async () => {
+            if (authToken && refreshToken && tokenExpiresSoon()) {
+                await refreshSession();
+            }
             if (authToken) {
                 connectWebSocket();
             }
@@ -205,17 +298,36 @@ function handleWebSocketMessage(message) {
         case 'voice':
         case 'img':
             handleIncomingMessage(message);
+            acknowledgeDelivery(message);
             break;
         case 'delivery_confirmation':
             handleDeliveryConfirmation(message);
             break;
+        case 'replay':
+            handleReplay(message);
+            break;
+        case 'presence':
+            updateFriendPresence(message.changes);
+            break;
         case 'error':
             showNotification(message.message, 'error');
             break;
     }
 }
 
+// 最近收到的私聊消息 id：补发会重发上次连接时已在线收到的消息，按 id 去重
+const seenMessageIds = new Set();
+const MAX_SEEN_MESSAGE_IDS = 5000;
+
 function handleIncomingMessage(message) {
+    if (message.groupId === undefined) {
+        if (seenMessageIds.has(message.id)) return;
+        seenMessageIds.add(message.id);
+        if (seenMessageIds.size > MAX_SEEN_MESSAGE_IDS) {
+            seenMessageIds.delete(seenMessageIds.values().next().value);
+        }
+    }
+
     // 如果当前正在与发送者聊天，直接显示消息
     if (currentChatId == message.from) {
         displayMessage(message, false);
@@ -228,6 +340,20 @@ function handleIncomingMessage(message) {
     playNotificationSound();
 }
 
+// 私聊消息送达确认：服务器收到确认后才更新送达状态
+function acknowledgeDelivery(message) {
+    if (message.groupId !== undefined || !wsConnection || wsConnection.readyState !== WebSocket.OPEN) return;
+    wsConnection.send(JSON.stringify({ type: 'ack', from: message.from, delivered: message.id }));
+}
+
+// 离线消息补发：逐条显示后确认本批，服务器随后发送下一批
+function handleReplay(batch) {
+    batch.messages.forEach(handleIncomingMessage);
+    if (batch.messages.length > 0 && wsConnection && wsConnection.readyState === WebSocket.OPEN) {
+        wsConnection.send(JSON.stringify({ type: 'replay_ack', cursor: batch.cursor }));
+    }
+}
+
 function handleDeliveryConfirmation(message) {
     if (message.success) {
         console.log('Message delivered successfully');
@@ -251,6 +377,7 @@ function initApp() {
     
     if (storedToken && storedUser) {
         authToken = storedToken;
+        refreshToken = localStorage.getItem('refreshToken');
         currentUser = JSON.parse(storedUser);
         showMainPage();
     } else {
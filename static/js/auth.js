@@ -26,7 +26,7 @@ function initAuth() {
             });
             
             if (response.success) {
-                authToken = response.token;
+                saveSession(response);
                 currentUser = {
                     id: response.userId,
                     nickname: response.nickname,
@@ -34,7 +34,6 @@ function initAuth() {
                 };
                 
                 // 保存到本地存储
-                localStorage.setItem('authToken', authToken);
                 localStorage.setItem('currentUser', JSON.stringify(currentUser));
                 
                 showNotification('登录成功', 'success');
@@ -105,17 +104,15 @@ function initAuth() {
     logoutBtn.addEventListener('click', async () => {
         try {
             await apiRequest('/user/logout', {
-                method: 'POST'
+                method: 'POST',
+                body: JSON.stringify({ refreshToken: localStorage.getItem('refreshToken') || refreshToken })
             });
         } catch (error) {
             console.error('Logout error:', error);
         }
         
         // 清除本地数据
-        localStorage.removeItem('authToken');
-        localStorage.removeItem('currentUser');
-        authToken = null;
-        currentUser = null;
+        clearSession();
         
         // 关闭WebSocket连接
         if (wsConnection) {
@@ -166,7 +166,7 @@ function displayFriendsList(friends) {
             <img src="${friend.avatar || 'https://via.placeholder.com/40'}" alt="头像" class="friend-avatar">
             <div class="friend-info">
                 <div class="friend-name">${escapeHtml(friend.nickname)}</div>
-                <div class="friend-status ${statusClass}">${statusText}</div>
+                <div class="friend-status ${statusClass}" data-user-id="${friend.userId}">${statusText}</div>
             </div>
             <div class="friend-actions">
                 <button class="btn-small btn-chat" onclick="startChatWithFriend(${friend.userId}, '${escapeHtml(friend.nickname)}')">聊天</button>
@@ -177,6 +177,17 @@ function displayFriendsList(friends) {
     });
 }
 
+// 服务器推送的好友上下线变化
+function updateFriendPresence(changes) {
+    changes.forEach(change => {
+        const status = document.querySelector(`.friend-status[data-user-id="${change.userId}"]`);
+        if (status) {
+            status.classList.toggle('online', change.online);
+            status.textContent = change.online ? '在线' : '离线';
+        }
+    });
+}
+
 async function handleFriendRequest(fromUserId, action) {
     try {
         const response = await apiRequest('/friends/approve', {